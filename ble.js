@@ -70,6 +70,7 @@ exports.startScan = function(arg1, arg2, arg3, arg4)
 	var fail;
 	var options;
 	var parseAdvertisementData = true;
+	var includeScanRecord = true;
 
 	function onFail(error)
 	{
@@ -77,16 +78,41 @@ exports.startScan = function(arg1, arg2, arg3, arg4)
 		fail(error);
 	}
 
-	function onSuccess(device)
+	function reportDevice(device)
+	{
+		if (parseAdvertisementData)
+		{
+			exports.parseAdvertisementData(device);
+		}
+		success(device);
+	}
+
+	function onSuccess(result)
 	{
 		// Only report results while scanning is requested.
 		if (isScanning)
 		{
-			if (parseAdvertisementData)
+			// Binary results are decoded to an array of devices.
+			if (result instanceof ArrayBuffer)
+			{
+				result = unpackScanResults(
+					result,
+					parseAdvertisementData,
+					includeScanRecord);
+			}
+
+			// Batched results are delivered as an array of devices.
+			if (Array.isArray(result))
 			{
-				exports.parseAdvertisementData(device);
+				for (var i = 0; i < result.length && isScanning; ++i)
+				{
+					reportDevice(result[i]);
+				}
+			}
+			else
+			{
+				reportDevice(result);
 			}
-			success(device);
 		}
 	}
 
@@ -132,6 +158,42 @@ exports.startScan = function(arg1, arg2, arg3, arg4)
 		{
 			parseAdvertisementData = false;
 		}
+
+		if (options.includeScanRecord === false)
+		{
+			includeScanRecord = false;
+		}
+	}
+
+	// Options handled by the native implementation. On Android the
+	// advertisement data is parsed natively when requested.
+	var nativeOptions = {
+		parseAdvertisementData: parseAdvertisementData,
+		includeScanRecord: includeScanRecord
+	};
+	if (options)
+	{
+		copyScanSettings(options, nativeOptions);
+
+		if (options.binaryResults === true)
+		{
+			nativeOptions.binaryResults = true;
+		}
+
+		if (Array.isArray(options.filters))
+		{
+			nativeOptions.filters = getNativeScanFilters(options.filters);
+		}
+
+		if (options.beacons === true)
+		{
+			nativeOptions.beacons = true;
+		}
+
+		if (Array.isArray(options.beaconRegions))
+		{
+			nativeOptions.beaconRegions = getNativeBeaconRegions(options.beaconRegions);
+		}
 	}
 
 	// Start scanning.
@@ -139,14 +201,104 @@ exports.startScan = function(arg1, arg2, arg3, arg4)
 	if (Array.isArray(serviceUUIDs))
 	{
 		serviceUUIDs = getCanonicalUUIDArray(serviceUUIDs);
-		exec(onSuccess, onFail, 'BLE', 'startScan', [serviceUUIDs]);
+		exec(onSuccess, onFail, 'BLE', 'startScan', [serviceUUIDs, nativeOptions]);
 	}
 	else
 	{
-		exec(onSuccess, onFail, 'BLE', 'startScan', []);
+		exec(onSuccess, onFail, 'BLE', 'startScan', [null, nativeOptions]);
 	}
 };
 
+/**
+ * Copy Android scan settings from startScan options to the
+ * options object passed to the native implementation.
+ * @private
+ */
+function copyScanSettings(options, nativeOptions)
+{
+	var names = [
+		'scanMode', 'callbackType', 'matchMode', 'numOfMatches', 'reportDelay',
+		'coalesceWindow', 'deviceCacheSize', 'deviceCacheMaxAge',
+		'rssiSmoothingFactor', 'reportMode', 'rssiChangeThreshold',
+		'scanOnTime', 'scanOffTime', 'scanRestartInterval'];
+	for (var i = 0; i < names.length; ++i)
+	{
+		if (options[names[i]] !== undefined)
+		{
+			nativeOptions[names[i]] = options[names[i]];
+		}
+	}
+}
+
+/**
+ * Convert scan filters to the form used by the native implementation.
+ * UUIDs are made canonical and binary data is Base64-encoded.
+ * @private
+ */
+function getNativeScanFilters(filters)
+{
+	var base64 = cordova.require('cordova/base64');
+
+	function toBase64(data)
+	{
+		if (typeof data == 'string' || data === undefined || data === null)
+		{
+			return data;
+		}
+		var buffer = data.buffer ? data.buffer : data;
+		return base64.fromArrayBuffer(buffer);
+	}
+
+	var result = [];
+	for (var i = 0; i < filters.length; ++i)
+	{
+		var filter = filters[i];
+		var nativeFilter = {};
+		for (var key in filter)
+		{
+			nativeFilter[key] = filter[key];
+		}
+		if (filter.serviceUUID)
+		{
+			nativeFilter.serviceUUID = exports.getCanonicalUUID(filter.serviceUUID);
+		}
+		if (filter.serviceDataUUID)
+		{
+			nativeFilter.serviceDataUUID = exports.getCanonicalUUID(filter.serviceDataUUID);
+		}
+		nativeFilter.manufacturerData = toBase64(filter.manufacturerData);
+		nativeFilter.manufacturerDataMask = toBase64(filter.manufacturerDataMask);
+		nativeFilter.serviceData = toBase64(filter.serviceData);
+		nativeFilter.serviceDataMask = toBase64(filter.serviceDataMask);
+		result.push(nativeFilter);
+	}
+	return result;
+}
+
+/**
+ * Convert beacon regions to the form used by the native implementation.
+ * @private
+ */
+function getNativeBeaconRegions(regions)
+{
+	var result = [];
+	for (var i = 0; i < regions.length; ++i)
+	{
+		var region = regions[i];
+		var nativeRegion = {};
+		for (var key in region)
+		{
+			nativeRegion[key] = region[key];
+		}
+		if (region.uuid)
+		{
+			nativeRegion.uuid = exports.getCanonicalUUID(region.uuid);
+		}
+		result.push(nativeRegion);
+	}
+	return result;
+}
+
 /**
  * Ensure that all UUIDs in an array has canonical form.
  * @private
@@ -167,18 +319,158 @@ function getCanonicalUUIDArray(uuidArray)
  * Options for startScan.
  * @typedef {Object} ScanOptions
  * @param {array} serviceUUIDs - Array with service UUID strings (optional).
- * On iOS multiple UUIDs are scanned for using logical OR operator,
+ * Multiple UUIDs are scanned for using logical OR operator,
  * any UUID that matches any of the UUIDs adverticed by the device
- * will count as a match. On Android, multiple UUIDs are scanned for
- * using AND logic, the device must advertise all of the given UUIDs
- * to produce a match. (The matching logic will be unified in future
- * versions of the plugin.) When providing one service UUID, behaviour
- * is the same on Android and iOS. Learning out this parameter or
+ * will count as a match. On Android versions below 5.0, multiple UUIDs
+ * are scanned for using AND logic, the device must advertise all of the
+ * given UUIDs to produce a match. When providing one service UUID, behaviour
+ * is the same on all versions. Learning out this parameter or
  * setting it to null, will scan for all devices, regardless of
  * advertised services.
  * @property {boolean} parseAdvertisementData - Set to false to disable
  * automatic parsing of advertisement data from the scan record.
- * Default is true.
+ * Default is true. On Android the scan record is parsed natively.
+ * @property {boolean} includeScanRecord - Android only. Set to false to
+ * leave out the Base64-encoded scanRecord field from device objects.
+ * Useful together with parseAdvertisementData to reduce the amount of
+ * data sent for each advertisement. Default is true.
+ * @property {string} scanMode - Android 5.0+ only. SCAN_MODE_LOW_POWER,
+ * SCAN_MODE_BALANCED, SCAN_MODE_LOW_LATENCY or SCAN_MODE_OPPORTUNISTIC.
+ * Default is SCAN_MODE_LOW_LATENCY.
+ * @property {string} callbackType - Android 6.0+ only.
+ * CALLBACK_TYPE_ALL_MATCHES, CALLBACK_TYPE_FIRST_MATCH or
+ * CALLBACK_TYPE_MATCH_LOST. Default is CALLBACK_TYPE_ALL_MATCHES.
+ * @property {string} matchMode - Android 6.0+ only. MATCH_MODE_AGGRESSIVE
+ * or MATCH_MODE_STICKY. Default is MATCH_MODE_AGGRESSIVE.
+ * @property {string} numOfMatches - Android 6.0+ only.
+ * MATCH_NUM_ONE_ADVERTISEMENT, MATCH_NUM_FEW_ADVERTISEMENT or
+ * MATCH_NUM_MAX_ADVERTISEMENT. Default is MATCH_NUM_MAX_ADVERTISEMENT.
+ * @property {number} reportDelay - Android 5.0+ only. Delay in milliseconds
+ * for batched scan results. When greater than zero, results are collected
+ * by the Bluetooth controller and delivered in batches, which saves power.
+ * The scanCallback is still called once for each device. Requires hardware
+ * support for batched scans, startScan fails otherwise. Default is 0.
+ * @property {number} coalesceWindow - Android only. Time window in
+ * milliseconds during which scan results are merged per device. Only the
+ * latest result of each device is reported at the end of each window,
+ * with the field packetCount set to the number of advertisements merged
+ * into it. Useful to limit the rate of callbacks when many devices
+ * advertise frequently. Default is 0 (no coalescing).
+ * @property {boolean} binaryResults - Android only. Set to true to have
+ * scan results sent from native code packed in a binary buffer instead of
+ * as JSON. This reduces the amount of data sent for each result, and works
+ * best together with reportDelay or coalesceWindow, where many results are
+ * sent at once. Device objects are decoded in JavaScript and also have the
+ * fields timestamp and packetCount. Default is false.
+ * @property {array} filters - Android only. Array of {@link ScanFilter}
+ * objects. When given, only devices that match at least one of the filters
+ * are reported. Filters are evaluated natively, and are passed on to the
+ * Bluetooth controller when possible.
+ * @property {number} deviceCacheSize - Android only. Enables a native table
+ * of seen devices, holding at most this many devices. When full, the least
+ * recently seen device is evicted. Reported devices get the field
+ * smoothedRssi. The table can be read with {@link getScanCache}.
+ * Default is 0 (disabled), or 256 when reportMode is "changes".
+ * @property {number} deviceCacheMaxAge - Android only. Devices not seen for
+ * this many milliseconds are removed from the device table. Default is 0
+ * (devices are only removed when the table is full).
+ * @property {number} rssiSmoothingFactor - Android only. Weight of new RSSI
+ * values in the exponential moving average used for smoothedRssi, between
+ * 0 and 1. Default is 0.25.
+ * @property {string} reportMode - Android only. "all" reports every
+ * advertisement. "changes" reports a device only when it appears, when its
+ * smoothed RSSI changed by at least rssiChangeThreshold, or when its
+ * advertisement data changed. Devices removed because of deviceCacheMaxAge
+ * are then reported with event set to "disappeared". Default is "all".
+ * @property {number} rssiChangeThreshold - Android only. Change in smoothed
+ * RSSI, in dB, that is reported when reportMode is "changes". Default is 5.
+ * @property {boolean} beacons - Android only. Set to true to only report
+ * iBeacon and Eddystone advertisements. Beacon frames are decoded natively
+ * and reported in the field beacon of the device object, see
+ * {@link BeaconInfo}. Enables the device cache, which is used to smooth
+ * the distance estimate. Default is false.
+ * @property {array} beaconRegions - Android only. Array of
+ * {@link BeaconRegion} objects. When given in beacon mode, only beacons
+ * in any of the regions are reported. Eddystone URL, TLM and EID frames
+ * do not belong to any region.
+ * @property {number} scanOnTime - Android only. When set, the Bluetooth
+ * hardware scans in windows of this many milliseconds, separated by
+ * scanOffTime. The scan callback stays active during off windows.
+ * Default is 0 (scan continuously).
+ * @property {number} scanOffTime - Android only. Milliseconds between scan
+ * windows, requires scanOnTime. Default is 0.
+ * @property {number} scanRestartInterval - Android only. A continuous scan
+ * is restarted transparently after this many milliseconds, since some
+ * Android versions degrade long running scans. Set to 0 to disable.
+ * Default is 1500000 (25 minutes).
+ * <p>Android allows 5 scan starts in 30 seconds, and silently delivers no
+ * scan results above that. All scan starts, including starts by scan
+ * windows, restarts and calls to startScan, are therefore limited to 4 in
+ * 30 seconds. Starts above the limit are postponed, see
+ * {@link getScanState}.</p>
+ */
+
+/**
+ * Beacon region for startScan. Either uuid or namespace must be given.
+ * @typedef {Object} BeaconRegion
+ * @property {string} uuid - iBeacon proximity UUID.
+ * @property {number} major - iBeacon major value (optional).
+ * @property {number} minor - iBeacon minor value (optional, requires major).
+ * @property {string} namespace - Eddystone UID namespace, 20 hex digits.
+ * @property {string} instance - Eddystone UID instance, 12 hex digits (optional).
+ * @example
+ *   { uuid: 'b9407f30-f5f8-466e-aff9-25556b57fe6d', major: 1 }
+ */
+
+/**
+ * Beacon frame decoded from advertisement data, in beacon mode.
+ * Fields depend on the type of the frame.
+ * @typedef {Object} BeaconInfo
+ * @property {string} type - "ibeacon", "eddystone-uid", "eddystone-url",
+ * "eddystone-tlm" or "eddystone-eid".
+ * @property {number} measuredPower - Expected RSSI at 1 m. Not set for TLM frames.
+ * @property {number} distance - Estimated distance in meters, based on the
+ * smoothed RSSI and measuredPower. Not set for TLM frames.
+ * @property {string} uuid - iBeacon proximity UUID.
+ * @property {number} major - iBeacon major value.
+ * @property {number} minor - iBeacon minor value.
+ * @property {string} namespace - Eddystone UID namespace as hex string.
+ * @property {string} instance - Eddystone UID instance as hex string.
+ * @property {string} url - Eddystone URL.
+ * @property {string} eid - Eddystone ephemeral identifier as hex string.
+ * @property {number} version - Eddystone TLM version.
+ * @property {number} batteryVoltage - Eddystone TLM battery voltage in mV.
+ * @property {number} temperature - Eddystone TLM temperature in degrees Celsius.
+ * @property {number} advertisementCount - Eddystone TLM advertisement count.
+ * @property {number} uptime - Eddystone TLM time since power-on in milliseconds.
+ */
+
+/**
+ * Scan filter for startScan. All fields are optional, and all fields
+ * that are set must match for a device to be reported.
+ * Binary data may be given as an ArrayBufferView or a Base64-encoded string.
+ * @typedef {Object} ScanFilter
+ * @property {string} name - Advertised name of the device.
+ * @property {string} namePrefix - The advertised name must start with this string.
+ * @property {array} addresses - Array of device addresses.
+ * @property {number} rssiMin - Lowest RSSI of reported results.
+ * @property {string} serviceUUID - UUID of an advertised service.
+ * @property {number} manufacturerId - Company identifier of the manufacturer data.
+ * @property {ArrayBufferView} manufacturerData - Manufacturer data that
+ * follows the company identifier must start with these bytes.
+ * @property {ArrayBufferView} manufacturerDataMask - Bits to compare in
+ * manufacturerData. Must have the same length as manufacturerData.
+ * @property {string} serviceDataUUID - UUID of advertised service data.
+ * @property {ArrayBufferView} serviceData - The service data must start
+ * with these bytes. Requires serviceDataUUID.
+ * @property {ArrayBufferView} serviceDataMask - Bits to compare in
+ * serviceData. Must have the same length as serviceData.
+ * @example
+ *   // Report iBeacons (Apple company id, beacon type 0x02 0x15)
+ *   // with an RSSI of at least -80.
+ *   { manufacturerId: 0x004c,
+ *     manufacturerData: new Uint8Array([0x02, 0x15]),
+ *     rssiMin: -80 }
  */
 
 /**
@@ -197,10 +489,18 @@ function getCanonicalUUIDArray(uuidArray)
  * @property {string} name - The device's name, or nil.
  * @property {string} scanRecord - Base64-encoded binary data.
  * Its meaning is device-specific. Not available on iOS.
+ * @property {number} packetCount - Android only. Number of advertisements
+ * merged into this result, set when the scan option coalesceWindow is used.
+ * @property {number} smoothedRssi - Android only. Moving average of the
+ * RSSI, set when the device cache is enabled (see {@link ScanOptions}).
+ * @property {string} event - Android only. "appeared", "changed" or
+ * "disappeared", set when the scan option reportMode is "changes".
+ * Disappeared devices only have the fields address, name, lastSeen and event.
+ * @property {BeaconInfo} beacon - Android only. Set when the scan option
+ * beacons is true.
  * @property {AdvertisementData} advertisementData - Object containing some
- * of the data from the scanRecord. Available natively on iOS. Available on
- * Android by parsing the scanRecord, which is implemented in the library EasyBLE:
- * {@link https://github.com/evothings/evothings-libraries/blob/master/libs/evothings/easyble/easyble.js}.
+ * of the data from the scanRecord. Available natively on iOS and Android
+ * (unless the scan option parseAdvertisementData is set to false).
  */
 
 /**
@@ -226,6 +526,8 @@ function getCanonicalUUIDArray(uuidArray)
  * @property {string} kCBAdvDataManufacturerData - Base-64-encoded binary data.
  * This field is used by BLE devices to advertise custom data that don't fit into
  * any of the other fields.
+ * @property {number} flags - Android only. The value of the advertising
+ * flags AD structure, if present.
  */
 
 /**
@@ -246,6 +548,176 @@ exports.stopScan = function()
 	exec(null, null, 'BLE', 'stopScan', []);
 };
 
+/**
+ * Get counters and timers of the native scan result pipeline. Android only.
+ * Statistics are collected all the time, and are kept between scans.
+ * @param {function} success - Called with a {@link ScanStats} object.
+ * @param {failCallback} fail - Called on error.
+ * @param {object} options - Optional. Set the field reset to true to
+ * reset the statistics after they have been read.
+ * @example
+ *   evothings.ble.getScanStats(
+ *     function(stats) { console.log('Forwarded: ' + stats.forwarded); },
+ *     function(error) { console.log('getScanStats error: ' + error); },
+ *     { reset: true });
+ */
+exports.getScanStats = function(success, fail, options)
+{
+	exec(success, fail, 'BLE', 'getScanStats', [options || {}]);
+};
+
+/**
+ * Statistics of the native scan result pipeline. Times are in milliseconds.
+ * @typedef {Object} ScanStats
+ * @property {number} received - Results received from the Bluetooth stack.
+ * @property {number} filtered - Results dropped by scan filters or beacon regions.
+ * @property {number} unchanged - Results dropped because the device did
+ * not change (reportMode "changes").
+ * @property {number} coalesced - Results merged into another result (coalesceWindow).
+ * @property {number} forwarded - Results sent to JavaScript.
+ * @property {number} callbacks - Callbacks used to send the forwarded results.
+ * @property {number} batches - Batches delivered by the Bluetooth controller (reportDelay).
+ * @property {number} serializeTimeTotal - Time spent creating JSON objects
+ * or binary buffers.
+ * @property {number} serializeTimeAverage - Average serialization time per callback.
+ * @property {number} serializeTimeMax - Longest serialization time of a callback.
+ * @property {number} latencyAverage - Average time from a result being
+ * received to being sent to JavaScript. Includes the coalesce window.
+ * @property {number} latencyMax - Longest time from a result being received
+ * to being sent to JavaScript.
+ * @property {number} since - Time of the last reset, in milliseconds since the epoch.
+ */
+
+/**
+ * Get the state of the native scan scheduler. Android only.
+ * @param {function} success - Called with a {@link ScanState} object.
+ * @param {failCallback} fail - Called on error.
+ * @example
+ *   evothings.ble.getScanState(
+ *     function(state) { console.log('Scan state: ' + state.state); },
+ *     function(error) { console.log('getScanState error: ' + error); });
+ */
+exports.getScanState = function(success, fail)
+{
+	exec(success, fail, 'BLE', 'getScanState', []);
+};
+
+/**
+ * State of the native scan scheduler.
+ * @typedef {Object} ScanState
+ * @property {string} state - "idle" (not scanning), "scanning",
+ * "paused" (between scan windows) or "throttled" (waiting to stay
+ * below the scan start limit).
+ * @property {number} startsInWindow - Scan starts in the last 30 seconds.
+ * @property {number} nextStartAllowedIn - Milliseconds until another scan
+ * start is allowed, 0 if allowed now.
+ * @property {number} startCount - Hardware scan starts of the current scan.
+ * @property {number} restartCount - Transparent restarts of the current scan.
+ * @property {number} throttleCount - Times a start of the current scan
+ * was postponed because of the start limit.
+ * @property {number} scanTime - Milliseconds since the hardware scan
+ * started, when state is "scanning".
+ * @property {number} nextStartDelay - Milliseconds until the hardware scan
+ * starts, when state is "paused" or "throttled".
+ */
+
+/**
+ * Get the devices in the native device table, enabled with the
+ * scan option deviceCacheSize or reportMode. The table is kept
+ * after scanning is stopped, until the next scan is started.
+ * @param {function} success - Called with an array of {@link CachedDeviceInfo}.
+ * @param {failCallback} fail - Called if the device table is not enabled.
+ * @param {ScanFilter} filter - Optional filter for the returned devices.
+ * May also have the field maxAge, to only return devices seen within
+ * this many milliseconds.
+ * @example
+ *   evothings.ble.getScanCache(
+ *     function(devices) { console.log('Nearby devices: ' + devices.length); },
+ *     function(error) { console.log('getScanCache error: ' + error); },
+ *     { rssiMin: -70, maxAge: 5000 });
+ */
+exports.getScanCache = function(success, fail, filter)
+{
+	var args = filter ? [getNativeScanFilters([filter])[0]] : [];
+	exec(success, fail, 'BLE', 'getScanCache', args);
+};
+
+/**
+ * Device in the native device table.
+ * @typedef {Object} CachedDeviceInfo
+ * @property {string} address - The address of the device.
+ * @property {string} name - The device's name, or null.
+ * @property {number} rssi - RSSI of the latest advertisement.
+ * @property {number} smoothedRssi - Moving average of the RSSI.
+ * @property {number} firstSeen - Time the device was first seen, in
+ * milliseconds since the epoch.
+ * @property {number} lastSeen - Time the device was last seen, in
+ * milliseconds since the epoch.
+ * @property {number} packetCount - Number of advertisements received.
+ * @property {string} scanRecord - Base64-encoded latest scan record.
+ * @property {AdvertisementData} advertisementData - Parsed latest scan record.
+ */
+
+/**
+ * Decode binary scan results, sent by the Android implementation
+ * when the scan option binaryResults is set. See the class
+ * BinaryScanResults in BLE.java for a description of the layout.
+ * Returns an array of DeviceInfo objects.
+ * @private
+ */
+function unpackScanResults(buffer, parseAdvertisementData, includeScanRecord)
+{
+	var base64 = cordova.require('cordova/base64');
+	var view = new DataView(buffer);
+	var count = view.getUint16(2, true);
+	var devices = [];
+	var pos = 4;
+	for (var i = 0; i < count; ++i)
+	{
+		var address = [];
+		for (var j = 0; j < 6; ++j)
+		{
+			address.push(('0' + view.getUint8(pos + j).toString(16)).slice(-2));
+		}
+		var nameLength = view.getUint8(pos + 7);
+		var recordLength = view.getUint16(pos + 18, true);
+		var nameStart = pos + 20;
+		var recordStart = nameStart + nameLength;
+
+		var device = {
+			address: address.join(':').toUpperCase(),
+			rssi: view.getInt8(pos + 6),
+			name: nameLength > 0 ?
+				exports.fromUtf8(buffer.slice(nameStart, recordStart)) : null,
+			timestamp: view.getFloat64(pos + 8, true),
+			packetCount: view.getUint16(pos + 16, true)
+		};
+
+		var record = buffer.slice(recordStart, recordStart + recordLength);
+		if (includeScanRecord)
+		{
+			device.scanRecord = base64.fromArrayBuffer(record);
+		}
+		if (parseAdvertisementData)
+		{
+			device.advertisementData = parseScanRecordBytes(new Uint8Array(record));
+		}
+		devices.push(device);
+
+		pos = recordStart + recordLength;
+	}
+	return devices;
+}
+
+/**
+ * Decode binary scan results, used by tests/test.html.
+ * @private
+ */
+exports.unpackScanResults = unpackScanResults;
+
+// Set to the scan record parser in the closure below.
+var parseScanRecordBytes;
+
 // Create closure for parseAdvertisementData and helper functions.
 // TODO: Investigate if the code can be simplified, compare to how
 // how the Evothings Bleat implementation does this.
@@ -262,8 +734,6 @@ var base64;
  */
 exports.parseAdvertisementData = function(device)
 {
-	if (!base64) { base64 = cordova.require('cordova/base64'); }
-
 	// If device object already has advertisementData we
 	// do not need to parse the scanRecord.
 	if (device.advertisementData) { return; }
@@ -271,11 +741,22 @@ exports.parseAdvertisementData = function(device)
 	// Must have scanRecord yo continue.
 	if (!device.scanRecord) { return; }
 
+	device.advertisementData = parseScanRecord(base64DecToArr(device.scanRecord));
+};
+
+/**
+ * Parse the scan record in a Uint8Array that starts at offset 0
+ * of its buffer. Returns an AdvertisementData object.
+ * @private
+ */
+function parseScanRecord(byteArray)
+{
+	if (!base64) { base64 = cordova.require('cordova/base64'); }
+
 	// Here we parse BLE/GAP Scan Response Data.
 	// See the Bluetooth Specification, v4.0, Volume 3, Part C, Section 11,
 	// for details.
 
-	var byteArray = base64DecToArr(device.scanRecord);
 	var pos = 0;
 	var advertisementData = {};
 	var serviceUUIDs;
@@ -405,7 +886,6 @@ exports.parseAdvertisementData = function(device)
 	}
 	advertisementData.kCBAdvDataServiceUUIDs = serviceUUIDs;
 	advertisementData.kCBAdvDataServiceData = serviceData;
-	device.advertisementData = advertisementData;
 
 	/*
 	// Log raw data for debugging purposes.
@@ -414,7 +894,12 @@ exports.parseAdvertisementData = function(device)
 
 	console.log(JSON.stringify(advertisementData));
 	*/
-};
+
+	return advertisementData;
+}
+
+// Make the parser available to unpackScanResults.
+parseScanRecordBytes = parseScanRecord;
 
 /**
  * Decodes a Base64 string. Returns a Uint8Array.
@@ -740,11 +1225,15 @@ exports.unbond = function(device, success, fail)
  * Connect to a remote device. It is recommended that you use the high-level
  * function {evothings.ble.connectToDevice} in place of this function.
  * On Android connect may fail with error 133. If this happens, wait about 500ms
- * and connect again.
+ * and connect again, or use the connectRetries option to retry natively.
  * @param {DeviceInfo} device - Device object from scanCallback (for backwards
  * compatibility, this parameter may also be the address string of the device object).
  * @param {connectCallback} success
  * @param {failCallback} fail
+ * @param {ConnectOptions} options - Optional. Android only: the fields
+ * operationTimeout, mtu, phy, connectionPriority, boostPriority,
+ * connectRetries, connectRetryDelay, persistent and progress are used,
+ * see {@link ConnectOptions}.
  * @example
  * evothings.ble.connect(
  *     device,
@@ -760,12 +1249,20 @@ exports.unbond = function(device, success, fail)
  *         console.log('Connect error: ' + errorCode);
  *     });
  */
-exports.connect = function(deviceOrAddress, success, fail)
+exports.connect = function(deviceOrAddress, success, fail, options)
 {
+	var nativeOptions = getNativeConnectOptions(options);
 	if (typeof deviceOrAddress == 'string')
 	{
 		var address = deviceOrAddress;
-		exec(success, fail, 'BLE', 'connect', [address]);
+		function onAddressSuccess(connectInfo)
+		{
+			if (!isConnectProgress(connectInfo, options))
+			{
+				success(connectInfo);
+			}
+		}
+		exec(onAddressSuccess, fail, 'BLE', 'connect', [address, nativeOptions]);
 	}
 	else
 	if (typeof deviceOrAddress == 'object')
@@ -773,11 +1270,15 @@ exports.connect = function(deviceOrAddress, success, fail)
 		var device = deviceOrAddress;
 		function onSuccess(connectInfo)
 		{
+			if (isConnectProgress(connectInfo, options))
+			{
+				return;
+			}
 			connectInfo.device = device;
 			device.handle = connectInfo.deviceHandle;
 			success(connectInfo);
 		}
-		exec(onSuccess, fail, 'BLE', 'connect', [device.address]);
+		exec(onSuccess, fail, 'BLE', 'connect', [device.address, nativeOptions]);
 	}
 	else
 	{
@@ -785,6 +1286,45 @@ exports.connect = function(deviceOrAddress, success, fail)
 	}
 };
 
+/**
+ * Options for connect handled by the native implementation.
+ * @private
+ */
+function getNativeConnectOptions(options)
+{
+	var nativeOptions = {};
+	var names = [
+		'operationTimeout', 'mtu', 'phy', 'connectionPriority', 'boostPriority',
+		'connectRetries', 'connectRetryDelay', 'persistent'];
+	for (var i = 0; options && i < names.length; ++i)
+	{
+		if (options[names[i]] !== undefined)
+		{
+			nativeOptions[names[i]] = options[names[i]];
+		}
+	}
+	if (options && options.progress)
+	{
+		nativeOptions.reportProgress = true;
+	}
+	return nativeOptions;
+}
+
+/**
+ * Pass connect progress events to the progress callback of the options.
+ * Returns true if connectInfo is such an event.
+ * @private
+ */
+function isConnectProgress(connectInfo, options)
+{
+	if (connectInfo.event === undefined)
+	{
+		return false;
+	}
+	options && options.progress && options.progress(connectInfo);
+	return true;
+}
+
 /**
  * Will be called whenever the device's connection state changes.
  * @callback connectCallback
@@ -800,6 +1340,11 @@ exports.connect = function(deviceOrAddress, success, fail)
  * set the device field.
  * @property {number} deviceHandle - Handle to the device.
  * @property {number} state - One of the {@link module:cordova-plugin-ble.connectionState} keys.
+ * @property {boolean} reconnecting - Android only. Set with STATE_DISCONNECTED
+ * when a persistent connection lost the link and reconnects, see
+ * {@link ConnectOptions}.
+ * @property {boolean} reconnected - Android only. Set with STATE_CONNECTED
+ * when a persistent connection is connected again.
  */
 
 /**
@@ -834,7 +1379,7 @@ exports.connectionState = {
  * to discover and also turn off automatic service discovery by supplying
  * an options parameter.
  * On Android connect may fail with error 133. If this happens, wait about 500ms
- * and connect again.
+ * and connect again, or use the connectRetries option to retry natively.
  * @param {DeviceInfo} device - Device object from {scanCallback}.
  * @param {connectedCallback} connected - Called when connected to the device.
  * @param {disconnectedCallback} disconnected - Called when disconnected from the device.
@@ -879,10 +1424,26 @@ exports.connectToDevice = function(device, connected, disconnected, fail, option
 
 	function onConnectEvent(connectInfo)
 	{
+		if (isConnectProgress(connectInfo, options))
+		{
+			return;
+		}
 		if (connectInfo.state == evothings.ble.connectionState.STATE_CONNECTED)
 		{
 			device.handle = connectInfo.deviceHandle;
-			if (discoverServices)
+			if (discoverServices && !connectInfo.reconnected && options && options.serviceTree)
+			{
+				// Read the whole tree in one call, sets device.services.
+				evothings.ble.serviceTree(
+					device,
+					function serviceTreeSuccess(tree)
+					{
+						connected(device);
+					},
+					fail,
+					{ serviceUUIDs: serviceUUIDs, fingerprint: options.fingerprint });
+			}
+			else if (discoverServices && !connectInfo.reconnected)
 			{
 				// Read services, characteristics and descriptors.
 				// device.services is set by readServiceData to
@@ -912,7 +1473,8 @@ exports.connectToDevice = function(device, connected, disconnected, fail, option
     }
 
     // Connect to device.
-	exec(onConnectEvent, fail, 'BLE', 'connect', [device.address]);
+	exec(onConnectEvent, fail, 'BLE', 'connect',
+		[device.address, getNativeConnectOptions(options)]);
 };
 
 /**
@@ -923,6 +1485,94 @@ exports.connectToDevice = function(device, connected, disconnected, fail, option
  * @property {array} serviceUUIDs - Array with service UUID strings for
  * services to discover (optional). If empty or null, all services are
  * read, this is the default.
+ * @property {boolean} serviceTree - Android only. If true, services are
+ * read with {@link module:cordova-plugin-ble.serviceTree}, in one call
+ * instead of one call per service and characteristic. Default is false.
+ * @property {string} fingerprint - Android only. Firmware fingerprint
+ * passed to serviceTree, see {@link ServiceTreeOptions}.
+ * @property {number} operationTimeout - Android only. Timeout in
+ * milliseconds of GATT operations (service discovery, reads and writes)
+ * on the connection. An operation that does not complete in time fails,
+ * and the next queued operation is started. Set to 0 to disable.
+ * Default is 10000. Can be overridden per call, see {@link OperationOptions}.
+ * @property {number} mtu - Android 5.0 and later only. MTU to request when
+ * connected. The request is run before any other GATT operation, so
+ * service discovery and writeCharacteristicStream use the negotiated MTU.
+ * Default is no request (MTU 23). See {@link module:cordova-plugin-ble.requestMtu}.
+ * @property {number} phy - Android 8.0 and later only. Preferred PHY to
+ * request when connected, a {@link module:cordova-plugin-ble.phyMask} value,
+ * for example PHY_LE_2M_MASK for faster transfers. Default is no request.
+ * @property {number} connectionPriority - Android 5.0 and later only.
+ * Connection priority to request when connected, a
+ * {@link module:cordova-plugin-ble.connectionPriority} value.
+ * Default is no request.
+ * @property {boolean} boostPriority - Android 5.0 and later only. If true,
+ * the connection priority is raised to CONNECTION_PRIORITY_HIGH while an
+ * executeBatch or writeCharacteristicStream call runs, and set back to
+ * connectionPriority (or balanced) when no more operations are queued.
+ * Saves battery compared to keeping the priority high. Default is false.
+ * @property {number} connectRetries - Android only. Number of times to
+ * retry a connection attempt that fails with a transient status, such as
+ * 133. Retries are not reported to the connect callback. Default is 0,
+ * at most 20.
+ * @property {number} connectRetryDelay - Android only. Delay in
+ * milliseconds before the first retry, doubled for each retry up to 8000.
+ * Default is 500.
+ * @property {boolean} persistent - Android only. If true, the connection
+ * reconnects automatically when the link is lost, until close is called.
+ * The device handle stays valid, and so do the service, characteristic and
+ * descriptor handles: services are discovered again after the reconnect,
+ * and the handles are mapped to the new attributes by UUID. Queued
+ * operations wait for the reconnect, the operation in progress fails.
+ * Enabled notifications are enabled again. The connect callback is called
+ * with STATE_DISCONNECTED and reconnecting set when the link is lost, and
+ * with STATE_CONNECTED and reconnected set when it is back; connectToDevice
+ * calls the disconnected and connected callbacks without discovering
+ * services again. Default is false.
+ * @property {function} progress - Android only. Called with a
+ * {@link ConnectProgress} object while connecting.
+ *
+ * <p>On Android, connection attempts are started one at a time, since many
+ * Bluetooth stacks fail with status 133 when several attempts are pending.
+ * To allow more concurrent attempts, add the preference
+ * BLEMaxConcurrentConnects to config.xml.</p>
+ */
+
+/**
+ * Progress of a connection attempt, see {@link ConnectOptions}.
+ * @typedef {Object} ConnectProgress
+ * @property {number} deviceHandle - Handle to the device.
+ * @property {string} event - 'queued' when the attempt waits for other
+ * attempts, 'attempt' when connectGatt is called, 'retry' when an attempt
+ * failed and will be retried.
+ * @property {number} attempt - Number of attempts made so far.
+ * @property {number} queuePosition - Position in the queue of
+ * attempts, 'queued' only.
+ * @property {number} status - Status of the failed attempt, 'retry' only.
+ * @property {number} delay - Milliseconds until the retry, 'retry' only.
+ */
+
+/**
+ * Options for GATT operations.
+ * @typedef {Object} OperationOptions
+ * @property {number} timeout - Android only. Timeout of this operation
+ * in milliseconds, overrides the operationTimeout connect option.
+ * Set to 0 to disable.
+ * @property {string} priority - Android only. Set to 'high' to run the
+ * operation before all queued normal priority operations, for example an
+ * urgent control write while a long list of reads is queued. A running
+ * writeCharacteristicStream yields to high priority operations between
+ * chunks. Default is 'normal'.
+ * @property {boolean} coalesce - Android only. Reads only. If true, and the
+ * last queued operation on the same characteristic or descriptor is a read
+ * that also has this option, no new read is queued and both calls get
+ * the result of the queued read. Useful when polling. Default is false.
+ * @property {boolean} lastWriteWins - Android only. Characteristic writes
+ * only. If true, and the last queued operation on the same characteristic
+ * is a write of the same type that also has this option, the queued write
+ * is given the new value instead of queueing another write, and both calls
+ * get the result of writing the new value. Useful for values set from
+ * sliders. Default is false.
  */
 
 /**
@@ -994,6 +1644,7 @@ exports.rssi = function(deviceOrHandle, success, fail)
  * @param {DeviceInfo} device - Device object or a device handle from {@link connectCallback}.
  * @param {serviceCallback} success - Called with array of {@link Service} objects.
  * @param {failCallback} fail
+ * @param {OperationOptions} options - Optional operation options.
  * @example
  *     evothings.ble.services(
  *     device,
@@ -1014,9 +1665,11 @@ exports.rssi = function(deviceOrHandle, success, fail)
  *       console.log('services error: ' + errorCode);
  *     });
  */
-exports.services = function(deviceOrHandle, success, fail)
+exports.services = function(deviceOrHandle, success, fail, options)
 {
-	exec(success, fail, 'BLE', 'services', [objectHandle(deviceOrHandle)]);
+	exec(success, fail, 'BLE', 'services',
+		[objectHandle(deviceOrHandle),
+		 options || null]);
 };
 
 /**
@@ -1257,12 +1910,18 @@ exports.descriptors = function(deviceOrHandle, characteristicOrHandle, success,
 
 /**
  * Reads a characteristic's value from a remote device.
+ *
+ * Long values are read in full. On Android, the Bluetooth stack reads
+ * values longer than MTU - 1 bytes with a sequence of Read Blob requests,
+ * and the whole value is returned in one call.
+ *
  * @param {DeviceInfo} device - Device object or a device handle from
  * {@link connectCallback}.
  * @param {Characteristic} characteristic - Characteristic object or handle
  * from {@link characteristicCallback}.
  * @param {dataCallback} success
  * @param {failCallback} fail
+ * @param {OperationOptions} options - Optional operation options.
  * @example
  *   evothings.ble.readCharacteristic(
  *     device,
@@ -1276,11 +1935,12 @@ exports.descriptors = function(deviceOrHandle, characteristicOrHandle, success,
  *       console.log('readCharacteristic error: ' + errorCode);
  *     });
  */
-exports.readCharacteristic = function(deviceOrHandle, characteristicOrHandle, success, fail)
+exports.readCharacteristic = function(deviceOrHandle, characteristicOrHandle, success, fail, options)
 {
 	exec(success, fail, 'BLE', 'readCharacteristic',
 		[objectHandle(deviceOrHandle),
-		 objectHandle(characteristicOrHandle)]);
+		 objectHandle(characteristicOrHandle),
+		 options || null]);
 };
 
 /**
@@ -1289,6 +1949,7 @@ exports.readCharacteristic = function(deviceOrHandle, characteristicOrHandle, su
  * @param {Descriptor} descriptor - Descriptor object or handle from {@link descriptorCallback}.
  * @param {dataCallback} success
  * @param {failCallback} fail
+ * @param {OperationOptions} options - Optional operation options.
  * @example
  * evothings.ble.readDescriptor(
  *   device,
@@ -1302,11 +1963,12 @@ exports.readCharacteristic = function(deviceOrHandle, characteristicOrHandle, su
  *     console.log('readDescriptor error: ' + errorCode);
  *   });
  */
-exports.readDescriptor = function(deviceOrHandle, descriptorOrHandle, success, fail)
+exports.readDescriptor = function(deviceOrHandle, descriptorOrHandle, success, fail, options)
 {
 	exec(success, fail, 'BLE', 'readDescriptor',
 		[objectHandle(deviceOrHandle),
-		 objectHandle(descriptorOrHandle)]);
+		 objectHandle(descriptorOrHandle),
+		 options || null]);
 };
 
 /**
@@ -1321,6 +1983,10 @@ exports.readDescriptor = function(deviceOrHandle, descriptorOrHandle, success, f
  * Writes with response, the remote device sends back a confirmation message.
  * This is safe but slower than writing without response.
  *
+ * Long values are written in full. On Android, the Bluetooth stack writes
+ * values longer than MTU - 3 bytes with prepared writes. To write several
+ * values atomically, use {@link module:cordova-plugin-ble.writeReliable}.
+ *
  * @param {DeviceInfo} device - Device object or a device handle from
  * {@link connectCallback}.
  * @param {Characteristic} characteristic - Characteristic object or handle
@@ -1329,14 +1995,16 @@ exports.readDescriptor = function(deviceOrHandle, descriptorOrHandle, success, f
  * @param {emptyCallback} success - Called when the remote device has
  * confirmed the write.
  * @param {failCallback} fail - Called if the operation fails.
+ * @param {OperationOptions} options - Optional operation options.
  * @example TODO: Add example.
  */
-exports.writeCharacteristic = function(deviceOrHandle, characteristicOrHandle, data, success, fail)
+exports.writeCharacteristic = function(deviceOrHandle, characteristicOrHandle, data, success, fail, options)
 {
 	exec(success, fail, 'BLE', 'writeCharacteristic',
 		[objectHandle(deviceOrHandle),
 		 objectHandle(characteristicOrHandle),
-		 data.buffer]);
+		 data.buffer,
+		 options || null]);
 };
 
 /**
@@ -1355,13 +2023,15 @@ exports.writeCharacteristic = function(deviceOrHandle, characteristicOrHandle, d
  * @param {ArrayBufferView} data - The value to be written.
  * @param {emptyCallback} success - Called when the data has been sent.
  * @param {failCallback} fail - Called if the operation fails.
+ * @param {OperationOptions} options - Optional operation options.
  */
-exports.writeCharacteristicWithoutResponse = function(deviceOrHandle, characteristicOrHandle, data, success, fail)
+exports.writeCharacteristicWithoutResponse = function(deviceOrHandle, characteristicOrHandle, data, success, fail, options)
 {
 	exec(success, fail, 'BLE', 'writeCharacteristicWithoutResponse',
 		[objectHandle(deviceOrHandle),
 		 objectHandle(characteristicOrHandle),
-		 data.buffer]);
+		 data.buffer,
+		 options || null]);
 };
 
 /**
@@ -1371,100 +2041,646 @@ exports.writeCharacteristicWithoutResponse = function(deviceOrHandle, characteri
  * @param {ArrayBufferView} data - The value to be written.
  * @param {emptyCallback} success
  * @param {failCallback} fail
+ * @param {OperationOptions} options - Optional operation options.
  * @example TODO: Add example.
  */
-exports.writeDescriptor = function(deviceOrHandle, descriptorOrHandle, data, success, fail)
+exports.writeDescriptor = function(deviceOrHandle, descriptorOrHandle, data, success, fail, options)
 {
 	exec(success, fail, 'BLE', 'writeDescriptor',
 		[objectHandle(deviceOrHandle),
 		 objectHandle(descriptorOrHandle),
-		 data.buffer]);
+		 data.buffer,
+		 options || null]);
 };
 
 /**
- * Request notification or indication on changes to a characteristic's value.
- * This is more efficient than polling the value using readCharacteristic().
- * This function automatically detects if the characteristic supports
- * notification or indication.
- *
- * <p>Android only: To disable this functionality and write
- * the configuration descriptor yourself, supply an options object as
- * last parameter, see example below.</p>
- *
+ * Request a larger ATT MTU for the connection. The request is queued with
+ * other GATT operations. The device may grant a smaller MTU than requested.
+ * The largest value that can be written in a single write is MTU - 3 bytes.
+ * Android 5.0 and later only.
  * @param {DeviceInfo} device - Device object or a device handle from
  * {@link connectCallback}.
- * @param {Characteristic} characteristic - Characteristic object or handle
- * from {@link characteristicCallback}.
- * @param {dataCallback} success - Called every time the value changes.
- * @param {failCallback} fail - Error callback.
- * @param {NotificationOptions} options - Android only: Optional object with options.
- * Set field writeConfigDescriptor to false to disable automatic writing of
- * notification or indication descriptor value. This is useful if full control
- * of writing the config descriptor is needed.
- *
+ * @param {number} mtu - Requested MTU, up to 517.
+ * @param {function} success - Called with the negotiated MTU.
+ * @param {failCallback} fail - Called with the error status if the
+ * request fails.
+ * @param {OperationOptions} options - Optional operation options.
  * @example
- *   // Example call:
- *   evothings.ble.enableNotification(
+ *   evothings.ble.requestMtu(
  *     device,
- *     characteristic,
- *     function(data)
+ *     247,
+ *     function(mtu)
  *     {
- *       console.log('characteristic data: ' + evothings.ble.fromUtf8(data));
+ *       console.log('MTU: ' + mtu + ' max write: ' + (mtu - 3));
  *     },
- *     function(errorCode)
+ *     function(error)
  *     {
- *       console.log('enableNotification error: ' + errorCode);
+ *       console.log('requestMtu error: ' + error);
  *     });
- *
- *   // To disable automatic writing of the config descriptor
- *   // supply this as last parameter to enableNotification:
- *   { writeConfigDescriptor: false }
  */
-exports.enableNotification = function(deviceOrHandle, characteristicOrHandle, success, fail, options)
+exports.requestMtu = function(deviceOrHandle, mtu, success, fail, options)
 {
-	var flags = 0;
-	if (options && (false === options.writeConfigDescriptor))
-	{
-		var flags = 1; // Don't write config descriptor.
-	}
-	exec(success, fail, 'BLE', 'enableNotification',
-		[objectHandle(deviceOrHandle),
-		 objectHandle(characteristicOrHandle),
-		 flags]);
+	exec(success, fail, 'BLE', 'requestMtu',
+		[objectHandle(deviceOrHandle), mtu, options || null]);
 };
 
 /**
- * Disable notification or indication of a characteristic's value.
- *
- * @param {DeviceInfo} device - Device object or a device handle from
- * {@link connectCallback}.
- * @param {Characteristic} characteristic - Characteristic object or handle
- * from {@link characteristicCallback}.
- * @param {emptyCallback} success - Success callback.
- * @param {failCallback} fail - Error callback.
- * @param {NotificationOptions} options - Android only: Optional object with options.
- * Set field writeConfigDescriptor to false to disable automatic writing of
- * notification or indication descriptor value. This is useful if full control
- * of writing the config descriptor is needed.
- *
- * @example
- *   // Example call:
- *   evothings.ble.disableNotification(
- *     device,
- *     characteristic,
- *     function()
- *     {
- *       console.log('characteristic notification disabled');
- *     },
- *     function(errorCode)
- *     {
- *       console.log('disableNotification error: ' + errorCode);
- *     });
- *
- *   // To disable automatic writing of the config descriptor
- *   // supply this as last parameter to enableNotification:
- *   { writeConfigDescriptor: false }
- */
+ * A map describing connection priorities, see {@link
+ * module:cordova-plugin-ble.requestConnectionPriority}.
+ * @alias module:cordova-plugin-ble.connectionPriority
+ * @readonly
+ * @enum
+ */
+exports.connectionPriority = {
+	/** CONNECTION_PRIORITY_BALANCED */
+	0: 'CONNECTION_PRIORITY_BALANCED',
+	/** CONNECTION_PRIORITY_HIGH */
+	1: 'CONNECTION_PRIORITY_HIGH',
+	/** CONNECTION_PRIORITY_LOW_POWER */
+	2: 'CONNECTION_PRIORITY_LOW_POWER',
+
+	/** 0 */
+	'CONNECTION_PRIORITY_BALANCED': 0,
+	/** 1 */
+	'CONNECTION_PRIORITY_HIGH': 1,
+	/** 2 */
+	'CONNECTION_PRIORITY_LOW_POWER': 2,
+};
+
+/**
+ * A map describing the PHYs reported by {@link module:cordova-plugin-ble.readPhy}.
+ * @alias module:cordova-plugin-ble.phy
+ * @readonly
+ * @enum
+ */
+exports.phy = {
+	/** PHY_LE_1M */
+	1: 'PHY_LE_1M',
+	/** PHY_LE_2M */
+	2: 'PHY_LE_2M',
+	/** PHY_LE_CODED */
+	3: 'PHY_LE_CODED',
+
+	/** 1 */
+	'PHY_LE_1M': 1,
+	/** 2 */
+	'PHY_LE_2M': 2,
+	/** 3 */
+	'PHY_LE_CODED': 3,
+};
+
+/**
+ * A map describing the PHY masks used by {@link
+ * module:cordova-plugin-ble.setPreferredPhy}. Masks can be combined.
+ * @alias module:cordova-plugin-ble.phyMask
+ * @readonly
+ * @enum
+ */
+exports.phyMask = {
+	/** PHY_LE_1M_MASK */
+	1: 'PHY_LE_1M_MASK',
+	/** PHY_LE_2M_MASK */
+	2: 'PHY_LE_2M_MASK',
+	/** PHY_LE_CODED_MASK */
+	4: 'PHY_LE_CODED_MASK',
+
+	/** 1 */
+	'PHY_LE_1M_MASK': 1,
+	/** 2 */
+	'PHY_LE_2M_MASK': 2,
+	/** 4 */
+	'PHY_LE_CODED_MASK': 4,
+};
+
+/**
+ * Get the operation counters of a connection. Android only.
+ * @param {DeviceInfo} device - Device object or a device handle from
+ * {@link connectCallback}.
+ * @param {function} success - Called with a {@link ConnectionStats} object.
+ * @param {failCallback} fail
+ */
+exports.getConnectionStats = function(deviceOrHandle, success, fail)
+{
+	exec(success, fail, 'BLE', 'getConnectionStats', [objectHandle(deviceOrHandle)]);
+};
+
+/**
+ * Operation counters of a connection.
+ * @typedef {Object} ConnectionStats
+ * @property {string} state - State of the connection: 'connecting',
+ * 'connected', 'discovering', 'ready' (services discovered),
+ * 'disconnecting', 'disconnected' or 'closed'. Operations called while
+ * connecting are run when connected. Operations called when disconnected
+ * or closed fail at once.
+ * @property {number} queued - Operations waiting in the queue.
+ * @property {number} operationsStarted - Operations started.
+ * @property {number} operationsTimedOut - Operations that timed out.
+ * @property {number} readsCoalesced - Reads that shared the result of
+ * a queued read, see {@link OperationOptions}.
+ * @property {number} writesCoalesced - Writes merged into a queued write.
+ * @property {number} mtu - Current ATT MTU.
+ * @property {string} threadMode - Thread mode set with the config.xml
+ * preference BLEThreadMode: 'ui', 'shared' or 'connection'.
+ * @property {number} dispatchLatencyAverage - Average time in milliseconds
+ * from queueing an operation on its thread to the start of the GATT call.
+ * High values mean that the thread is busy, for example with UI work.
+ * @property {number} dispatchLatencyMax - Maximum of the same time.
+ */
+
+/**
+ * Request a connection priority. A high priority gives a shorter
+ * connection interval and higher throughput, at the cost of battery.
+ * If the connect option boostPriority is used, the priority is applied
+ * when the boost ends. Android 5.0 and later only.
+ * @param {DeviceInfo} device - Device object or a device handle from
+ * {@link connectCallback}.
+ * @param {number} priority - A {@link module:cordova-plugin-ble.connectionPriority} value.
+ * @param {emptyCallback} success
+ * @param {failCallback} fail
+ */
+exports.requestConnectionPriority = function(deviceOrHandle, priority, success, fail)
+{
+	exec(success, fail, 'BLE', 'requestConnectionPriority',
+		[objectHandle(deviceOrHandle), priority]);
+};
+
+/**
+ * Set the preferred PHYs of the connection. The request is queued with
+ * other GATT operations. The device may choose other PHYs than the
+ * preferred ones. Android 8.0 and later only.
+ * @param {DeviceInfo} device - Device object or a device handle from
+ * {@link connectCallback}.
+ * @param {number} txPhy - Transmit {@link module:cordova-plugin-ble.phyMask}.
+ * @param {number} rxPhy - Receive {@link module:cordova-plugin-ble.phyMask}.
+ * @param {function} success - Called with a {@link PhyInfo} object with
+ * the PHYs in use.
+ * @param {failCallback} fail - Called with the error status if the
+ * request fails.
+ * @param {OperationOptions} options - Optional operation options. The field
+ * phyOptions sets the coding for LE Coded: 0 no preference, 1 S=2, 2 S=8.
+ * @example
+ *   evothings.ble.setPreferredPhy(
+ *     device,
+ *     evothings.ble.phyMask.PHY_LE_2M_MASK,
+ *     evothings.ble.phyMask.PHY_LE_2M_MASK,
+ *     function(info)
+ *     {
+ *       console.log('TX PHY: ' + evothings.ble.phy[info.txPhy]);
+ *     },
+ *     function(error)
+ *     {
+ *       console.log('setPreferredPhy error: ' + error);
+ *     });
+ */
+exports.setPreferredPhy = function(deviceOrHandle, txPhy, rxPhy, success, fail, options)
+{
+	exec(success, fail, 'BLE', 'setPreferredPhy',
+		[objectHandle(deviceOrHandle), txPhy, rxPhy, options || null]);
+};
+
+/**
+ * Read the PHYs in use on the connection. Android 8.0 and later only.
+ * @param {DeviceInfo} device - Device object or a device handle from
+ * {@link connectCallback}.
+ * @param {function} success - Called with a {@link PhyInfo} object.
+ * @param {failCallback} fail
+ * @param {OperationOptions} options - Optional operation options.
+ */
+exports.readPhy = function(deviceOrHandle, success, fail, options)
+{
+	exec(success, fail, 'BLE', 'readPhy',
+		[objectHandle(deviceOrHandle), options || null]);
+};
+
+/**
+ * PHYs of a connection.
+ * @typedef {Object} PhyInfo
+ * @property {number} txPhy - Transmit {@link module:cordova-plugin-ble.phy}.
+ * @property {number} rxPhy - Receive {@link module:cordova-plugin-ble.phy}.
+ */
+
+/**
+ * Get the current ATT MTU of the connection. This is 23 unless a larger
+ * MTU has been negotiated. Android only.
+ * @param {DeviceInfo} device - Device object or a device handle from
+ * {@link connectCallback}.
+ * @param {function} success - Called with the MTU.
+ * @param {failCallback} fail
+ */
+exports.getMtu = function(deviceOrHandle, success, fail)
+{
+	exec(success, fail, 'BLE', 'getMtu', [objectHandle(deviceOrHandle)]);
+};
+
+/**
+ * Write a large value to a characteristic in chunks. Chunking and pacing
+ * are done natively: each chunk is written when the Bluetooth stack has
+ * accepted the previous one, and writes are retried with back-off when the
+ * stack is busy. Chunks are written without response, unless the options
+ * withResponse or checkpointInterval are used. Android only.
+ * @param {DeviceInfo} device - Device object or a device handle from
+ * {@link connectCallback}.
+ * @param {Characteristic} characteristic - Characteristic object or handle
+ * from {@link characteristicCallback}.
+ * @param {ArrayBufferView} data - The data to write.
+ * @param {function} success - Called with a {@link StreamProgress} object
+ * when all data has been written.
+ * @param {failCallback} fail - Called if the write fails.
+ * @param {StreamOptions} options - Optional stream options.
+ * @example
+ *   evothings.ble.writeCharacteristicStream(
+ *     device,
+ *     characteristic,
+ *     firmwareImage,
+ *     function(result)
+ *     {
+ *       console.log('Sent ' + result.bytesSent + ' bytes at '
+ *         + Math.round(result.throughput) + ' bytes/s');
+ *     },
+ *     function(error)
+ *     {
+ *       console.log('writeCharacteristicStream error: ' + error);
+ *     },
+ *     {
+ *       checkpointInterval: 100,
+ *       progress: function(info)
+ *       {
+ *         console.log('Progress: ' + info.bytesSent + '/' + info.totalBytes);
+ *       }
+ *     });
+ */
+exports.writeCharacteristicStream = function(deviceOrHandle, characteristicOrHandle, data, success, fail, options)
+{
+	var progress = options && options.progress;
+	var nativeOptions = {};
+	if (options)
+	{
+		var names = [
+			'chunkSize', 'withResponse', 'checkpointInterval', 'progressInterval',
+			'timeout', 'priority'];
+		for (var i = 0; i < names.length; ++i)
+		{
+			if (options[names[i]] !== undefined)
+			{
+				nativeOptions[names[i]] = options[names[i]];
+			}
+		}
+	}
+
+	function onSuccess(info)
+	{
+		if (info.event == 'progress')
+		{
+			progress && progress(info);
+		}
+		else
+		{
+			success(info);
+		}
+	}
+
+	exec(onSuccess, fail, 'BLE', 'writeCharacteristicStream',
+		[objectHandle(deviceOrHandle),
+		 objectHandle(characteristicOrHandle),
+		 data.buffer ? data.buffer : data,
+		 nativeOptions]);
+};
+
+/**
+ * Options for writeCharacteristicStream.
+ * @typedef {Object} StreamOptions
+ * @property {number} chunkSize - Chunk size in bytes. Default is the
+ * payload size of the negotiated MTU (MTU - 3).
+ * @property {boolean} withResponse - Set to true to write all chunks with
+ * response. Default is false.
+ * @property {number} checkpointInterval - Write every N:th chunk, and the
+ * last chunk, with response. This makes sure the remote device keeps up,
+ * at a small cost in throughput. Default is 0 (no checkpoints).
+ * @property {number} progressInterval - Minimum time in milliseconds
+ * between progress events. Default is 250.
+ * @property {function} progress - Called with a {@link StreamProgress}
+ * object during the write.
+ * @property {number} timeout - Timeout in milliseconds for each chunk,
+ * see {@link OperationOptions}.
+ */
+
+/**
+ * Progress of writeCharacteristicStream.
+ * @typedef {Object} StreamProgress
+ * @property {string} event - "progress" or "done".
+ * @property {number} bytesSent - Bytes written so far.
+ * @property {number} totalBytes - Total bytes to write.
+ * @property {number} chunks - Chunks written so far.
+ * @property {number} busyRetries - Writes retried because the Bluetooth
+ * stack was busy.
+ * @property {number} yields - Times the stream paused to let high priority
+ * operations run.
+ * @property {number} duration - Milliseconds since the write started.
+ * @property {number} throughput - Average throughput in bytes per second.
+ */
+
+/**
+ * Write one or more characteristic values as a reliable write transaction.
+ * The values are sent as prepared writes and are committed together when
+ * all have been accepted. If any write fails the transaction is aborted
+ * and no value is changed on the remote device. The value echoed by the
+ * remote device for each prepared write is compared with the value sent,
+ * and the transaction is aborted on a mismatch. The whole transaction is
+ * one queued operation. Android only.
+ * @param {DeviceInfo} device - Device object or a device handle from
+ * {@link connectCallback}.
+ * @param {array} writes - Array of objects with the fields characteristic
+ * (characteristic object or handle) and data (ArrayBufferView or ArrayBuffer).
+ * @param {emptyCallback} success - Called when the transaction has been
+ * executed by the remote device.
+ * @param {failCallback} fail - Called if the transaction fails or is aborted.
+ * @param {OperationOptions} options - Optional operation options. The
+ * timeout applies to the whole transaction.
+ * @example
+ *   evothings.ble.writeReliable(
+ *     device,
+ *     [
+ *       { characteristic: configCharacteristic, data: configBlob },
+ *       { characteristic: commitCharacteristic, data: new Uint8Array([1]) }
+ *     ],
+ *     function()
+ *     {
+ *       console.log('Configuration written');
+ *     },
+ *     function(error)
+ *     {
+ *       console.log('writeReliable error: ' + error);
+ *     });
+ */
+exports.writeReliable = function(deviceOrHandle, writes, success, fail, options)
+{
+	var base64 = cordova.require('cordova/base64');
+
+	var nativeWrites = [];
+	for (var i = 0; i < writes.length; ++i)
+	{
+		var data = writes[i].data;
+		nativeWrites.push({
+			handle: objectHandle(writes[i].characteristic),
+			data: base64.fromArrayBuffer(data.buffer ? data.buffer : data)
+		});
+	}
+
+	exec(success, fail, 'BLE', 'writeReliable',
+		[objectHandle(deviceOrHandle), nativeWrites, options || null]);
+};
+
+/**
+ * Run many reads and writes on a device with one call. The operations
+ * are queued together and run back to back, without returning to
+ * JavaScript in between. Android only.
+ * @param {DeviceInfo} device - Device object or a device handle from
+ * {@link connectCallback}.
+ * @param {array} operations - Array of {@link BatchOperation} objects.
+ * @param {function} success - Called with an array of
+ * {@link BatchResult} objects, one for each operation, in order.
+ * @param {failCallback} fail - Called if the batch is invalid, in which
+ * case no operation is run.
+ * @param {object} options - Optional. Set the field stopOnError to true
+ * to skip the remaining operations when an operation fails. Set the field
+ * priority to 'high' to queue the batch as high priority operations.
+ * @example
+ *   evothings.ble.executeBatch(
+ *     device,
+ *     [
+ *       { type: 'readCharacteristic', characteristic: modelCharacteristic },
+ *       { type: 'writeCharacteristic', characteristic: configCharacteristic,
+ *         data: new Uint8Array([1]) }
+ *     ],
+ *     function(results)
+ *     {
+ *       console.log('model: ' + evothings.ble.fromUtf8(results[0].data));
+ *     },
+ *     function(error)
+ *     {
+ *       console.log('executeBatch error: ' + error);
+ *     },
+ *     { stopOnError: true });
+ */
+exports.executeBatch = function(deviceOrHandle, operations, success, fail, options)
+{
+	var base64 = cordova.require('cordova/base64');
+
+	var nativeOperations = [];
+	for (var i = 0; i < operations.length; ++i)
+	{
+		var op = operations[i];
+		var nativeOp = {
+			type: op.type,
+			handle: objectHandle(op.characteristic || op.descriptor)
+		};
+		if (op.data)
+		{
+			nativeOp.data = base64.fromArrayBuffer(op.data.buffer ? op.data.buffer : op.data);
+		}
+		if (op.timeout !== undefined)
+		{
+			nativeOp.timeout = op.timeout;
+		}
+		nativeOperations.push(nativeOp);
+	}
+
+	function onSuccess(results)
+	{
+		for (var i = 0; i < results.length; ++i)
+		{
+			if (results[i].data !== undefined)
+			{
+				results[i].data = base64.toArrayBuffer(results[i].data);
+			}
+		}
+		success(results);
+	}
+
+	exec(onSuccess, fail, 'BLE', 'executeBatch',
+		[objectHandle(deviceOrHandle),
+		 nativeOperations,
+		 options || null]);
+};
+
+/**
+ * Operation for executeBatch.
+ * @typedef {Object} BatchOperation
+ * @property {string} type - "readCharacteristic", "writeCharacteristic",
+ * "writeCharacteristicWithoutResponse", "readDescriptor" or "writeDescriptor".
+ * @property {Characteristic} characteristic - Characteristic object or
+ * handle, for characteristic operations.
+ * @property {Descriptor} descriptor - Descriptor object or handle, for
+ * descriptor operations.
+ * @property {ArrayBufferView} data - The value to write, for write operations.
+ * @property {number} timeout - Optional timeout of the operation in
+ * milliseconds, see {@link OperationOptions}.
+ */
+
+/**
+ * Result of an operation run by executeBatch.
+ * @typedef {Object} BatchResult
+ * @property {string} status - "ok", "error", or "skipped" when a previous
+ * operation failed and the option stopOnError was set.
+ * @property {ArrayBuffer} data - The value read, for successful read operations.
+ * @property {string|number} error - Error message or GATT status code,
+ * when status is "error".
+ */
+
+/**
+ * Request notification or indication on changes to a characteristic's value.
+ * This is more efficient than polling the value using readCharacteristic().
+ * This function automatically detects if the characteristic supports
+ * notification or indication.
+ *
+ * <p>Android only: To disable this functionality and write
+ * the configuration descriptor yourself, supply an options object as
+ * last parameter, see example below.</p>
+ *
+ * @param {DeviceInfo} device - Device object or a device handle from
+ * {@link connectCallback}.
+ * @param {Characteristic} characteristic - Characteristic object or handle
+ * from {@link characteristicCallback}.
+ * @param {dataCallback} success - Called every time the value changes.
+ * If the batch option is used, called with an array of
+ * {@link NotificationPacket} objects for each batch. If the buffer option
+ * is used, called with a {@link NotificationSignal} object when data is
+ * available to read with {@link module:cordova-plugin-ble.readNotifications}.
+ * @param {failCallback} fail - Error callback.
+ * @param {NotificationOptions} options - Android only: Optional object with options.
+ * Set field writeConfigDescriptor to false to disable automatic writing of
+ * notification or indication descriptor value. This is useful if full control
+ * of writing the config descriptor is needed. Set field batch to deliver
+ * notifications in batches, see {@link NotificationBatchOptions}. Set field
+ * buffer to keep notifications in a bounded native buffer that is read on
+ * demand, see {@link NotificationBufferOptions}.
+ *
+ * @example
+ *   // Example call:
+ *   evothings.ble.enableNotification(
+ *     device,
+ *     characteristic,
+ *     function(data)
+ *     {
+ *       console.log('characteristic data: ' + evothings.ble.fromUtf8(data));
+ *     },
+ *     function(errorCode)
+ *     {
+ *       console.log('enableNotification error: ' + errorCode);
+ *     });
+ *
+ *   // To disable automatic writing of the config descriptor
+ *   // supply this as last parameter to enableNotification:
+ *   { writeConfigDescriptor: false }
+ *
+ *   // Batched notifications from a high rate sensor:
+ *   evothings.ble.enableNotification(
+ *     device,
+ *     characteristic,
+ *     function(packets)
+ *     {
+ *       for (var i = 0; i < packets.length; ++i)
+ *       {
+ *         handleSample(packets[i].timestamp, new Uint8Array(packets[i].data));
+ *       }
+ *     },
+ *     function(errorCode)
+ *     {
+ *       console.log('enableNotification error: ' + errorCode);
+ *     },
+ *     { batch: { maxPackets: 20, maxDelay: 100 } });
+ */
+exports.enableNotification = function(deviceOrHandle, characteristicOrHandle, success, fail, options)
+{
+	var flags = 0;
+	if (options && (false === options.writeConfigDescriptor))
+	{
+		var flags = 1; // Don't write config descriptor.
+	}
+	var nativeOptions = {};
+	var onSuccess = success;
+	if (options && options.priority)
+	{
+		nativeOptions.priority = options.priority;
+	}
+	if (options && options.buffer)
+	{
+		nativeOptions.buffer = options.buffer;
+	}
+	else if (options && options.batch && cordova.platformId == 'android')
+	{
+		// Only the Android implementation sends batches.
+		nativeOptions.batch = options.batch;
+		onSuccess = function(buffer)
+		{
+			success(unpackNotifications(buffer));
+		};
+	}
+	exec(onSuccess, fail, 'BLE', 'enableNotification',
+		[objectHandle(deviceOrHandle),
+		 objectHandle(characteristicOrHandle),
+		 flags,
+		 nativeOptions]);
+};
+
+/**
+ * Unpack a buffer of batched notifications, see the native
+ * NotificationSubscription class for the format.
+ * @private
+ */
+function unpackNotifications(buffer)
+{
+	var view = new DataView(buffer);
+	var firstTime = view.getFloat64(0, true);
+	var count = view.getUint16(8, true);
+	var packets = [];
+	var offset = 10;
+	for (var i = 0; i < count; ++i)
+	{
+		var time = view.getUint32(offset, true);
+		var length = view.getUint16(offset + 4, true);
+		offset += 6;
+		packets.push({
+			timestamp: firstTime + time,
+			data: buffer.slice(offset, offset + length)
+		});
+		offset += length;
+	}
+	return packets;
+}
+
+/**
+ * Disable notification or indication of a characteristic's value.
+ *
+ * @param {DeviceInfo} device - Device object or a device handle from
+ * {@link connectCallback}.
+ * @param {Characteristic} characteristic - Characteristic object or handle
+ * from {@link characteristicCallback}.
+ * @param {emptyCallback} success - Success callback.
+ * @param {failCallback} fail - Error callback.
+ * @param {NotificationOptions} options - Android only: Optional object with options.
+ * Set field writeConfigDescriptor to false to disable automatic writing of
+ * notification or indication descriptor value. This is useful if full control
+ * of writing the config descriptor is needed.
+ *
+ * @example
+ *   // Example call:
+ *   evothings.ble.disableNotification(
+ *     device,
+ *     characteristic,
+ *     function()
+ *     {
+ *       console.log('characteristic notification disabled');
+ *     },
+ *     function(errorCode)
+ *     {
+ *       console.log('disableNotification error: ' + errorCode);
+ *     });
+ *
+ *   // To disable automatic writing of the config descriptor
+ *   // supply this as last parameter to enableNotification:
+ *   { writeConfigDescriptor: false }
+ */
 exports.disableNotification = function(deviceOrHandle, characteristicOrHandle, success, fail, options) {
 	var flags = 0;
 	if (options && (false === options.writeConfigDescriptor))
@@ -1474,7 +2690,8 @@ exports.disableNotification = function(deviceOrHandle, characteristicOrHandle, s
 	exec(success, fail, 'BLE', 'disableNotification',
 		[objectHandle(deviceOrHandle),
 		 objectHandle(characteristicOrHandle),
-		 flags]);
+		 flags,
+		 (options && options.priority) ? { priority: options.priority } : null]);
 };
 
 /**
@@ -1483,6 +2700,125 @@ exports.disableNotification = function(deviceOrHandle, characteristicOrHandle, s
  * @property {boolean} writeConfigDescriptor - set to false to disable
  * automatic writing of the notification or indication descriptor.
  * This is useful if full control of writing the config descriptor is needed.
+ * @property {string} priority - Android only. Set to 'high' to queue the
+ * config descriptor write as a high priority operation,
+ * see {@link OperationOptions}.
+ * @property {NotificationBatchOptions} batch - Android only. Deliver
+ * notifications in batches, for high notification rates. Used by
+ * enableNotification only. Ignored on other platforms, where the success
+ * callback gets one value per notification.
+ * @property {NotificationBufferOptions} buffer - Android only. Keep
+ * notifications in a bounded native buffer and read them with
+ * readNotifications. Overrides batch. Used by enableNotification only.
+ */
+
+/**
+ * Options for buffered notifications. Notifications are kept in a native
+ * ring buffer until read with {@link module:cordova-plugin-ble.readNotifications},
+ * so memory use is bounded also when JavaScript falls behind.
+ * @typedef {Object} NotificationBufferOptions
+ * @property {number} capacity - Maximum number of buffered notifications.
+ * Default is 256, at most 65535.
+ * @property {string} overflow - What to do when the buffer is full:
+ * 'dropOldest' discards the oldest notification, 'dropNewest' discards the
+ * new notification, 'block' discards new notifications and signals the
+ * 'full' event until the buffer is read. Default is 'dropOldest'.
+ */
+
+/**
+ * Sent to the enableNotification success callback in buffered mode.
+ * The 'available' event is sent once when notifications arrive after the
+ * buffer has been read, and the 'full' event once when the buffer
+ * overflows with the overflow policy 'block'.
+ * @typedef {Object} NotificationSignal
+ * @property {string} event - 'available' or 'full'.
+ * @property {number} received - Notifications received.
+ * @property {number} delivered - Notifications delivered to JavaScript.
+ * @property {number} dropped - Notifications dropped on overflow.
+ * @property {number} buffered - Notifications waiting to be read.
+ * @property {number} capacity - Buffer capacity.
+ */
+
+/**
+ * Read buffered notifications of a characteristic. Notification must have
+ * been enabled with the buffer option. Android only.
+ * @param {DeviceInfo} device - Device object or a device handle from
+ * {@link connectCallback}.
+ * @param {Characteristic} characteristic - Characteristic object or handle
+ * from {@link characteristicCallback}.
+ * @param {number} max - Maximum number of notifications to read,
+ * 0 reads all.
+ * @param {function} success - Called with an array of
+ * {@link NotificationPacket} objects, oldest first.
+ * @param {failCallback} fail
+ * @example
+ *   evothings.ble.enableNotification(
+ *     device,
+ *     characteristic,
+ *     function(signal)
+ *     {
+ *       evothings.ble.readNotifications(device, characteristic, 0,
+ *         function(packets) { handlePackets(packets); },
+ *         function(error) { console.log('readNotifications error: ' + error); });
+ *     },
+ *     function(error)
+ *     {
+ *       console.log('enableNotification error: ' + error);
+ *     },
+ *     { buffer: { capacity: 1000, overflow: 'dropOldest' } });
+ */
+exports.readNotifications = function(deviceOrHandle, characteristicOrHandle, max, success, fail)
+{
+	exec(
+		function(buffer)
+		{
+			success(unpackNotifications(buffer));
+		},
+		fail,
+		'BLE',
+		'readNotifications',
+		[objectHandle(deviceOrHandle),
+		 objectHandle(characteristicOrHandle),
+		 max || 0]);
+};
+
+/**
+ * Get the notification counters of a characteristic, for example to
+ * know if notifications have been dropped. Android only.
+ * @param {DeviceInfo} device - Device object or a device handle from
+ * {@link connectCallback}.
+ * @param {Characteristic} characteristic - Characteristic object or handle
+ * from {@link characteristicCallback}.
+ * @param {function} success - Called with a {@link NotificationSignal}
+ * object without the event field.
+ * @param {failCallback} fail
+ */
+exports.getNotificationStats = function(deviceOrHandle, characteristicOrHandle, success, fail)
+{
+	exec(success, fail, 'BLE', 'getNotificationStats',
+		[objectHandle(deviceOrHandle),
+		 objectHandle(characteristicOrHandle)]);
+};
+
+/**
+ * Options for batched notifications. A batch is sent when any limit is
+ * reached. For example, a 200 Hz sensor with maxPackets 20 gives 10
+ * callbacks per second.
+ * @typedef {Object} NotificationBatchOptions
+ * @property {number} maxPackets - Maximum number of notifications in
+ * a batch. Default is 20, at most 65535.
+ * @property {number} maxDelay - Maximum time in milliseconds a
+ * notification is held before its batch is sent. Default is 100.
+ * @property {number} maxBytes - Batch size in bytes at which the batch
+ * is sent. Each notification takes its length plus 6 bytes. Default is 4096.
+ */
+
+/**
+ * A notification delivered in a batch.
+ * @typedef {Object} NotificationPacket
+ * @property {number} timestamp - Time the notification was received, in
+ * milliseconds since 1970 (as Date.now()).
+ * @property {ArrayBuffer} data - The characteristic value.
  */
 
 /**
@@ -1498,6 +2834,133 @@ exports.testCharConversion = function(i, success)
 	exec(success, null, 'BLE', 'testCharConversion', [i]);
 };
 
+/**
+ * Parse a scan record with the native parsers. Android only, used by
+ * tests/test.html.
+ * @param {string} scanRecord - Base64 encoded scan record.
+ * @param {function} success - Called with an object with the field
+ * advertisementData, an {@link AdvertisementData} object, and the field
+ * beacon if the record holds a beacon frame.
+ * @param {failCallback} fail - Error callback.
+ * @private
+ */
+exports.testParseScanRecord = function(scanRecord, success, fail)
+{
+	exec(success, fail, 'BLE', 'testParseScanRecord', [scanRecord]);
+};
+
+/**
+ * Apply a native scan filter to a scan record. Android only, used by
+ * tests/test.html.
+ * @param {ScanFilter} filter - Scan filter, as given to startScan.
+ * @param {string} scanRecord - Base64 encoded scan record.
+ * @param {number} rssi - RSSI of the scan result.
+ * @param {string} address - Address of the device.
+ * @param {function} success - Called with an object with the boolean
+ * field matches.
+ * @param {failCallback} fail - Error callback, called if the filter
+ * is invalid.
+ * @private
+ */
+exports.testScanFilter = function(filter, scanRecord, rssi, address, success, fail)
+{
+	exec(success, fail, 'BLE', 'testScanFilter',
+		[getNativeScanFilters([filter])[0], scanRecord, rssi, address]);
+};
+
+/**
+ * Run scan results through the native single result send path.
+ * Android only, used by tests/test.html.
+ * @param {number} count - Number of results.
+ * @param {string} scanRecord - Base64 encoded scan record.
+ * @param {string} address - Address of the device.
+ * @param {function} success - Called with an object with the fields
+ * results, entriesAllocated (scan result entries allocated by the pool),
+ * matchesListPack (true if the packed result equals packing a list of one
+ * result) and nanosPerResult.
+ * @param {failCallback} fail - Error callback.
+ * @private
+ */
+exports.testScanAllocations = function(count, scanRecord, address, success, fail)
+{
+	exec(success, fail, 'BLE', 'testScanAllocations', [count, scanRecord, address]);
+};
+
+/**
+ * Pack scan results in the native scan result formats. Android only,
+ * used by tests/test.html.
+ * @param {Array} results - Array of objects with the fields address,
+ * rssi, scanRecord (base64 encoded), timestamp and packetCount.
+ * @param {number} repeat - Number of times the results are repeated.
+ * @param {boolean} binary - If true the results are packed in binary
+ * format, otherwise sent as a JSON array.
+ * @param {function} success - Called with an ArrayBuffer in binary
+ * format, otherwise with an array of {@link DeviceInfo} objects.
+ * @param {failCallback} fail - Error callback.
+ * @private
+ */
+exports.testPackScanResults = function(results, repeat, binary, success, fail)
+{
+	exec(success, fail, 'BLE', 'testPackScanResults', [results, repeat, binary]);
+};
+
+/**
+ * Stress test the operation queue of connections. Android only, used by
+ * tests/test.html. Needs no device.
+ * @param {number} threads - Number of threads queueing operations, and
+ * of threads injecting the callbacks that complete them.
+ * @param {number} count - Number of operations queued by each thread.
+ * @param {function} success - Called with an object with the fields
+ * enqueued, completed, lost, duplicates, errors, overlaps (operations
+ * started while another was running), queued and operationsPerSecond.
+ * @param {failCallback} fail - Error callback.
+ * @private
+ */
+exports.testOperationQueue = function(threads, count, success, fail)
+{
+	exec(success, fail, 'BLE', 'testOperationQueue', [threads, count]);
+};
+
+/**
+ * Run a fixed sequence of scan results and sweeps through a native
+ * device cache. Android only, used by tests/test.html.
+ * @param {object} options - The device cache options of startScan:
+ * deviceCacheSize, deviceCacheMaxAge, rssiSmoothingFactor and
+ * rssiChangeThreshold.
+ * @param {Array} steps - Scan results, objects with the fields address,
+ * rssi, scanRecord (base64 encoded) and time, or sweeps of old devices,
+ * objects with the field sweep, the time of the sweep.
+ * @param {function} success - Called with an object with the field
+ * steps, which holds event and smoothedRssi for each scan result and
+ * disappeared (an array of addresses) for each sweep, and the field
+ * devices, the cached addresses from least to most recently seen.
+ * @param {failCallback} fail - Error callback.
+ * @private
+ */
+exports.testScanDeviceCache = function(options, steps, success, fail)
+{
+	exec(success, fail, 'BLE', 'testScanDeviceCache', [options, steps]);
+};
+
+/**
+ * Measure the dispatch latency of operations while the UI thread is
+ * busy. Android only, used by tests/test.html. Needs no device.
+ * @param {string} threadMode - Thread mode of the test connection,
+ * 'ui', 'shared' or 'connection', see the BLEThreadMode preference.
+ * @param {number} busyMillis - The UI thread is kept busy this long
+ * at a time during the test.
+ * @param {number} count - Number of reads.
+ * @param {function} success - Called with the {@link ConnectionStats}
+ * of the test connection, with the additional fields busyMillis and
+ * completed (false if the reads did not finish in time).
+ * @param {failCallback} fail - Error callback.
+ * @private
+ */
+exports.testDispatchLatency = function(threadMode, busyMillis, count, success, fail)
+{
+	exec(success, fail, 'BLE', 'testDispatchLatency', [threadMode, busyMillis, count]);
+};
+
 /**
  * Resets the device's Bluetooth system.
  * This is useful on some buggy devices where BLE functions stops responding until reset.
@@ -1748,6 +3211,150 @@ exports.readServiceData = function(deviceOrHandle, success, fail, options)
 		});
 };
 
+/**
+ * Options for serviceTree.
+ * @typedef {Object} ServiceTreeOptions
+ * @property {array} serviceUUIDs - Array with service UUID strings for
+ * services to return (optional). If absent or null, all services are
+ * returned, this is the default.
+ * @property {string} fingerprint - Identifies the firmware of the
+ * device, for example its firmware revision string (optional). A cache
+ * entry stored with another fingerprint is not a hit.
+ * @property {number} timeout - Timeout in milliseconds of the service
+ * discovery, see {@link OperationOptions}.
+ */
+
+/**
+ * Result of serviceTree.
+ * @typedef {Object} ServiceTree
+ * @property {array} services - Array of {@link Service} objects, with
+ * characteristics and descriptors, as from readServiceData.
+ * @property {string} cache - 'hit' if the attribute tree of the device
+ * is the same as the last time, 'miss' if it was not seen before (or
+ * had another fingerprint), 'changed' if it is different.
+ * @property {number} discoveryTime - Service discovery time in milliseconds.
+ */
+
+/**
+ * Discover services, and return them with their characteristics and
+ * descriptors in one call. Faster than readServiceData, which makes one
+ * call per service and characteristic. Android only.
+ *
+ * The attribute tree of each device is stored in a file in app storage.
+ * Android cannot use attributes without discovering them, so service
+ * discovery is run every time, but the cache field of the result tells
+ * if the device has the same attributes as the last time, so apps can
+ * reuse data derived from them. On Android 12 and later, a Service
+ * Changed indication from the device invalidates its cache entry, and
+ * services are then discovered again; existing handles are mapped to
+ * the new attributes. Earlier Android versions handle Service Changed
+ * in the stack without telling apps, there a changed device is found
+ * when its attributes do not match the cache entry.
+ *
+ * @param {DeviceInfo} device - Device object or device handle
+ * from {@link connectCallback}. If a device object is given, its
+ * services field is set.
+ * @param {function} success - Called with a {@link ServiceTree} object.
+ * @param {failCallback} fail - Error callback.
+ * @param {ServiceTreeOptions} options - Optional.
+ * @example
+ * evothings.ble.serviceTree(
+ *     device,
+ *     function(tree)
+ *     {
+ *         console.log('Services: ' + tree.services.length
+ *             + ' cache: ' + tree.cache);
+ *     },
+ *     function(error)
+ *     {
+ *         console.log('serviceTree error: ' + error);
+ *     },
+ *     { fingerprint: firmwareRevision });
+ */
+exports.serviceTree = function(deviceOrHandle, success, fail, options)
+{
+	var nativeOptions = {};
+	if (options && Array.isArray(options.serviceUUIDs))
+	{
+		nativeOptions.serviceUUIDs = getCanonicalUUIDArray(options.serviceUUIDs);
+	}
+	if (options && options.fingerprint !== undefined)
+	{
+		nativeOptions.fingerprint = String(options.fingerprint);
+	}
+	if (options && options.timeout !== undefined)
+	{
+		nativeOptions.timeout = options.timeout;
+	}
+
+	function onSuccess(tree)
+	{
+		for (var i = 0; i < tree.services.length; ++i)
+		{
+			var service = tree.services[i];
+			service.uuid = exports.getCanonicalUUID(service.uuid);
+			for (var j = 0; j < service.characteristics.length; ++j)
+			{
+				var characteristic = service.characteristics[j];
+				characteristic.uuid = exports.getCanonicalUUID(characteristic.uuid);
+				for (var k = 0; k < characteristic.descriptors.length; ++k)
+				{
+					var descriptor = characteristic.descriptors[k];
+					descriptor.uuid = exports.getCanonicalUUID(descriptor.uuid);
+				}
+			}
+		}
+		if (typeof deviceOrHandle == 'object')
+		{
+			deviceOrHandle.services = tree.services;
+		}
+		success(tree);
+	}
+
+	exec(onSuccess, fail, 'BLE', 'serviceTree',
+		[objectHandle(deviceOrHandle), nativeOptions]);
+};
+
+/**
+ * Attribute cache counters, see {@link module:cordova-plugin-ble.serviceTree}.
+ * @typedef {Object} AttributeCacheStats
+ * @property {number} entries - Number of devices in the cache.
+ * @property {number} hits - serviceTree results with the same attributes
+ * as the cache entry.
+ * @property {number} misses - Results with no cache entry.
+ * @property {number} changed - Results with other attributes than the
+ * cache entry.
+ * @property {number} invalidations - Entries removed by Service Changed
+ * indications, Android 12 and later.
+ * @property {number} hitRate - Hits divided by all results, 0 to 1.
+ * @property {number} averageDiscoveryTime - Average service discovery
+ * time in milliseconds of all results. Discovery runs for hits too.
+ * @property {number} callsSaved - Number of Cordova calls that
+ * readServiceData would have made for the same services, beyond the one
+ * serviceTree call. This is the saving of serviceTree; the time per call
+ * depends on the WebView and the load of the app.
+ */
+
+/**
+ * Get the attribute cache counters since the app started. Android only.
+ * @param {function} success - Called with an {@link AttributeCacheStats} object.
+ * @param {failCallback} fail - Error callback.
+ */
+exports.getAttributeCacheStats = function(success, fail)
+{
+	exec(success, fail, 'BLE', 'getAttributeCacheStats', []);
+};
+
+/**
+ * Remove all entries of the attribute cache. Android only.
+ * @param {emptyCallback} success - Called when the cache is cleared.
+ * @param {failCallback} fail - Error callback.
+ */
+exports.clearAttributeCache = function(success, fail)
+{
+	exec(success, fail, 'BLE', 'clearAttributeCache', []);
+};
+
 /**
  * Get a service object from a device or array.
  * @param {DeviceInfo} device - Device object (or array of {@link Service} objects).
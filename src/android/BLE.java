@@ -25,13 +25,33 @@ import android.bluetooth.le.*;
 import android.bluetooth.BluetoothAdapter.LeScanCallback;
 import android.content.*;
 import android.app.Activity;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.Iterator;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.lang.reflect.*;
 import android.util.Base64;
 import android.os.ParcelUuid;
@@ -39,6 +59,9 @@ import android.util.Log;
 import android.content.pm.PackageManager;
 import android.os.Build;
 import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.SystemClock;
 import android.Manifest;
 import android.provider.Settings;
 import android.provider.Settings.SettingNotFoundException;
@@ -62,6 +85,50 @@ public class BLE
 	private CallbackContext mScanCallbackContext = null;
 	private CordovaArgs mScanArgs;
 
+	// Scan options, set by startScanImpl().
+	private boolean mScanParseAdvertisementData = false;
+	private boolean mScanIncludeScanRecord = true;
+	private boolean mScanBinaryResults = false;
+
+	// Receives results from BluetoothLeScanner (Lollipop and above).
+	private ScanCallback mScanCallback;
+
+	// Runs the hardware scan of the current scan, null when not scanning.
+	private ScanScheduler mScanScheduler;
+
+	// Counters and timers of the scan result pipeline.
+	private final ScanStats mScanStats = new ScanStats();
+
+	// Device names per address. BluetoothDevice.getName() is a binder
+	// call, which is too slow to make for every scan result.
+	private final DeviceNameCache mDeviceNames = new DeviceNameCache();
+
+	// Recycled scan result entries, to avoid garbage in the scan callbacks.
+	private final ScanResultPool mScanResultPool = new ScanResultPool();
+
+	// Limits the rate of hardware scan starts, shared by all scans.
+	private final ScanStartLimiter mScanStartLimiter = new ScanStartLimiter();
+
+	// Merges scan results per device, null if coalescing is not enabled.
+	private ScanCoalescer mScanCoalescer;
+
+	// Table of devices seen during the latest scan, null if not enabled.
+	// Kept after the scan is stopped, so that it can be queried.
+	private ScanDeviceCache mScanDeviceCache;
+
+	// If true only changes to the device cache are reported.
+	private boolean mScanReportChanges = false;
+
+	// Filters applied to scan results before they are sent to JavaScript,
+	// null if no filters are given. A result is sent if any filter matches.
+	private List<ScanFilterSpec> mScanFilters;
+
+	// If true only beacon advertisements are reported, decoded natively.
+	private boolean mScanBeacons = false;
+
+	// Beacon regions, null if all beacons are reported.
+	private List<BeaconRegion> mBeaconRegions;
+
 	// Used by bond and unbond.
 	private CallbackContext mBondCallbackContext = null;
 	private String mBondDeviceAddress;
@@ -85,10 +152,56 @@ public class BLE
 	private CallbackContext mPowerOnCallbackContext;
 
 	// Map of connected devices.
-	HashMap<Integer, GattHandler> mConnectedDevices = null;
+	// Accessed from the Cordova thread, the UI or worker threads and
+	// the Binder threads of GATT callbacks.
+	final ConcurrentHashMap<Integer, GattHandler> mConnectedDevices =
+		new ConcurrentHashMap<Integer, GattHandler>();
 
 	// Monotonically incrementing key to the Gatt map.
-	int mNextGattHandle = 1;
+	final AtomicInteger mNextGattHandle = new AtomicInteger(1);
+
+	// Limits the number of concurrent connection attempts.
+	final ConnectionScheduler mConnectionScheduler = new ConnectionScheduler();
+
+	// Attribute trees seen by serviceTree, stored in app storage.
+	final AttributeCache mAttributeCache = new AttributeCache();
+
+	// The GattHandler of the device handle given as first argument.
+	private GattHandler gattHandler(CordovaArgs args) throws JSONException
+	{
+		GattHandler gh = mConnectedDevices.get(args.getInt(0));
+		if (null == gh)
+		{
+			throw new JSONException("Invalid device handle: " + args.getInt(0));
+		}
+		return gh;
+	}
+
+	// Thread that runs GATT operations, set with the config.xml preference
+	// BLEThreadMode. "ui" runs them on the UI thread, see runAction, which
+	// some stacks need. "shared" runs them on one worker thread for all
+	// connections, and "connection" on one worker thread per connection,
+	// so that GATT calls do not wait for WebView rendering and input.
+	static final String THREAD_MODE_UI = "ui";
+	static final String THREAD_MODE_SHARED = "shared";
+	static final String THREAD_MODE_CONNECTION = "connection";
+	String mThreadMode = THREAD_MODE_UI;
+
+	// Worker thread of the shared thread mode, started when first used.
+	private HandlerThread mWorkerThread;
+	private Handler mWorkerHandler;
+
+	// Handler of the shared worker thread.
+	private synchronized Handler workerHandler()
+	{
+		if (null == mWorkerHandler)
+		{
+			mWorkerThread = new HandlerThread("BLE GATT");
+			mWorkerThread.start();
+			mWorkerHandler = new Handler(mWorkerThread.getLooper());
+		}
+		return mWorkerHandler;
+	}
 
 	private void runAction(Runnable action)
 	{
@@ -114,6 +227,13 @@ public class BLE
 
 		mContext = webView.getContext();
 
+		if (null != preferences)
+		{
+			mThreadMode = preferences.getString("BLEThreadMode", THREAD_MODE_UI).toLowerCase();
+			mConnectionScheduler.mMaxAttempts = Math.max(1,
+				preferences.getInteger("BLEMaxConcurrentConnects", 1));
+		}
+
 		if (!mRegisteredReceivers)
 		{
 			mContext.registerReceiver(
@@ -144,6 +264,15 @@ public class BLE
 			else if ("stopScan".equals(action)) {
 				stopScan(args, callbackContext);
 			}
+			else if ("getScanCache".equals(action)) {
+				getScanCache(args, callbackContext);
+			}
+			else if ("getScanState".equals(action)) {
+				getScanState(args, callbackContext);
+			}
+			else if ("getScanStats".equals(action)) {
+				getScanStats(args, callbackContext);
+			}
 			else if ("getBondedDevices".equals(action)) {
 				getBondedDevices(args, callbackContext);
 			}
@@ -177,6 +306,12 @@ public class BLE
 			else if ("readCharacteristic".equals(action)) {
 				readCharacteristic(args, callbackContext);
 			}
+			else if ("executeBatch".equals(action)) {
+				executeBatch(args, callbackContext);
+			}
+			else if ("writeReliable".equals(action)) {
+				writeReliable(args, callbackContext);
+			}
 			else if ("readDescriptor".equals(action)) {
 				readDescriptor(args, callbackContext);
 			}
@@ -195,15 +330,73 @@ public class BLE
 			else if ("writeDescriptor".equals(action)) {
 				writeDescriptor(args, callbackContext);
 			}
+			else if ("writeCharacteristicStream".equals(action)) {
+				writeCharacteristicStream(args, callbackContext);
+			}
+			else if ("requestMtu".equals(action)) {
+				requestMtu(args, callbackContext);
+			}
+			else if ("getMtu".equals(action)) {
+				getMtu(args, callbackContext);
+			}
+			else if ("getConnectionStats".equals(action)) {
+				getConnectionStats(args, callbackContext);
+			}
+			else if ("requestConnectionPriority".equals(action)) {
+				requestConnectionPriority(args, callbackContext);
+			}
+			else if ("setPreferredPhy".equals(action)) {
+				setPreferredPhy(args, callbackContext);
+			}
+			else if ("readPhy".equals(action)) {
+				readPhy(args, callbackContext);
+			}
 			else if ("enableNotification".equals(action)) {
 				enableNotification(args, callbackContext);
 			}
 			else if ("disableNotification".equals(action)) {
 				disableNotification(args, callbackContext);
 			}
+			else if ("readNotifications".equals(action)) {
+				readNotifications(args, callbackContext);
+			}
+			else if ("getNotificationStats".equals(action)) {
+				getNotificationStats(args, callbackContext);
+			}
+			else if ("serviceTree".equals(action)) {
+				serviceTree(args, callbackContext);
+			}
+			else if ("getAttributeCacheStats".equals(action)) {
+				callbackContext.success(mAttributeCache.statsToJSON());
+			}
+			else if ("clearAttributeCache".equals(action)) {
+				mAttributeCache.clear();
+				callbackContext.success();
+			}
 			else if ("testCharConversion".equals(action)) {
 				testCharConversion(args, callbackContext);
 			}
+			else if ("testParseScanRecord".equals(action)) {
+				testParseScanRecord(args, callbackContext);
+			}
+			else if ("testScanFilter".equals(action)) {
+				testScanFilter(args, callbackContext);
+			}
+			else if ("testScanAllocations".equals(action)) {
+				testScanAllocations(args, callbackContext);
+			}
+			else if ("testPackScanResults".equals(action)) {
+				testPackScanResults(args, callbackContext);
+			}
+			else if ("testOperationQueue".equals(action)) {
+				testOperationQueue(args, callbackContext);
+			}
+			else if ("testDispatchLatency".equals(action)) {
+				testDispatchLatency(args, callbackContext);
+			}
+			else if ("testScanDeviceCache".equals(action)) {
+				testScanDeviceCache(args, callbackContext);
+			}
 			else if ("reset".equals(action)) {
 				reset(args, callbackContext);
 			}
@@ -239,6 +432,22 @@ public class BLE
 		return true;
 	}
 
+	// Closes connections and stops the shared worker thread.
+	@Override
+	public void onDestroy()
+	{
+		onReset();
+		synchronized (this)
+		{
+			if (null != mWorkerThread)
+			{
+				mWorkerThread.quitSafely();
+				mWorkerThread = null;
+				mWorkerHandler = null;
+			}
+		}
+	}
+
 	/**
 	* Called when the WebView does a top-level navigation or refreshes.
 	*
@@ -253,17 +462,15 @@ public class BLE
 	{
 		if (mScanCallbackContext != null) {
 			BluetoothAdapter a = BluetoothAdapter.getDefaultAdapter();
-			a.stopLeScan(this);
+			stopScanImpl(a);
 			mScanCallbackContext = null;
 		}
-		if (mConnectedDevices != null) {
-			Iterator<GattHandler> itr = mConnectedDevices.values().iterator();
-			while (itr.hasNext()) {
-				GattHandler gh = itr.next();
-				if (gh.mGatt != null)
-					gh.mGatt.close();
-			}
-			mConnectedDevices.clear();
+		Iterator<GattHandler> itr = mConnectedDevices.values().iterator();
+		while (itr.hasNext()) {
+			GattHandler gh = itr.next();
+			itr.remove();
+			mConnectionScheduler.cancel(gh);
+			gh.close("Device closed");
 		}
 		if (mGattServer != null) {
 			mGattServer.close();
@@ -328,7 +535,7 @@ public class BLE
 		}
 	}
 
-	// These three functions each send a JavaScript callback *without* removing
+	// These functions each send a JavaScript callback *without* removing
 	// the callback context, as is default.
 
 	private void keepCallback(final CallbackContext callbackContext, JSONObject message)
@@ -340,6 +547,15 @@ public class BLE
 		}
 	}
 
+	private void keepCallback(final CallbackContext callbackContext, JSONArray message)
+	{
+		PluginResult r = new PluginResult(PluginResult.Status.OK, message);
+		r.setKeepCallback(true);
+		if (callbackContext != null) {
+			callbackContext.sendPluginResult(r);
+		}
+	}
+
 	private void keepCallback(final CallbackContext callbackContext, String message)
 	{
 		PluginResult r = new PluginResult(PluginResult.Status.OK, message);
@@ -483,7 +699,6 @@ public class BLE
 	private void startScanImpl(final CordovaArgs args, final CallbackContext callbackContext)
 	{
 		final BluetoothAdapter adapter = BluetoothAdapter.getDefaultAdapter();
-		final LeScanCallback self = this;
 
 		// Get service UUIDs.
 		UUID[] uuidArray = null;
@@ -506,969 +721,6350 @@ public class BLE
 
 		final UUID[] serviceUUIDs = uuidArray;
 
-		checkPowerState(adapter, callbackContext, new Runnable()
+		// Get scan options.
+		JSONObject options = args.optJSONObject(1);
+		if (null == options)
 		{
-			@Override
-			public void run()
-			{
-				if (!adapter.startLeScan(serviceUUIDs, self))
-				{
-					callbackContext.error("Android function startLeScan failed");
-					mScanCallbackContext = null;
-				}
-			}
-		});
-	}
+			options = new JSONObject();
+		}
+		mScanParseAdvertisementData = options.optBoolean("parseAdvertisementData", false);
+		mScanIncludeScanRecord = options.optBoolean("includeScanRecord", true);
+		mScanBinaryResults = options.optBoolean("binaryResults", false);
 
-	// Called during scan, when a device advertisement is received.
-	public void onLeScan(BluetoothDevice device, int rssi, byte[] scanRecord)
-	{
-		if (mScanCallbackContext == null)
+		// Results are merged per device during the coalesce window.
+		long coalesceWindow = options.optLong("coalesceWindow", 0);
+		mScanCoalescer = (coalesceWindow > 0) ? new ScanCoalescer(coalesceWindow) : null;
+
+		// Compile filters. This checks the filter specs for validity.
+		try
+		{
+			mScanFilters = ScanFilterSpec.parseList(options.optJSONArray("filters"));
+		}
+		catch (Exception e)
 		{
+			callbackContext.error("Invalid scan filter: "+e.getMessage());
+			mScanCallbackContext = null;
 			return;
 		}
 
+		// Beacon mode and regions.
+		mScanBeacons = options.optBoolean("beacons", false);
 		try
 		{
-			//Log.i("@@@@@@", "onLeScan "+device.getAddress()+" "+rssi+" "+device.getName());
-			JSONObject jsonObject = new JSONObject();
-			jsonObject.put("address", device.getAddress());
-			jsonObject.put("rssi", rssi);
-			jsonObject.put("name", device.getName());
-			jsonObject.put("scanRecord", Base64.encodeToString(scanRecord, Base64.NO_WRAP));
-			keepCallback(mScanCallbackContext, jsonObject);
+			mBeaconRegions = BeaconRegion.parseList(options.optJSONArray("beaconRegions"));
 		}
-		catch(JSONException e)
+		catch (Exception e)
 		{
-			mScanCallbackContext.error(e.toString());
+			callbackContext.error("Invalid beacon region: "+e.getMessage());
+			mScanCallbackContext = null;
+			return;
 		}
-	}
 
-	// API implementation.
-	private void stopScan(final CordovaArgs args, final CallbackContext callbackContext)
-	{
-		// No pending scan results will be reported.
-		mScanCallbackContext = null;
+		// Set up device cache. Beacon mode uses it for distance smoothing.
+		String reportMode = options.optString("reportMode", "all");
+		if (!reportMode.equals("all") && !reportMode.equals("changes"))
+		{
+			callbackContext.error("Invalid reportMode: "+reportMode);
+			mScanCallbackContext = null;
+			return;
+		}
+		mScanReportChanges = reportMode.equals("changes");
+		int deviceCacheSize = options.optInt("deviceCacheSize", 0);
+		if ((mScanReportChanges || mScanBeacons) && deviceCacheSize <= 0)
+		{
+			deviceCacheSize = ScanDeviceCache.DEFAULT_SIZE;
+		}
+		if (null != mScanDeviceCache)
+		{
+			mScanDeviceCache.stop();
+		}
+		mScanDeviceCache = (deviceCacheSize > 0) ?
+			new ScanDeviceCache(
+				deviceCacheSize,
+				options.optLong("deviceCacheMaxAge", 0),
+				options.optDouble("rssiSmoothingFactor", ScanDeviceCache.DEFAULT_SMOOTHING_FACTOR),
+				options.optInt("rssiChangeThreshold", ScanDeviceCache.DEFAULT_RSSI_CHANGE_THRESHOLD)) :
+			null;
+
+		// Duty cycle and restart interval of the hardware scan.
+		final ScanScheduler scheduler;
+		try
+		{
+			scheduler = new ScanScheduler(
+				options.optLong("scanOnTime", 0),
+				options.optLong("scanOffTime", 0),
+				options.optLong("scanRestartInterval", ScanScheduler.DEFAULT_RESTART_INTERVAL));
+		}
+		catch (IllegalArgumentException e)
+		{
+			callbackContext.error(e.getMessage());
+			mScanCallbackContext = null;
+			return;
+		}
 
-		final BluetoothAdapter adapter = BluetoothAdapter.getDefaultAdapter();
-		final BluetoothAdapter.LeScanCallback callback = this;
+		// Use the deprecated startLeScan API on devices that do
+		// not have BluetoothLeScanner.
+		if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP)
+		{
+			scheduler.mServiceUUIDs = serviceUUIDs;
+			checkPowerState(adapter, callbackContext, new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					startScanScheduler(scheduler);
+				}
+			});
+			return;
+		}
+
+		// Build scan settings. This checks options for validity.
+		final ScanSettings settings;
+		try
+		{
+			settings = buildScanSettings(options);
+		}
+		catch (JSONException e)
+		{
+			callbackContext.error(e.getMessage());
+			mScanCallbackContext = null;
+			return;
+		}
 
-		// Call stopLeScan without checking if bluetooth is on.
-		adapter.stopLeScan(callback);
+		// Note that filters are combined using OR logic, a device
+		// that advertises any of the service UUIDs is reported.
+		final List<ScanFilter> filters = new ArrayList<ScanFilter>();
+		if (null != serviceUUIDs)
+		{
+			for (UUID uuid : serviceUUIDs)
+			{
+				filters.add(new ScanFilter.Builder()
+					.setServiceUuid(new ParcelUuid(uuid))
+					.build());
+			}
+		}
+		else if (null != mScanFilters)
+		{
+			// Let the Bluetooth controller do as much of the filtering as
+			// possible. The filter specs are still applied to the results.
+			filters.addAll(ScanFilterSpec.toScanFilters(mScanFilters));
+		}
+		else if (mScanBeacons)
+		{
+			// Only wake up for iBeacon and Eddystone advertisements.
+			filters.add(new ScanFilter.Builder()
+				.setManufacturerData(
+					0x004c,
+					new byte[] { 0x02, 0x15 },
+					new byte[] { (byte)0xff, (byte)0xff })
+				.build());
+			filters.add(new ScanFilter.Builder()
+				.setServiceData(
+					ParcelUuid.fromString(BeaconFrame.EDDYSTONE_SERVICE_UUID),
+					new byte[0])
+				.build());
+		}
 
-		/*
-		// TODO: Since there is no callback given to stopScan, there can be other
-		// calls (typically startScan) that are called before the BLE enable dialog
-		// is closed, causing BLE enabling to be aborted. We therefore call stopLeScan
-		// directly, without checking if BLE is on. It would be better design to queue
-		// calls, and to also add callbacks for stopScan (and also to close).
-		// All operations that are not related to a device should be queued
-		// (the operations for a device are already queued, but close is
-		// missing callbacks).
+		scheduler.mFilters = filters;
+		scheduler.mSettings = settings;
 		checkPowerState(adapter, callbackContext, new Runnable()
 		{
 			@Override
 			public void run()
 			{
-				adapter.stopLeScan(callback);
+				startScanScheduler(scheduler);
 			}
 		});
-		*/
 	}
 
-	// API implementation.
-	private void getBondedDevices(final CordovaArgs args, final CallbackContext callbackContext)
+	// Start the hardware scan, unless the scan was stopped while
+	// waiting for Bluetooth to power on.
+	private void startScanScheduler(ScanScheduler scheduler)
 	{
-		final BluetoothAdapter adapter = BluetoothAdapter.getDefaultAdapter();
+		if (null == mScanCallbackContext)
+		{
+			return;
+		}
+		if (null != mScanScheduler)
+		{
+			mScanScheduler.cancel();
+		}
+		mScanScheduler = scheduler;
+		scheduler.start();
+	}
 
-		checkPowerState(adapter, callbackContext, new Runnable()
+	// Stop an ongoing scan using the API it was started with.
+	private void stopScanImpl(BluetoothAdapter adapter)
+	{
+		// Drop results waiting to be sent.
+		if (null != mScanCoalescer)
 		{
-			@Override
-			public void run()
-			{
-				// Result array.
-				JSONArray devices = new JSONArray();
+			mScanCoalescer.cancel();
+			mScanCoalescer = null;
+		}
 
-				Set<BluetoothDevice> bondedDevices = adapter.getBondedDevices();
-				for (BluetoothDevice bondedDevice : bondedDevices)
-				{
-					if (bondedDevice.getType() == BluetoothDevice.DEVICE_TYPE_LE)
-					{
-						try
-						{
-							JSONObject device = new JSONObject();
-							device.put("address", bondedDevice.getAddress());
-							device.put("name", null == bondedDevice.getName() ?
-								JSONObject.NULL : bondedDevice.getName());
-							devices.put(device);
-						}
-						catch (Exception e)
-						{
-							callbackContext.error("getBondedDevices error: " + e);
-							return;
-						}
-					}
-				}
+		// The device cache keeps its content, but is no longer aged.
+		if (null != mScanDeviceCache)
+		{
+			mScanDeviceCache.stop();
+		}
 
-				callbackContext.success(devices);
-			}
-		});
+		// No more scheduled starts and restarts.
+		if (null != mScanScheduler)
+		{
+			mScanScheduler.cancel();
+			mScanScheduler = null;
+		}
+
+		stopHardwareScan(adapter);
 	}
 
-	// API implementation.
-	private void getBondState(final CordovaArgs args, final CallbackContext callbackContext)
+	// Stop the hardware scan, the scan itself remains active.
+	private void stopHardwareScan(BluetoothAdapter adapter)
 	{
-		final BluetoothAdapter adapter = BluetoothAdapter.getDefaultAdapter();
-
-		checkPowerState(adapter, callbackContext, new Runnable()
+		if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP)
 		{
-			@Override
-			public void run()
-			{
-				try
-				{
-					String address = args.getString(0);
-					// Not used on Android: String serviceUUID = args.getString(1);
-					BluetoothDevice device = adapter.getRemoteDevice(address);
-					int state = device.getBondState();
-					String result = "unknown";
-					if (state == BluetoothDevice.BOND_BONDED)
-					{
-						result = "bonded";
-					}
-					else if (state == BluetoothDevice.BOND_BONDING)
-					{
-						result = "bonding";
-					}
-					else if (state == BluetoothDevice.BOND_NONE)
-					{
-						result = "unbonded";
-					}
+			adapter.stopLeScan(this);
+			return;
+		}
 
-					callbackContext.sendPluginResult(new PluginResult(PluginResult.Status.OK, result));
-				}
-				catch (Exception e)
-				{
-					callbackContext.error("getBondState error: " + e);
-				}
-			}
-		});
+		// The scanner is null when Bluetooth is off, in which case
+		// there is no scan to stop.
+		BluetoothLeScanner scanner = adapter.getBluetoothLeScanner();
+		if (null != scanner && null != mScanCallback)
+		{
+			scanner.stopScan(mScanCallback);
+		}
 	}
 
-	// API implementation.
-	private void bond(final CordovaArgs args, final CallbackContext callbackContext)
+	private ScanSettings buildScanSettings(JSONObject options) throws JSONException
 	{
-		final BluetoothAdapter adapter = BluetoothAdapter.getDefaultAdapter();
+		ScanSettings.Builder builder = new ScanSettings.Builder();
 
-		checkPowerState(adapter, callbackContext, new Runnable()
 		{
-			@Override
-			public void run()
-			{
-				try
-				{
-					Log.i("@@@@@@", "@@@ bond");
+			// Default is low latency, which is what startLeScan used.
+			String scanModeString = options.optString("scanMode", "SCAN_MODE_LOW_LATENCY");
+			int scanMode;
+			if (scanModeString.equals("SCAN_MODE_LOW_POWER"))
+				scanMode = ScanSettings.SCAN_MODE_LOW_POWER;
+			else if (scanModeString.equals("SCAN_MODE_BALANCED"))
+				scanMode = ScanSettings.SCAN_MODE_BALANCED;
+			else if (scanModeString.equals("SCAN_MODE_LOW_LATENCY"))
+				scanMode = ScanSettings.SCAN_MODE_LOW_LATENCY;
+			else if (scanModeString.equals("SCAN_MODE_OPPORTUNISTIC"))
+				scanMode = ScanSettings.SCAN_MODE_OPPORTUNISTIC;
+			else
+				throw new JSONException("Invalid scanMode: "+scanModeString);
+			builder.setScanMode(scanMode);
+		}
 
-					String address = args.getString(0);
-					mBondDeviceAddress = address;
-					BluetoothDevice device = adapter.getRemoteDevice(address);
+		// Callback type, match mode and number of matches are available
+		// from Marshmallow.
+		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M)
+		{
+			String callbackTypeString = options.optString("callbackType", "CALLBACK_TYPE_ALL_MATCHES");
+			int callbackType;
+			if (callbackTypeString.equals("CALLBACK_TYPE_ALL_MATCHES"))
+				callbackType = ScanSettings.CALLBACK_TYPE_ALL_MATCHES;
+			else if (callbackTypeString.equals("CALLBACK_TYPE_FIRST_MATCH"))
+				callbackType = ScanSettings.CALLBACK_TYPE_FIRST_MATCH;
+			else if (callbackTypeString.equals("CALLBACK_TYPE_MATCH_LOST"))
+				callbackType = ScanSettings.CALLBACK_TYPE_MATCH_LOST;
+			else
+				throw new JSONException("Invalid callbackType: "+callbackTypeString);
+			builder.setCallbackType(callbackType);
+
+			String matchModeString = options.optString("matchMode", "MATCH_MODE_AGGRESSIVE");
+			int matchMode;
+			if (matchModeString.equals("MATCH_MODE_AGGRESSIVE"))
+				matchMode = ScanSettings.MATCH_MODE_AGGRESSIVE;
+			else if (matchModeString.equals("MATCH_MODE_STICKY"))
+				matchMode = ScanSettings.MATCH_MODE_STICKY;
+			else
+				throw new JSONException("Invalid matchMode: "+matchModeString);
+			builder.setMatchMode(matchMode);
+
+			String numOfMatchesString = options.optString("numOfMatches", "MATCH_NUM_MAX_ADVERTISEMENT");
+			int numOfMatches;
+			if (numOfMatchesString.equals("MATCH_NUM_ONE_ADVERTISEMENT"))
+				numOfMatches = ScanSettings.MATCH_NUM_ONE_ADVERTISEMENT;
+			else if (numOfMatchesString.equals("MATCH_NUM_FEW_ADVERTISEMENT"))
+				numOfMatches = ScanSettings.MATCH_NUM_FEW_ADVERTISEMENT;
+			else if (numOfMatchesString.equals("MATCH_NUM_MAX_ADVERTISEMENT"))
+				numOfMatches = ScanSettings.MATCH_NUM_MAX_ADVERTISEMENT;
+			else
+				throw new JSONException("Invalid numOfMatches: "+numOfMatchesString);
+			builder.setNumOfMatches(numOfMatches);
+		}
 
-    				int bondState = device.getBondState();
-    				if (bondState == BluetoothDevice.BOND_BONDED)
-    				{
-						callbackContext.success("bonded");
-						return;
-					}
-
-					// Start bonding.
-    				if (!device.createBond())
-    				{
-						callbackContext.error("could not bond");
-						return;
-					}
+		// With a report delay, results are delivered in batches
+		// to onBatchScanResults.
+		long reportDelay = options.optLong("reportDelay", 0);
+		if (reportDelay < 0)
+		{
+			throw new JSONException("Invalid reportDelay: "+reportDelay);
+		}
+		builder.setReportDelay(reportDelay);
 
-					// Save callback context.
-					mBondCallbackContext = callbackContext;
-				}
-				catch (Exception e)
-				{
-					callbackContext.error("bond error: " + e);
-				}
-			}
-		});
+		return builder.build();
 	}
 
-	// API implementation.
-	private void unbond(final CordovaArgs args, final CallbackContext callbackContext)
+	// Called during scan, when a device advertisement is received.
+	// Used on devices below Lollipop.
+	public void onLeScan(BluetoothDevice device, int rssi, byte[] scanRecord)
 	{
-		final BluetoothAdapter adapter = BluetoothAdapter.getDefaultAdapter();
-
-		checkPowerState(adapter, callbackContext, new Runnable()
+		ScanResultEntry entry = scanResultReceived(
+			device, rssi, scanRecord, System.currentTimeMillis());
+		if (null != entry)
 		{
-			@Override
-			public void run()
-			{
-				try
-				{
-					Log.i("@@@@@@", "@@@ unbond");
-
-					String address = args.getString(0);
-					mUnbondDeviceAddress = address;
-					BluetoothDevice device = adapter.getRemoteDevice(address);
-
-    				int bondState = device.getBondState();
-    				if (bondState == BluetoothDevice.BOND_NONE)
-    				{
-						callbackContext.success("unbonded");
-						return;
-					}
-
-					// Stop bonding.
-					java.lang.reflect.Method m = device.getClass().getMethod("removeBond");
-					Boolean result = (Boolean) m.invoke(device);
-    				if (!result.booleanValue())
-    				{
-						callbackContext.error("could not unbond");
-						return;
-					}
-
-					// Save callback context.
-					mUnbondCallbackContext = callbackContext;
-				}
-				catch (Exception e)
-				{
-					callbackContext.error("unbond error: " + e);
-				}
-			}
-		});
+			sendScanResult(entry);
+			mScanResultPool.recycle(entry);
+		}
 	}
 
-	// API implementation.
-	private void connect(final CordovaArgs args, final CallbackContext callbackContext)
+	// First stage for all received scan results. Applies filters and
+	// coalescing. Returns the result if it should be sent right away,
+	// otherwise null. A returned result must be recycled after it has been
+	// sent. Results that are dropped or coalesced allocate no memory,
+	// except for filters on advertisement content evaluated here rather
+	// than by the Bluetooth controller.
+	private ScanResultEntry scanResultReceived(
+		BluetoothDevice device,
+		int rssi,
+		byte[] scanRecord,
+		long timestamp)
 	{
-		Log.i("@@@@@@", "@@@ connect");
-
-		final BluetoothAdapter adapter = BluetoothAdapter.getDefaultAdapter();
-		checkPowerState(adapter, callbackContext, new Runnable()
+		if (mScanCallbackContext == null)
 		{
-			@Override
-			public void run()
-			{
-				try
-				{
-					// Each device connection has a GattHandler, which handles
-					// the events the can happen to the connection.
+			return null;
+		}
 
-					Log.i("@@@@@@", "@@@ creating gatt handler");
+		mScanStats.mReceived.incrementAndGet();
 
-					// The implementation of the GattHandler class is found at the end of this file.
-					GattHandler gh = new GattHandler(mNextGattHandle, callbackContext);
-
-					// Note: We set autoConnect to false since setting
-					// it to true breaks the plugin logic. If support for
-					// auto connect is needed, that should be designed
-					// with updated plugin logic. (Problem is that BLE device
-					// is removed when disconnect occurs, and device resources
-					// are deallocated, therefore true cannot work at present.)
-					boolean autoConnect = false;
+		if (!scanFiltersMatch(device, rssi, scanRecord))
+		{
+			mScanStats.mFiltered.incrementAndGet();
+			return null;
+		}
 
-					Log.i("@@@@@@", "@@@ getRemoteDevice");
-					BluetoothDevice device = adapter.getRemoteDevice(args.getString(0));
+		// In beacon mode other advertisements are dropped.
+		BeaconFrame beacon = null;
+		if (mScanBeacons)
+		{
+			beacon = BeaconFrame.decode(scanRecord);
+			if (null == beacon || !BeaconRegion.matchesAny(mBeaconRegions, beacon))
+			{
+				mScanStats.mFiltered.incrementAndGet();
+				return null;
+			}
+		}
 
-					Log.i("@@@@@@", "@@@ connectGatt");
-					gh.mGatt = device.connectGatt(mContext, autoConnect, gh);
+		ScanResultEntry entry = mScanResultPool.obtain(device, rssi, scanRecord, timestamp);
+		entry.mBeacon = beacon;
 
-					// Note that gh.mGatt and this.mGatt are different object and have different types.
-					// --> Renamed this.mGatt to mConnectedDevices to avoid confusion.
-					if (mConnectedDevices == null)
-					{
-						mConnectedDevices = new HashMap<Integer, GattHandler>();
-					}
-					Object res = mConnectedDevices.put(mNextGattHandle, gh);
-					assert(res == null);
-					mNextGattHandle++;
-				}
-				catch(Exception e)
-				{
-					Log.i("@@@@@@", "@@@ connect exception: " + e);
-					e.printStackTrace();
-					callbackContext.error(e.toString());
-				}
+		ScanDeviceCache cache = mScanDeviceCache;
+		if (null != cache)
+		{
+			cache.update(entry);
+			if (mScanReportChanges && null == entry.mEvent)
+			{
+				mScanStats.mUnchanged.incrementAndGet();
+				mScanResultPool.recycle(entry);
+				return null;
 			}
-		});
-	}
+		}
 
-	// API implementation.
-	private void close(final CordovaArgs args, final CallbackContext callbackContext)
-	{
-		try {
-			GattHandler gh = mConnectedDevices.get(args.getInt(0));
-			gh.mGatt.close();
-			mConnectedDevices.remove(args.getInt(0));
-		} catch(JSONException e) {
-			e.printStackTrace();
-			callbackContext.error(e.toString());
+		if (null != beacon)
+		{
+			beacon.estimateDistance(Double.isNaN(entry.mSmoothedRssi) ?
+				entry.mRssi : entry.mSmoothedRssi);
 		}
-	}
 
-	// API implementation.
-	private void rssi(final CordovaArgs args, final CallbackContext callbackContext)
-	{
-		GattHandler gh = null;
-		try {
-			gh = mConnectedDevices.get(args.getInt(0));
-			if (gh.mRssiContext != null) {
-				callbackContext.error("Previous call to rssi() not yet completed!");
-				return;
-			}
-			gh.mRssiContext = callbackContext;
-			if (!gh.mGatt.readRemoteRssi()) {
-				gh.mRssiContext = null;
-				callbackContext.error("readRemoteRssi");
-			}
-		} catch(Exception e) {
-			e.printStackTrace();
-			if (gh != null) {
-				gh.mRssiContext = null;
+		ScanCoalescer coalescer = mScanCoalescer;
+		if (null != coalescer)
+		{
+			if (!coalescer.add(entry))
+			{
+				mScanResultPool.recycle(entry);
 			}
-			callbackContext.error(e.toString());
+			return null;
 		}
+
+		return entry;
 	}
 
-	// API implementation.
-	private void services(final CordovaArgs args, final CallbackContext callbackContext)
+	// Changes and beacons are sent as JSON, since they carry fields
+	// that the binary format does not have.
+	private boolean sendBinaryScanResults()
 	{
-		try {
-			final GattHandler gh = mConnectedDevices.get(args.getInt(0));
-			gh.mOperations.add(new Runnable() {
-				@Override
-				public void run() {
-					gh.mCurrentOpContext = callbackContext;
-					if (!gh.mGatt.discoverServices()) {
-						callbackContext.error("discoverServices");
-						gh.mCurrentOpContext = null;
-						gh.process();
-					}
-				}
-			});
-			gh.process();
-		} catch(Exception e) {
-			e.printStackTrace();
-			callbackContext.error(e.toString());
-		}
+		return mScanBinaryResults && !mScanReportChanges && !mScanBeacons;
 	}
 
-	// API implementation.
-	private void characteristics(
-		final CordovaArgs args,
-		final CallbackContext callbackContext)
-		throws JSONException
+	// Send a single scan result to JavaScript, as a device object in JSON
+	// format or packed into an ArrayBuffer in binary format. Called for
+	// each advertisement when not batching or coalescing, so no list is
+	// allocated for the result.
+	private void sendScanResult(ScanResultEntry result)
 	{
-		final GattHandler gh = mConnectedDevices.get(args.getInt(0));
-		JSONArray a = new JSONArray();
-		for (BluetoothGattCharacteristic c : gh.mServices.get(args.getInt(1)).getCharacteristics()) {
-			if (gh.mCharacteristics == null)
-				gh.mCharacteristics = new HashMap<Integer, BluetoothGattCharacteristic>();
-			Object res = gh.mCharacteristics.put(gh.mNextHandle, c);
-			assert(res == null);
+		CallbackContext callbackContext = mScanCallbackContext;
+		if (null == callbackContext)
+		{
+			return;
+		}
 
-			JSONObject o = new JSONObject();
-			o.put("handle", gh.mNextHandle);
-			o.put("uuid", c.getUuid().toString());
-			o.put("permissions", c.getPermissions());
-			o.put("properties", c.getProperties());
-			o.put("writeType", c.getWriteType());
+		long serializeStart = System.nanoTime();
 
-			gh.mNextHandle++;
-			a.put(o);
+		if (sendBinaryScanResults())
+		{
+			byte[] packed = BinaryScanResults.pack(result, mDeviceNames);
+			mScanStats.serialized(System.nanoTime() - serializeStart);
+			keepCallback(callbackContext, packed);
+			mScanStats.forwarded(result);
+			return;
+		}
+
+		try
+		{
+			JSONObject device = scanResultToJSON(result);
+			mScanStats.serialized(System.nanoTime() - serializeStart);
+			keepCallback(callbackContext, device);
+			mScanStats.forwarded(result);
+		}
+		catch(JSONException e)
+		{
+			callbackContext.error(e.toString());
 		}
-		callbackContext.success(a);
 	}
 
-	// API implementation.
-	private void descriptors(
-		final CordovaArgs args,
-		final CallbackContext callbackContext)
-		throws JSONException
+	// Send scan results to JavaScript in the format given by the scan options.
+	// In JSON format results are sent as an array, in binary format they
+	// are packed into one ArrayBuffer.
+	private void sendScanResults(List<ScanResultEntry> results)
 	{
-		final GattHandler gh = mConnectedDevices.get(args.getInt(0));
-		JSONArray a = new JSONArray();
-		for (BluetoothGattDescriptor d : gh.mCharacteristics.get(args.getInt(1)).getDescriptors()) {
-			if (gh.mDescriptors == null)
-				gh.mDescriptors = new HashMap<Integer, BluetoothGattDescriptor>();
-			Object res = gh.mDescriptors.put(gh.mNextHandle, d);
-			assert(res == null);
+		CallbackContext callbackContext = mScanCallbackContext;
+		if (null == callbackContext || results.isEmpty())
+		{
+			return;
+		}
 
-			JSONObject o = new JSONObject();
-			o.put("handle", gh.mNextHandle);
-			o.put("uuid", d.getUuid().toString());
-			o.put("permissions", d.getPermissions());
+		long serializeStart = System.nanoTime();
 
-			gh.mNextHandle++;
-			a.put(o);
+		if (sendBinaryScanResults())
+		{
+			byte[] packed = BinaryScanResults.pack(results, mDeviceNames);
+			mScanStats.serialized(System.nanoTime() - serializeStart);
+			keepCallback(callbackContext, packed);
+			mScanStats.forwarded(results);
+			return;
 		}
-		callbackContext.success(a);
-	}
 
-	// API implementation.
-	private void readCharacteristic(
-		final CordovaArgs args,
-		final CallbackContext callbackContext)
-		throws JSONException
-	{
-		final GattHandler gh = mConnectedDevices.get(args.getInt(0));
-		gh.mOperations.add(new Runnable() {
-			@Override
-			public void run() {
-				try {
-					gh.mCurrentOpContext = callbackContext;
-					if (!gh.mGatt.readCharacteristic(gh.mCharacteristics.get(args.getInt(1)))) {
-						callbackContext.error("readCharacteristic");
-						gh.mCurrentOpContext = null;
-						gh.process();
-					}
-				} catch(JSONException e) {
-					e.printStackTrace();
-					callbackContext.error(e.toString());
-					gh.mCurrentOpContext = null;
-					gh.process();
-				}
+		try
+		{
+			JSONArray devices = new JSONArray();
+			for (ScanResultEntry result : results)
+			{
+				devices.put(scanResultToJSON(result));
 			}
-		});
-		gh.process();
+			mScanStats.serialized(System.nanoTime() - serializeStart);
+			keepCallback(callbackContext, devices);
+			mScanStats.forwarded(results);
+		}
+		catch(JSONException e)
+		{
+			callbackContext.error(e.toString());
+		}
 	}
 
-	// API implementation.
-	private void readDescriptor(
-		final CordovaArgs args,
-		final CallbackContext callbackContext)
-		throws JSONException
+	// Returns true if the scan result should be sent to JavaScript.
+	private boolean scanFiltersMatch(BluetoothDevice device, int rssi, byte[] scanRecord)
 	{
-		final GattHandler gh = mConnectedDevices.get(args.getInt(0));
-		gh.mOperations.add(new Runnable()
+		List<ScanFilterSpec> filters = mScanFilters;
+		if (null == filters)
 		{
-			@Override
-			public void run()
+			return true;
+		}
+
+		// Parse the scan record only if some filter needs it.
+		AdvertisementData ad = null;
+		for (ScanFilterSpec filter : filters)
+		{
+			if (null == ad && filter.needsAdvertisementData())
 			{
-				try {
-					gh.mCurrentOpContext = callbackContext;
-					if (!gh.mGatt.readDescriptor(gh.mDescriptors.get(args.getInt(1)))) {
-						callbackContext.error("readDescriptor");
-						gh.mCurrentOpContext = null;
-						gh.process();
-					}
-				} catch(JSONException e) {
-					e.printStackTrace();
-					callbackContext.error(e.toString());
-					gh.mCurrentOpContext = null;
-					gh.process();
-				}
+				ad = AdvertisementData.parse(scanRecord);
 			}
-		});
-		gh.process();
+			if (filter.matches(device, rssi, ad, mDeviceNames))
+			{
+				return true;
+			}
+		}
+		return false;
 	}
 
-	// API implementation.
-	private void writeCharacteristic(
-		final CordovaArgs args,
-		final CallbackContext callbackContext,
-		final int writeType)
+	// Create the device info object sent to JavaScript for a scan result.
+	private JSONObject scanResultToJSON(ScanResultEntry result)
 		throws JSONException
 	{
-		final GattHandler gh = mConnectedDevices.get(args.getInt(0));
-		gh.mOperations.add(new Runnable()
+		JSONObject jsonObject = new JSONObject();
+		jsonObject.put("address", result.mDevice.getAddress());
+		jsonObject.put("rssi", result.mRssi);
+		jsonObject.put("name", mDeviceNames.getName(result.mDevice));
+		if (mScanIncludeScanRecord)
 		{
-			@Override
-			public void run()
-			{
-				try {
-					gh.mCurrentOpContext = callbackContext;
-					BluetoothGattCharacteristic c = gh.mCharacteristics.get(args.getInt(1));
-					System.out.println("writeCharacteristic("+args.getInt(0)+", "+args.getInt(1)+", "+args.getString(2)+")");
-					c.setWriteType(writeType);
-					c.setValue(args.getArrayBuffer(2));
-					if (!gh.mGatt.writeCharacteristic(c)) {
-						callbackContext.error("writeCharacteristic");
-						gh.mCurrentOpContext = null;
-						gh.process();
-					}
-				} catch(JSONException e) {
-					e.printStackTrace();
-					callbackContext.error(e.toString());
-					gh.mCurrentOpContext = null;
-					gh.process();
-				}
-			}
-		});
-		gh.process();
+			jsonObject.put("scanRecord", Base64.encodeToString(result.mScanRecord, Base64.NO_WRAP));
+		}
+		if (mScanParseAdvertisementData)
+		{
+			jsonObject.put("advertisementData", AdvertisementData.parse(result.mScanRecord).toJSON());
+		}
+		if (null != mScanCoalescer)
+		{
+			jsonObject.put("packetCount", result.mPacketCount);
+		}
+		if (!Double.isNaN(result.mSmoothedRssi))
+		{
+			jsonObject.put("smoothedRssi", result.mSmoothedRssi);
+		}
+		if (null != result.mEvent)
+		{
+			jsonObject.put("event", result.mEvent);
+		}
+		if (null != result.mBeacon)
+		{
+			jsonObject.put("beacon", result.mBeacon.toJSON());
+		}
+		return jsonObject;
 	}
 
-	// API implementation.
-	private void writeDescriptor(
-		final CordovaArgs args,
-		final CallbackContext callbackContext)
-		throws JSONException
+	// Receives scan results from BluetoothLeScanner.
+	// Batched results are sent to JavaScript as one array per batch.
+	private class BLEScanCallback extends ScanCallback
 	{
-		final GattHandler gh = mConnectedDevices.get(args.getInt(0));
-		gh.mOperations.add(new Runnable()
+		@Override
+		public void onScanResult(int callbackType, ScanResult result)
 		{
-			@Override
-			public void run()
+			ScanResultEntry entry = scanResultReceived(
+				result.getDevice(),
+				result.getRssi(),
+				scanRecordBytes(result),
+				timestampMillis(result));
+			if (null != entry)
 			{
-				try {
-					gh.mCurrentOpContext = callbackContext;
-					gh.mDontReportWriteDescriptor = false;
-					BluetoothGattDescriptor d = gh.mDescriptors.get(args.getInt(1));
-					d.setValue(args.getArrayBuffer(2));
-					if (!gh.mGatt.writeDescriptor(d)) {
-						callbackContext.error("writeDescriptor");
-						gh.mCurrentOpContext = null;
-						gh.process();
-					}
-				} catch(JSONException e) {
-					e.printStackTrace();
-					callbackContext.error(e.toString());
-					gh.mCurrentOpContext = null;
-					gh.process();
+				sendScanResult(entry);
+				mScanResultPool.recycle(entry);
+			}
+		}
+
+		@Override
+		public void onBatchScanResults(List<ScanResult> results)
+		{
+			mScanStats.mBatches.incrementAndGet();
+			List<ScanResultEntry> entries = new ArrayList<ScanResultEntry>(results.size());
+			for (ScanResult result : results)
+			{
+				ScanResultEntry entry = scanResultReceived(
+					result.getDevice(),
+					result.getRssi(),
+					scanRecordBytes(result),
+					timestampMillis(result));
+				if (null != entry)
+				{
+					entries.add(entry);
 				}
 			}
-		});
-		gh.process();
-	}
+			sendScanResults(entries);
+			mScanResultPool.recycleAll(entries);
+		}
 
-	// Notification options flag.
-	private final int NOTIFICATION_OPTIONS_DISABLE_AUTOMATIC_CONFIG = 1;
+		@Override
+		public void onScanFailed(int errorCode)
+		{
+			if (mScanCallbackContext == null)
+			{
+				return;
+			}
 
-	// API implementation.
-	private void enableNotification(
-		final CordovaArgs args,
-		final CallbackContext callbackContext)
-		throws JSONException
+			String errorMessage;
+			if (errorCode == SCAN_FAILED_ALREADY_STARTED)
+				errorMessage = "SCAN_FAILED_ALREADY_STARTED";
+			else if (errorCode == SCAN_FAILED_APPLICATION_REGISTRATION_FAILED)
+				errorMessage = "SCAN_FAILED_APPLICATION_REGISTRATION_FAILED";
+			else if (errorCode == SCAN_FAILED_INTERNAL_ERROR)
+				errorMessage = "SCAN_FAILED_INTERNAL_ERROR";
+			else if (errorCode == SCAN_FAILED_FEATURE_UNSUPPORTED)
+				errorMessage = "SCAN_FAILED_FEATURE_UNSUPPORTED";
+			else
+				errorMessage = Integer.toString(errorCode);
+			mScanCallbackContext.error("ScanCallback.onScanFailed: "+errorMessage);
+			mScanCallbackContext = null;
+			if (null != mScanScheduler)
+			{
+				mScanScheduler.cancel();
+				mScanScheduler = null;
+			}
+		}
+
+		private byte[] scanRecordBytes(ScanResult result)
+		{
+			ScanRecord record = result.getScanRecord();
+			return (null != record) ? record.getBytes() : new byte[0];
+		}
+
+		// Convert the result timestamp to milliseconds since the epoch.
+		private long timestampMillis(ScanResult result)
+		{
+			long ageNanos = SystemClock.elapsedRealtimeNanos() - result.getTimestampNanos();
+			return System.currentTimeMillis() - ageNanos / 1000000;
+		}
+	}
+
+	// Limits hardware scan starts to stay below the Android quota of
+	// 5 starts per 30 seconds. Above the quota Android silently delivers
+	// no results, so starts over the limit are postponed instead.
+	static class ScanStartLimiter
 	{
-		final GattHandler gh = mConnectedDevices.get(args.getInt(0));
+		static final int MAX_STARTS = 4;
+		static final long WINDOW = 30000;
 
-		// Get characteristic.
-		BluetoothGattCharacteristic characteristic = gh.mCharacteristics.get(args.getInt(1));
+		// Elapsed realtime of recent starts, oldest first.
+		private final LinkedList<Long> mStarts = new LinkedList<Long>();
 
-		// Turn notification on.
-		boolean success = gh.mGatt.setCharacteristicNotification(characteristic, true);
-		if (!success) {
-			callbackContext.error("Could not enable notification");
-			return;
+		// Milliseconds until a start is allowed, 0 if allowed now.
+		synchronized long delayUntilNextStart()
+		{
+			long now = SystemClock.elapsedRealtime();
+			while (!mStarts.isEmpty() && now - mStarts.getFirst() >= WINDOW)
+			{
+				mStarts.removeFirst();
+			}
+			if (mStarts.size() < MAX_STARTS)
+			{
+				return 0;
+			}
+			return mStarts.getFirst() + WINDOW - now;
 		}
 
-		// Save callback context for the characteristic.
-		// When turning notification on, the success callback will be
-		// called on every notification event.
-		gh.mNotifications.put(characteristic, callbackContext);
+		synchronized void recordStart()
+		{
+			mStarts.addLast(SystemClock.elapsedRealtime());
+		}
 
-		// Write config descriptor if not disabled in options.
-		int options = args.getInt(2);
-		boolean writeConfigDescriptor = (options == 0);
-		if (writeConfigDescriptor) {
-			turnConfigDescriptorOn(callbackContext, gh, gh.mGatt, characteristic);
+		synchronized int startsInWindow()
+		{
+			delayUntilNextStart();
+			return mStarts.size();
 		}
 	}
 
-	// Helper method.
-	private void turnConfigDescriptorOn(
-		final CallbackContext callbackContext,
-		final GattHandler gattHandler,
-		final BluetoothGatt gatt,
-		final BluetoothGattCharacteristic characteristic)
+	// Runs the hardware scan of a startScan call. Scans in on/off windows
+	// when scanOnTime is set, and restarts long running scans after
+	// scanRestartInterval, since some Bluetooth stacks degrade scans that
+	// run for more than 30 minutes. Restarts keep the callback, filters,
+	// coalescer and device cache, so JavaScript sees one continuous scan.
+	// All methods run on the main thread.
+	private class ScanScheduler
 	{
-		gattHandler.mOperations.add(new Runnable()
+		static final long DEFAULT_RESTART_INTERVAL = 25 * 60 * 1000;
+
+		static final String STATE_IDLE = "idle";
+		static final String STATE_SCANNING = "scanning";
+		static final String STATE_PAUSED = "paused";
+		static final String STATE_THROTTLED = "throttled";
+
+		final long mOnTime;
+		final long mOffTime;
+		final long mRestartInterval;
+		final Handler mHandler = new Handler(Looper.getMainLooper());
+
+		// Set by startScanImpl, depending on the Android version.
+		UUID[] mServiceUUIDs;
+		List<ScanFilter> mFilters;
+		ScanSettings mSettings;
+
+		String mState = STATE_IDLE;
+		long mScanStartTime;
+		long mNextStartTime;
+		int mStartCount;
+		int mRestartCount;
+		int mThrottleCount;
+
+		// Starts the hardware scan, waiting for the start quota if needed.
+		private final Runnable mStartRunnable = new Runnable()
 		{
 			@Override
 			public void run()
 			{
-				// Mark operation in process.
-				gattHandler.mCurrentOpContext = callbackContext;
+				startHardware();
+			}
+		};
 
-				// Don't report result from writing descriptor.
-				gattHandler.mDontReportWriteDescriptor = true;
+		// Ends an on window.
+		private final Runnable mPauseRunnable = new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				stopHardware();
+				mState = STATE_PAUSED;
+				postStart(mOffTime);
+			}
+		};
 
-				// Write the config descriptor.
-				if (!enableConfigDescriptor(callbackContext, gattHandler, gatt, characteristic)) {
-					gattHandler.mDontReportWriteDescriptor = false;
-					gattHandler.mCurrentOpContext = null;
-					gattHandler.process();
-					return;
-				}
+		// Restarts a long running scan.
+		private final Runnable mRestartRunnable = new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				++mRestartCount;
+				stopHardware();
+				startHardware();
 			}
-		});
-		gattHandler.process();
-	}
+		};
 
-	// Helper method.
-	private boolean enableConfigDescriptor(
-		final CallbackContext callbackContext,
-		final GattHandler gattHandler,
-		final BluetoothGatt gatt,
-		final BluetoothGattCharacteristic characteristic)
-	{
-		// Get config descriptor.
-		BluetoothGattDescriptor configDescriptor = characteristic.getDescriptor(
-			UUID.fromString("00002902-0000-1000-8000-00805f9b34fb"));
-		if (configDescriptor == null) {
-			callbackContext.error("Could not get config descriptor");
-			return false;
+		ScanScheduler(long onTime, long offTime, long restartInterval)
+		{
+			if (onTime < 0)
+			{
+				throw new IllegalArgumentException("Invalid scanOnTime: "+onTime);
+			}
+			if (offTime < 0 || (offTime > 0 && onTime == 0))
+			{
+				throw new IllegalArgumentException("Invalid scanOffTime: "+offTime);
+			}
+			if (restartInterval < 0)
+			{
+				throw new IllegalArgumentException("Invalid scanRestartInterval: "+restartInterval);
+			}
+			mOnTime = onTime;
+			mOffTime = offTime;
+			mRestartInterval = restartInterval;
 		}
 
-		// Config descriptor value.
-		byte[] descriptorValue;
-
-		// Check if notification or indication should be used.
-		if (0 != (characteristic.getProperties() & BluetoothGattCharacteristic.PROPERTY_NOTIFY)) {
-			descriptorValue = BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE;
-		}
-		else if (0 != (characteristic.getProperties() & BluetoothGattCharacteristic.PROPERTY_INDICATE)) {
-			descriptorValue = BluetoothGattDescriptor.ENABLE_INDICATION_VALUE;
-		}
-		else {
-			callbackContext.error("Characteristic does not support notification or indication.");
-			return false;
+		void start()
+		{
+			startHardware();
 		}
 
-		// Set value of config descriptor.
-		configDescriptor.setValue(descriptorValue);
-
-		// Write descriptor.
-		boolean success = gatt.writeDescriptor(configDescriptor);
-		if (!success) {
-			callbackContext.error("Could not write config descriptor");
-			return false;
+		// Stop scheduling. Does not stop the hardware scan.
+		void cancel()
+		{
+			mHandler.removeCallbacks(mStartRunnable);
+			mHandler.removeCallbacks(mPauseRunnable);
+			mHandler.removeCallbacks(mRestartRunnable);
+			mState = STATE_IDLE;
 		}
 
-		return true;
-	}
-
-	// API implementation.
-	private void disableNotification(
-		final CordovaArgs args,
-		final CallbackContext callbackContext)
-		throws JSONException
-	{
-		final GattHandler gh = mConnectedDevices.get(args.getInt(0));
-
-		// Get characteristic.
-		BluetoothGattCharacteristic characteristic = gh.mCharacteristics.get(args.getInt(1));
-
-		// Turn notification off.
-		boolean success = gh.mGatt.setCharacteristicNotification(characteristic, false);
-		if (!success) {
-			callbackContext.error("Could not disable notification");
-			return;
+		JSONObject getState() throws JSONException
+		{
+			JSONObject o = new JSONObject();
+			o.put("state", mState);
+			o.put("startCount", mStartCount);
+			o.put("restartCount", mRestartCount);
+			o.put("throttleCount", mThrottleCount);
+			if (STATE_SCANNING.equals(mState))
+			{
+				o.put("scanTime", SystemClock.elapsedRealtime() - mScanStartTime);
+			}
+			else if (STATE_PAUSED.equals(mState) || STATE_THROTTLED.equals(mState))
+			{
+				o.put("nextStartDelay",
+					Math.max(0, mNextStartTime - SystemClock.elapsedRealtime()));
+			}
+			return o;
 		}
 
-		// Remove callback context for the characteristic
-		// when turning off notification.
-		gh.mNotifications.remove(characteristic);
-
-		// Write config descriptor if not disabled in options.
-		int options = args.getInt(2);
-		boolean writeConfigDescriptor = (options == 0);
-		if (writeConfigDescriptor) {
-			turnConfigDescriptorOff(callbackContext, gh, gh.mGatt, characteristic);
-		} else {
-			// Call success callback when notification is turned off.
-			callbackContext.success();
+		private void postStart(long delay)
+		{
+			mNextStartTime = SystemClock.elapsedRealtime() + delay;
+			mHandler.postDelayed(mStartRunnable, delay);
 		}
-	}
 
-	// Helper method.
-	private void turnConfigDescriptorOff(
-		final CallbackContext callbackContext,
-		final GattHandler gattHandler,
-		final BluetoothGatt gatt,
-		final BluetoothGattCharacteristic characteristic)
-	{
-		gattHandler.mOperations.add(new Runnable()
+		private void startHardware()
 		{
-			@Override
-			public void run()
+			long delay = mScanStartLimiter.delayUntilNextStart();
+			if (delay > 0)
 			{
-				// Mark operation in process.
-				gattHandler.mCurrentOpContext = callbackContext;
-
-				// Don't report result from writing descriptor.
-				gattHandler.mDontReportWriteDescriptor = true;
+				++mThrottleCount;
+				mState = STATE_THROTTLED;
+				postStart(delay);
+				return;
+			}
 
-				// Write the config descriptor.
-				if (!disableConfigDescriptor(callbackContext, gattHandler, gatt, characteristic)) {
-					gattHandler.mDontReportWriteDescriptor = false;
-					gattHandler.mCurrentOpContext = null;
-					gattHandler.process();
+			BluetoothAdapter adapter = BluetoothAdapter.getDefaultAdapter();
+			if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP)
+			{
+				if (!adapter.startLeScan(mServiceUUIDs, BLE.this))
+				{
+					fail("Android function startLeScan failed");
 					return;
 				}
-
-				// Call success callback for notification turned off.
-				callbackContext.success();
 			}
-		});
-		gattHandler.process();
-	}
+			else
+			{
+				BluetoothLeScanner scanner = adapter.getBluetoothLeScanner();
+				if (null == scanner)
+				{
+					fail("Android function getBluetoothLeScanner failed");
+					return;
+				}
+				if (null == mScanCallback)
+				{
+					mScanCallback = new BLEScanCallback();
+				}
+				scanner.startScan(mFilters, mSettings, mScanCallback);
+			}
 
-	// Helper method.
-	private boolean disableConfigDescriptor(
-		final CallbackContext callbackContext,
-		final GattHandler gattHandler,
-		final BluetoothGatt gatt,
-		final BluetoothGattCharacteristic characteristic)
-	{
-		// Get config descriptor.
-		BluetoothGattDescriptor configDescriptor = characteristic.getDescriptor(
-			UUID.fromString("00002902-0000-1000-8000-00805f9b34fb"));
-		if (configDescriptor == null) {
-			callbackContext.error("Could not get config descriptor");
-			return false;
+			mScanStartLimiter.recordStart();
+			++mStartCount;
+			mState = STATE_SCANNING;
+			mScanStartTime = SystemClock.elapsedRealtime();
+			if (mOnTime > 0)
+			{
+				mHandler.postDelayed(mPauseRunnable, mOnTime);
+			}
+			else if (mRestartInterval > 0)
+			{
+				mHandler.postDelayed(mRestartRunnable, mRestartInterval);
+			}
 		}
 
-		// Set value of config descriptor.
-		byte[] descriptorValue = BluetoothGattDescriptor.DISABLE_NOTIFICATION_VALUE;
-		configDescriptor.setValue(descriptorValue);
+		private void stopHardware()
+		{
+			BluetoothAdapter adapter = BluetoothAdapter.getDefaultAdapter();
 
-		// Write descriptor.
-		boolean success = gatt.writeDescriptor(configDescriptor);
-		if (!success) {
-			callbackContext.error("Could not write config descriptor");
-			return false;
+			// Deliver results batched by the controller before stopping.
+			if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP)
+			{
+				BluetoothLeScanner scanner = adapter.getBluetoothLeScanner();
+				if (null != scanner && null != mScanCallback)
+				{
+					scanner.flushPendingScanResults(mScanCallback);
+				}
+			}
+			stopHardwareScan(adapter);
 		}
 
-		return true;
+		private void fail(String message)
+		{
+			cancel();
+			if (mScanScheduler == this)
+			{
+				mScanScheduler = null;
+			}
+			CallbackContext callbackContext = mScanCallbackContext;
+			if (null != callbackContext)
+			{
+				callbackContext.error(message);
+				mScanCallbackContext = null;
+			}
+		}
 	}
 
-	// API implementation.
-	private void testCharConversion(
-		final CordovaArgs args,
-		final CallbackContext callbackContext)
-		throws JSONException
+	// A scan filter given in the startScan options, compiled to a predicate
+	// that is applied to scan results. All fields that are set must match.
+	static class ScanFilterSpec
 	{
-		byte[] b = {(byte)args.getInt(0)};
-		callbackContext.success(b);
-	}
+		String mName;
+		String mNamePrefix;
+		Set<String> mAddresses;
+		Integer mRssiMin;
+		String mServiceUUID;
+		String mServiceUUIDRecordOrder;
+		Integer mManufacturerId;
+		byte[] mManufacturerData;
+		byte[] mManufacturerDataMask;
+		String mServiceDataUUID;
+		String mServiceDataUUIDRecordOrder;
+		byte[] mServiceData;
+		byte[] mServiceDataMask;
+
+		static List<ScanFilterSpec> parseList(JSONArray filters) throws JSONException
+		{
+			if (null == filters || filters.length() == 0)
+			{
+				return null;
+			}
+			List<ScanFilterSpec> list = new ArrayList<ScanFilterSpec>();
+			for (int i = 0; i < filters.length(); ++i)
+			{
+				list.add(parse(filters.getJSONObject(i)));
+			}
+			return list;
+		}
 
-	// API implementation.
-	private void reset(final CordovaArgs args, final CallbackContext cc) throws JSONException
-	{
-		mResetCallbackContext = null;
-		BluetoothAdapter a = BluetoothAdapter.getDefaultAdapter();
-		if (mScanCallbackContext != null) {
-			a.stopLeScan(this);
-			mScanCallbackContext = null;
+		static ScanFilterSpec parse(JSONObject o) throws JSONException
+		{
+			ScanFilterSpec f = new ScanFilterSpec();
+			f.mName = optString(o, "name");
+			f.mNamePrefix = optString(o, "namePrefix");
+			JSONArray addresses = o.optJSONArray("addresses");
+			if (null != addresses)
+			{
+				f.mAddresses = new HashSet<String>();
+				for (int i = 0; i < addresses.length(); ++i)
+				{
+					f.mAddresses.add(addresses.getString(i).toUpperCase());
+				}
+			}
+			if (o.has("rssiMin"))
+			{
+				f.mRssiMin = Integer.valueOf(o.getInt("rssiMin"));
+			}
+			f.mServiceUUID = optUUID(o, "serviceUUID");
+			if (null != f.mServiceUUID)
+			{
+				f.mServiceUUIDRecordOrder = AdvertisementData.uuidToRecordOrderString(f.mServiceUUID);
+			}
+			if (o.has("manufacturerId"))
+			{
+				f.mManufacturerId = Integer.valueOf(o.getInt("manufacturerId"));
+			}
+			f.mManufacturerData = optBase64(o, "manufacturerData");
+			f.mManufacturerDataMask = optBase64(o, "manufacturerDataMask");
+			f.mServiceDataUUID = optUUID(o, "serviceDataUUID");
+			if (null != f.mServiceDataUUID)
+			{
+				f.mServiceDataUUIDRecordOrder =
+					AdvertisementData.uuidToRecordOrderString(f.mServiceDataUUID);
+			}
+			f.mServiceData = optBase64(o, "serviceData");
+			f.mServiceDataMask = optBase64(o, "serviceDataMask");
+
+			if (null != f.mManufacturerData && null == f.mManufacturerId)
+			{
+				throw new JSONException("manufacturerData requires manufacturerId");
+			}
+			if (null != f.mServiceData && null == f.mServiceDataUUID)
+			{
+				throw new JSONException("serviceData requires serviceDataUUID");
+			}
+			checkMask(f.mManufacturerData, f.mManufacturerDataMask, "manufacturerDataMask");
+			checkMask(f.mServiceData, f.mServiceDataMask, "serviceDataMask");
+			return f;
 		}
-		int state = a.getState();
-		//STATE_OFF, STATE_TURNING_ON, STATE_ON, STATE_TURNING_OFF.
-		if (state == BluetoothAdapter.STATE_TURNING_ON) {
-			// reset in progress; wait for STATE_ON.
-			mResetCallbackContext = cc;
-			return;
+
+		// Create hardware filters for the given specs. The hardware filters
+		// may match more devices than the specs, but never fewer. Returns
+		// an empty list if some spec cannot be expressed as a hardware
+		// filter, since that spec must then see all results.
+		static List<ScanFilter> toScanFilters(List<ScanFilterSpec> specs)
+		{
+			List<ScanFilter> filters = new ArrayList<ScanFilter>();
+			for (ScanFilterSpec spec : specs)
+			{
+				ScanFilter filter = spec.toScanFilter();
+				if (null == filter)
+				{
+					return new ArrayList<ScanFilter>();
+				}
+				filters.add(filter);
+			}
+			return filters;
 		}
-		if (state == BluetoothAdapter.STATE_TURNING_OFF) {
-			// reset in progress; wait for STATE_OFF.
-			mResetCallbackContext = cc;
-			return;
+
+		// Returns null if no field can be handled by the hardware.
+		ScanFilter toScanFilter()
+		{
+			ScanFilter.Builder builder = new ScanFilter.Builder();
+			boolean hasCriteria = false;
+			if (null != mName)
+			{
+				builder.setDeviceName(mName);
+				hasCriteria = true;
+			}
+			if (null != mAddresses && mAddresses.size() == 1)
+			{
+				builder.setDeviceAddress(mAddresses.iterator().next());
+				hasCriteria = true;
+			}
+			if (null != mServiceUUID)
+			{
+				builder.setServiceUuid(ParcelUuid.fromString(mServiceUUID));
+				hasCriteria = true;
+			}
+			if (null != mManufacturerId)
+			{
+				builder.setManufacturerData(
+					mManufacturerId.intValue(),
+					null != mManufacturerData ? mManufacturerData : new byte[0],
+					mManufacturerDataMask);
+				hasCriteria = true;
+			}
+			if (null != mServiceDataUUID)
+			{
+				builder.setServiceData(
+					ParcelUuid.fromString(mServiceDataUUID),
+					null != mServiceData ? mServiceData : new byte[0],
+					mServiceDataMask);
+				hasCriteria = true;
+			}
+			return hasCriteria ? builder.build() : null;
 		}
-		if (state == BluetoothAdapter.STATE_OFF) {
-			boolean res = a.enable();
-			if (res) {
-				mResetCallbackContext = cc;
-			} else {
-				cc.error("enable");
+
+		boolean needsAdvertisementData()
+		{
+			return null != mName || null != mNamePrefix || null != mServiceUUID
+				|| null != mManufacturerId || null != mServiceDataUUID;
+		}
+
+		// The advertisement data must be given if needsAdvertisementData()
+		// returns true.
+		boolean matches(BluetoothDevice device, int rssi, AdvertisementData ad, DeviceNameCache names)
+		{
+			if (null != mRssiMin && rssi < mRssiMin.intValue())
+			{
+				return false;
 			}
-			return;
+			if (null != mAddresses && !mAddresses.contains(device.getAddress()))
+			{
+				return false;
+			}
+			if (null != mName || null != mNamePrefix)
+			{
+				String name = (null != ad.mLocalName) ? ad.mLocalName : names.getName(device);
+				if (null == name)
+				{
+					return false;
+				}
+				if (null != mName && !name.equals(mName))
+				{
+					return false;
+				}
+				if (null != mNamePrefix && !name.startsWith(mNamePrefix))
+				{
+					return false;
+				}
+			}
+			if (null != mServiceUUID
+				&& (null == ad.mServiceUUIDs
+					|| !(ad.mServiceUUIDs.contains(mServiceUUID)
+						|| ad.mServiceUUIDs.contains(mServiceUUIDRecordOrder))))
+			{
+				return false;
+			}
+			if (null != mManufacturerId)
+			{
+				// Manufacturer data starts with the company id, little endian.
+				byte[] data = ad.mManufacturerData;
+				if (null == data || data.length < 2)
+				{
+					return false;
+				}
+				int id = (data[0] & 0xff) | ((data[1] & 0xff) << 8);
+				if (id != mManufacturerId.intValue()
+					|| !maskedEquals(data, 2, mManufacturerData, mManufacturerDataMask))
+				{
+					return false;
+				}
+			}
+			if (null != mServiceDataUUID)
+			{
+				byte[] data = null;
+				if (null != ad.mServiceData)
+				{
+					data = ad.mServiceData.get(mServiceDataUUID);
+					if (null == data)
+					{
+						data = ad.mServiceData.get(mServiceDataUUIDRecordOrder);
+					}
+				}
+				if (null == data || !maskedEquals(data, 0, mServiceData, mServiceDataMask))
+				{
+					return false;
+				}
+			}
+			return true;
 		}
-		if (state == BluetoothAdapter.STATE_ON) {
-			boolean res = a.disable();
-			if (res) {
-				mResetCallbackContext = cc;
-			} else {
-				cc.error("disable");
+
+		// Compare the beginning of data (starting at offset) with pattern,
+		// using only the bits that are set in mask. A null mask means all bits.
+		private static boolean maskedEquals(byte[] data, int offset, byte[] pattern, byte[] mask)
+		{
+			if (null == pattern)
+			{
+				return true;
 			}
-			return;
+			if (data.length - offset < pattern.length)
+			{
+				return false;
+			}
+			for (int i = 0; i < pattern.length; ++i)
+			{
+				int m = (null != mask) ? mask[i] : 0xff;
+				if (((data[offset + i] ^ pattern[i]) & m) != 0)
+				{
+					return false;
+				}
+			}
+			return true;
+		}
+
+		private static void checkMask(byte[] data, byte[] mask, String name) throws JSONException
+		{
+			if (null != mask && (null == data || data.length != mask.length))
+			{
+				throw new JSONException(name+" must have the same length as the data");
+			}
+		}
+
+		private static String optString(JSONObject o, String name)
+		{
+			return o.isNull(name) ? null : o.optString(name, null);
+		}
+
+		private static String optUUID(JSONObject o, String name)
+		{
+			String uuid = optString(o, name);
+			return (null != uuid) ? UUID.fromString(uuid).toString() : null;
+		}
+
+		private static byte[] optBase64(JSONObject o, String name)
+		{
+			String data = optString(o, name);
+			return (null != data) ? Base64.decode(data, Base64.DEFAULT) : null;
 		}
-		cc.error("Unknown state: "+state);
 	}
 
-	// Receives notification about Bluetooth power on and off. Used by reset().
-	class BluetoothStateReceiver extends BroadcastReceiver
+	// A scan result waiting to be sent to JavaScript.
+	static class ScanResultEntry
 	{
-		public void onReceive(Context context, Intent intent)
+		BluetoothDevice mDevice;
+		int mRssi;
+		byte[] mScanRecord;
+
+		// Time the advertisement was received, in milliseconds since the epoch.
+		long mTimestamp;
+
+		// Number of advertisements merged into this result.
+		int mPacketCount = 1;
+
+		// Set when the device cache is enabled.
+		double mSmoothedRssi = Double.NaN;
+
+		// Device cache event ("appeared" or "changed"), or null.
+		String mEvent;
+
+		// Decoded beacon frame, set in beacon mode.
+		BeaconFrame mBeacon;
+
+		// Elapsed realtime when the result was received, used for latency stats.
+		long mReceivedNanos;
+
+		ScanResultEntry(BluetoothDevice device, int rssi, byte[] scanRecord, long timestamp)
 		{
-			BluetoothAdapter a = BluetoothAdapter.getDefaultAdapter();
-			int state = a.getState();
-			System.out.println("BluetoothState: "+a);
-			if (mResetCallbackContext != null) {
-				if (state == BluetoothAdapter.STATE_OFF) {
-					boolean res = a.enable();
-					if (!res) {
-						mResetCallbackContext.error("enable");
-						mResetCallbackContext = null;
-					}
+			set(device, rssi, scanRecord, timestamp);
+		}
+
+		void set(BluetoothDevice device, int rssi, byte[] scanRecord, long timestamp)
+		{
+			mDevice = device;
+			mRssi = rssi;
+			mScanRecord = scanRecord;
+			mTimestamp = timestamp;
+			mPacketCount = 1;
+			mSmoothedRssi = Double.NaN;
+			mEvent = null;
+			mBeacon = null;
+			mReceivedNanos = SystemClock.elapsedRealtimeNanos();
+		}
+	}
+
+	// Pool of scan result entries. Entries are recycled when dropped,
+	// merged by the coalescer, or sent to JavaScript.
+	static class ScanResultPool
+	{
+		static final int MAX_SIZE = 64;
+
+		private final ScanResultEntry[] mFree = new ScanResultEntry[MAX_SIZE];
+		private int mSize = 0;
+
+		// Number of entries allocated because the pool was empty.
+		private long mAllocated = 0;
+
+		synchronized ScanResultEntry obtain(
+			BluetoothDevice device, int rssi, byte[] scanRecord, long timestamp)
+		{
+			if (mSize == 0)
+			{
+				++mAllocated;
+				return new ScanResultEntry(device, rssi, scanRecord, timestamp);
+			}
+			ScanResultEntry entry = mFree[--mSize];
+			mFree[mSize] = null;
+			entry.set(device, rssi, scanRecord, timestamp);
+			return entry;
+		}
+
+		synchronized void recycle(ScanResultEntry entry)
+		{
+			if (mSize < MAX_SIZE)
+			{
+				// Drop references so that devices and records can be collected.
+				entry.mDevice = null;
+				entry.mScanRecord = null;
+				entry.mBeacon = null;
+				mFree[mSize++] = entry;
+			}
+		}
+
+		void recycleAll(List<ScanResultEntry> entries)
+		{
+			for (int i = 0; i < entries.size(); ++i)
+			{
+				recycle(entries.get(i));
+			}
+		}
+
+		synchronized long allocated()
+		{
+			return mAllocated;
+		}
+	}
+
+	// Caches device names per address. Names are fetched again after
+	// REFRESH_INTERVAL, since devices may change their names. The UTF-8
+	// encoding of the name is kept for binary scan results.
+	static class DeviceNameCache
+	{
+		static final int MAX_SIZE = 512;
+		static final long REFRESH_INTERVAL = 10000;
+
+		static class Name
+		{
+			String mName;
+			byte[] mBytes;
+			long mFetchTime;
+		}
+
+		private static final byte[] EMPTY = new byte[0];
+
+		private final LinkedHashMap<String, Name> mNames =
+			new LinkedHashMap<String, Name>(16, 0.75f, true)
+			{
+				@Override
+				protected boolean removeEldestEntry(Map.Entry<String, Name> eldest)
+				{
+					return size() > MAX_SIZE;
 				}
-				if (state == BluetoothAdapter.STATE_ON) {
-					mResetCallbackContext.success();
-					mResetCallbackContext = null;
+			};
+
+		String getName(BluetoothDevice device)
+		{
+			return lookup(device).mName;
+		}
+
+		// Returns the UTF-8 encoded name, truncated to 255 bytes.
+		byte[] getNameBytes(BluetoothDevice device)
+		{
+			return lookup(device).mBytes;
+		}
+
+		private synchronized Name lookup(BluetoothDevice device)
+		{
+			long now = SystemClock.elapsedRealtime();
+			Name name = mNames.get(device.getAddress());
+			if (null == name)
+			{
+				name = new Name();
+				mNames.put(device.getAddress(), name);
+			}
+			else if (now - name.mFetchTime < REFRESH_INTERVAL)
+			{
+				return name;
+			}
+
+			String value = device.getName();
+			if (null == name.mBytes || !equals(value, name.mName))
+			{
+				name.mName = value;
+				name.mBytes = encode(value);
+			}
+			name.mFetchTime = now;
+			return name;
+		}
+
+		private static boolean equals(String a, String b)
+		{
+			return (null == a) ? (null == b) : a.equals(b);
+		}
+
+		private static byte[] encode(String name)
+		{
+			if (null == name)
+			{
+				return EMPTY;
+			}
+			try
+			{
+				byte[] bytes = name.getBytes("UTF-8");
+				return (bytes.length <= 0xff) ? bytes : Arrays.copyOf(bytes, 0xff);
+			}
+			catch (UnsupportedEncodingException e)
+			{
+				return EMPTY;
+			}
+		}
+	}
+
+	// Counters and timers of the scan result pipeline, read with getScanStats.
+	// Atomic counters are used since results arrive on different threads
+	// depending on the scan API, and are cheap enough to always be on.
+	static class ScanStats
+	{
+		// Results received from the Bluetooth stack while scanning.
+		final AtomicLong mReceived = new AtomicLong();
+
+		// Results dropped by scan filters or beacon regions.
+		final AtomicLong mFiltered = new AtomicLong();
+
+		// Results dropped because nothing changed (reportMode "changes").
+		final AtomicLong mUnchanged = new AtomicLong();
+
+		// Results merged into a pending result by the coalescer.
+		final AtomicLong mCoalesced = new AtomicLong();
+
+		// Results sent to JavaScript, and the number of callbacks used.
+		final AtomicLong mForwarded = new AtomicLong();
+		final AtomicLong mCallbacks = new AtomicLong();
+
+		// Batches delivered by the Bluetooth controller (reportDelay).
+		final AtomicLong mBatches = new AtomicLong();
+
+		// Time spent creating JSON objects or binary buffers.
+		final AtomicLong mSerializeNanos = new AtomicLong();
+		final AtomicLong mSerializeMaxNanos = new AtomicLong();
+
+		// Time from a result being received to being sent to JavaScript.
+		final AtomicLong mLatencyNanos = new AtomicLong();
+		final AtomicLong mLatencyMaxNanos = new AtomicLong();
+
+		// Time of the last reset.
+		long mResetTime = System.currentTimeMillis();
+
+		void serialized(long nanos)
+		{
+			mSerializeNanos.addAndGet(nanos);
+			updateMax(mSerializeMaxNanos, nanos);
+		}
+
+		void forwarded(List<ScanResultEntry> results)
+		{
+			long now = SystemClock.elapsedRealtimeNanos();
+			long total = 0;
+			long max = 0;
+			for (ScanResultEntry result : results)
+			{
+				long latency = now - result.mReceivedNanos;
+				total += latency;
+				max = Math.max(max, latency);
+			}
+			forwarded(results.size(), total, max);
+		}
+
+		void forwarded(ScanResultEntry result)
+		{
+			long latency = SystemClock.elapsedRealtimeNanos() - result.mReceivedNanos;
+			forwarded(1, latency, latency);
+		}
+
+		private void forwarded(int count, long totalLatency, long maxLatency)
+		{
+			mForwarded.addAndGet(count);
+			mCallbacks.incrementAndGet();
+			mLatencyNanos.addAndGet(totalLatency);
+			updateMax(mLatencyMaxNanos, maxLatency);
+		}
+
+		JSONObject toJSON() throws JSONException
+		{
+			long forwarded = mForwarded.get();
+			long callbacks = mCallbacks.get();
+			JSONObject o = new JSONObject();
+			o.put("received", mReceived.get());
+			o.put("filtered", mFiltered.get());
+			o.put("unchanged", mUnchanged.get());
+			o.put("coalesced", mCoalesced.get());
+			o.put("forwarded", forwarded);
+			o.put("callbacks", callbacks);
+			o.put("batches", mBatches.get());
+			o.put("serializeTimeTotal", mSerializeNanos.get() / 1e6);
+			o.put("serializeTimeAverage",
+				(callbacks > 0) ? mSerializeNanos.get() / 1e6 / callbacks : 0);
+			o.put("serializeTimeMax", mSerializeMaxNanos.get() / 1e6);
+			o.put("latencyAverage",
+				(forwarded > 0) ? mLatencyNanos.get() / 1e6 / forwarded : 0);
+			o.put("latencyMax", mLatencyMaxNanos.get() / 1e6);
+			o.put("since", mResetTime);
+			return o;
+		}
+
+		void reset()
+		{
+			mReceived.set(0);
+			mFiltered.set(0);
+			mUnchanged.set(0);
+			mCoalesced.set(0);
+			mForwarded.set(0);
+			mCallbacks.set(0);
+			mBatches.set(0);
+			mSerializeNanos.set(0);
+			mSerializeMaxNanos.set(0);
+			mLatencyNanos.set(0);
+			mLatencyMaxNanos.set(0);
+			mResetTime = System.currentTimeMillis();
+		}
+
+		private static void updateMax(AtomicLong max, long value)
+		{
+			long current = max.get();
+			while (value > current && !max.compareAndSet(current, value))
+			{
+				current = max.get();
+			}
+		}
+	}
+
+	// Packs scan results into a binary buffer, used when the scan option
+	// binaryResults is set. All numbers are little endian. Layout:
+	//
+	//   Header, 4 bytes:
+	//     0  uint8    format version (1)
+	//     1  uint8    reserved (0)
+	//     2  uint16   number of results
+	//   Each result, 20 bytes followed by variable length data:
+	//     0  uint8[6] device address, in the order written in the
+	//                 address string ("AA:BB:CC:DD:EE:FF")
+	//     6  int8     RSSI
+	//     7  uint8    length of name in bytes (0 if no name)
+	//     8  float64  timestamp, milliseconds since the epoch
+	//    16  uint16   number of advertisements merged into the result
+	//    18  uint16   length of scan record in bytes
+	//    20  name, UTF-8, followed by the scan record
+	//
+	// This layout is decoded by unpackScanResults in ble.js.
+	static class BinaryScanResults
+	{
+		static final int FORMAT_VERSION = 1;
+		static final int HEADER_SIZE = 4;
+		static final int RESULT_SIZE = 20;
+
+		static byte[] pack(List<ScanResultEntry> results, DeviceNameCache nameCache)
+		{
+			int count = Math.min(results.size(), 0xffff);
+			byte[][] names = new byte[count][];
+			int size = HEADER_SIZE;
+			for (int i = 0; i < count; ++i)
+			{
+				ScanResultEntry result = results.get(i);
+				names[i] = nameCache.getNameBytes(result.mDevice);
+				size += resultSize(result, names[i]);
+			}
+
+			ByteBuffer buffer = allocate(size, count);
+			for (int i = 0; i < count; ++i)
+			{
+				putResult(buffer, results.get(i), names[i]);
+			}
+			return buffer.array();
+		}
+
+		// Packs a single result, gives the same buffer as packing a list
+		// with one element.
+		static byte[] pack(ScanResultEntry result, DeviceNameCache nameCache)
+		{
+			byte[] name = nameCache.getNameBytes(result.mDevice);
+			ByteBuffer buffer = allocate(HEADER_SIZE + resultSize(result, name), 1);
+			putResult(buffer, result, name);
+			return buffer.array();
+		}
+
+		private static int resultSize(ScanResultEntry result, byte[] name)
+		{
+			return RESULT_SIZE + name.length
+				+ Math.min(result.mScanRecord.length, 0xffff);
+		}
+
+		// Allocates the buffer and writes the header.
+		private static ByteBuffer allocate(int size, int count)
+		{
+			ByteBuffer buffer = ByteBuffer.allocate(size);
+			buffer.order(ByteOrder.LITTLE_ENDIAN);
+			buffer.put((byte)FORMAT_VERSION);
+			buffer.put((byte)0);
+			buffer.putShort((short)count);
+			return buffer;
+		}
+
+		private static void putResult(ByteBuffer buffer, ScanResultEntry result, byte[] name)
+		{
+			int recordLength = Math.min(result.mScanRecord.length, 0xffff);
+			putAddress(buffer, result.mDevice.getAddress());
+			buffer.put((byte)result.mRssi);
+			buffer.put((byte)name.length);
+			buffer.putDouble((double)result.mTimestamp);
+			buffer.putShort((short)Math.min(result.mPacketCount, 0xffff));
+			buffer.putShort((short)recordLength);
+			buffer.put(name);
+			buffer.put(result.mScanRecord, 0, recordLength);
+		}
+
+		// Address format is "01:23:45:67:89:AB".
+		private static void putAddress(ByteBuffer buffer, String address)
+		{
+			for (int i = 0; i < 6; ++i)
+			{
+				int high = Character.digit(address.charAt(i * 3), 16);
+				int low = Character.digit(address.charAt(i * 3 + 1), 16);
+				buffer.put((byte)((high << 4) | low));
+			}
+		}
+	}
+
+	// Merges scan results per device address during a time window.
+	// Only the latest RSSI and scan record of each device is kept, and
+	// the results are sent to JavaScript as one array per window.
+	private class ScanCoalescer implements Runnable
+	{
+		final long mWindow;
+		final Handler mHandler = new Handler(Looper.getMainLooper());
+
+		// Pending results, in order of first appearance during the window.
+		LinkedHashMap<String, ScanResultEntry> mPending =
+			new LinkedHashMap<String, ScanResultEntry>();
+
+		boolean mFlushScheduled = false;
+
+		ScanCoalescer(long window)
+		{
+			mWindow = window;
+		}
+
+		// Called from scan callbacks, which may run on different threads.
+		// Returns true if the entry is kept, false if it was merged into
+		// a pending result and can be recycled.
+		synchronized boolean add(ScanResultEntry entry)
+		{
+			boolean kept = false;
+			String address = entry.mDevice.getAddress();
+			ScanResultEntry result = mPending.get(address);
+			if (null == result)
+			{
+				mPending.put(address, entry);
+				kept = true;
+			}
+			else
+			{
+				result.mDevice = entry.mDevice;
+				result.mRssi = entry.mRssi;
+				result.mScanRecord = entry.mScanRecord;
+				result.mTimestamp = entry.mTimestamp;
+				result.mSmoothedRssi = entry.mSmoothedRssi;
+				result.mBeacon = entry.mBeacon;
+				result.mReceivedNanos = entry.mReceivedNanos;
+				// An appeared event is kept until sent.
+				if (null == result.mEvent)
+				{
+					result.mEvent = entry.mEvent;
+				}
+				++result.mPacketCount;
+				mScanStats.mCoalesced.incrementAndGet();
+			}
+
+			if (!mFlushScheduled)
+			{
+				mFlushScheduled = true;
+				mHandler.postDelayed(this, mWindow);
+			}
+			return kept;
+		}
+
+		synchronized void cancel()
+		{
+			mHandler.removeCallbacks(this);
+			// The pending entries come from the pool, as in run().
+			for (ScanResultEntry entry : mPending.values())
+			{
+				mScanResultPool.recycle(entry);
+			}
+			mPending.clear();
+			mFlushScheduled = false;
+		}
+
+		// Send pending results at the end of the window.
+		@Override
+		public void run()
+		{
+			List<ScanResultEntry> results;
+			synchronized (this)
+			{
+				results = new ArrayList<ScanResultEntry>(mPending.values());
+				mPending.clear();
+				mFlushScheduled = false;
+			}
+
+			sendScanResults(results);
+			mScanResultPool.recycleAll(results);
+		}
+	}
+
+	// A device in the scan device cache.
+	static class CachedDevice
+	{
+		BluetoothDevice mDevice;
+		long mFirstSeen;
+		long mLastSeen;
+		int mPacketCount;
+		int mRssi;
+		double mSmoothedRssi;
+		byte[] mScanRecord;
+
+		// State last reported to JavaScript, used to detect changes.
+		double mReportedRssi;
+		byte[] mReportedScanRecord;
+	}
+
+	// Table of devices seen during scan, keyed by address. The table is
+	// bounded in size, when full the least recently seen device is evicted.
+	// Devices not seen for maxAge milliseconds are removed, and reported as
+	// disappeared when the scan option reportMode is "changes".
+	// RSSI values are smoothed using an exponentially weighted moving average.
+	private class ScanDeviceCache implements Runnable
+	{
+		static final int DEFAULT_SIZE = 256;
+		static final double DEFAULT_SMOOTHING_FACTOR = 0.25;
+		static final int DEFAULT_RSSI_CHANGE_THRESHOLD = 5;
+
+		final int mMaxSize;
+		final long mMaxAge;
+		final double mSmoothingFactor;
+		final int mRssiChangeThreshold;
+		final Handler mHandler = new Handler(Looper.getMainLooper());
+
+		// Access ordered, so the eldest entry is the least recently seen.
+		final LinkedHashMap<String, CachedDevice> mDevices;
+
+		ScanDeviceCache(int maxSize, long maxAge, double smoothingFactor, int rssiChangeThreshold)
+		{
+			mMaxSize = maxSize;
+			mMaxAge = maxAge;
+			mSmoothingFactor = Math.max(0.0, Math.min(1.0, smoothingFactor));
+			mRssiChangeThreshold = rssiChangeThreshold;
+			mDevices = new LinkedHashMap<String, CachedDevice>(16, 0.75f, true)
+			{
+				@Override
+				protected boolean removeEldestEntry(Map.Entry<String, CachedDevice> eldest)
+				{
+					return size() > mMaxSize;
+				}
+			};
+			if (mMaxAge > 0)
+			{
+				mHandler.postDelayed(this, sweepInterval());
+			}
+		}
+
+		// Update the cache with a scan result. Sets the smoothed RSSI of the
+		// result, and sets the event of the result if the device appeared
+		// or changed materially since it was last reported.
+		synchronized void update(ScanResultEntry entry)
+		{
+			String address = entry.mDevice.getAddress();
+			CachedDevice d = mDevices.get(address);
+			if (null == d)
+			{
+				d = new CachedDevice();
+				d.mFirstSeen = entry.mTimestamp;
+				d.mSmoothedRssi = entry.mRssi;
+				d.mReportedRssi = entry.mRssi;
+				d.mReportedScanRecord = entry.mScanRecord;
+				mDevices.put(address, d);
+				entry.mEvent = "appeared";
+			}
+			else
+			{
+				d.mSmoothedRssi += mSmoothingFactor * (entry.mRssi - d.mSmoothedRssi);
+				if (Math.abs(d.mSmoothedRssi - d.mReportedRssi) >= mRssiChangeThreshold
+					|| !Arrays.equals(entry.mScanRecord, d.mReportedScanRecord))
+				{
+					d.mReportedRssi = d.mSmoothedRssi;
+					d.mReportedScanRecord = entry.mScanRecord;
+					entry.mEvent = "changed";
+				}
+			}
+			d.mDevice = entry.mDevice;
+			d.mLastSeen = entry.mTimestamp;
+			d.mRssi = entry.mRssi;
+			d.mScanRecord = entry.mScanRecord;
+			++d.mPacketCount;
+			entry.mSmoothedRssi = d.mSmoothedRssi;
+		}
+
+		// Stop aging devices. Called when scanning stops.
+		void stop()
+		{
+			mHandler.removeCallbacks(this);
+		}
+
+		// Returns cached devices that match the filter (which may be null)
+		// and have been seen within maxAge milliseconds (0 means any age).
+		synchronized JSONArray query(ScanFilterSpec filter, long maxAge) throws JSONException
+		{
+			long now = System.currentTimeMillis();
+			JSONArray devices = new JSONArray();
+			for (CachedDevice d : mDevices.values())
+			{
+				if (maxAge > 0 && now - d.mLastSeen > maxAge)
+				{
+					continue;
+				}
+				AdvertisementData ad = AdvertisementData.parse(d.mScanRecord);
+				if (null != filter && !filter.matches(d.mDevice, d.mRssi, ad, mDeviceNames))
+				{
+					continue;
+				}
+				JSONObject o = new JSONObject();
+				o.put("address", d.mDevice.getAddress());
+				o.put("name", mDeviceNames.getName(d.mDevice));
+				o.put("rssi", d.mRssi);
+				o.put("smoothedRssi", d.mSmoothedRssi);
+				o.put("firstSeen", d.mFirstSeen);
+				o.put("lastSeen", d.mLastSeen);
+				o.put("packetCount", d.mPacketCount);
+				o.put("scanRecord", Base64.encodeToString(d.mScanRecord, Base64.NO_WRAP));
+				o.put("advertisementData", ad.toJSON());
+				devices.put(o);
+			}
+			return devices;
+		}
+
+		// Remove devices not seen within maxAge.
+		@Override
+		public void run()
+		{
+			JSONArray disappeared = sweep(System.currentTimeMillis());
+
+			CallbackContext callbackContext = mScanCallbackContext;
+			if (mScanReportChanges && null != callbackContext && disappeared.length() > 0)
+			{
+				keepCallback(callbackContext, disappeared);
+			}
+
+			mHandler.postDelayed(this, sweepInterval());
+		}
+
+		// Remove devices not seen within maxAge before now, and return
+		// their disappeared events.
+		synchronized JSONArray sweep(long now)
+		{
+			JSONArray disappeared = new JSONArray();
+			Iterator<CachedDevice> itr = mDevices.values().iterator();
+			while (itr.hasNext())
+			{
+				CachedDevice d = itr.next();
+				if (now - d.mLastSeen > mMaxAge)
+				{
+					itr.remove();
+					try
+					{
+						JSONObject o = new JSONObject();
+						o.put("address", d.mDevice.getAddress());
+						o.put("name", mDeviceNames.getName(d.mDevice));
+						o.put("lastSeen", d.mLastSeen);
+						o.put("event", "disappeared");
+						disappeared.put(o);
+					}
+					catch (JSONException e)
+					{
+						e.printStackTrace();
+					}
+				}
+			}
+			return disappeared;
+		}
+
+		private long sweepInterval()
+		{
+			return Math.max(mMaxAge / 4, 250);
+		}
+	}
+
+	// A beacon frame decoded from advertisement data. Recognizes iBeacon
+	// manufacturer data and Eddystone UID, URL, TLM and EID service data.
+	static class BeaconFrame
+	{
+		static final String EDDYSTONE_SERVICE_UUID = "0000feaa-0000-1000-8000-00805f9b34fb";
+
+		static final String TYPE_IBEACON = "ibeacon";
+		static final String TYPE_EDDYSTONE_UID = "eddystone-uid";
+		static final String TYPE_EDDYSTONE_URL = "eddystone-url";
+		static final String TYPE_EDDYSTONE_TLM = "eddystone-tlm";
+		static final String TYPE_EDDYSTONE_EID = "eddystone-eid";
+
+		// Eddystone transmits power at 0 m, 41 dB is the typical
+		// loss over the first meter.
+		static final int EDDYSTONE_LOSS_AT_1M = 41;
+
+		private static final String[] URL_SCHEMES = {
+			"http://www.", "https://www.", "http://", "https://" };
+
+		private static final String[] URL_EXPANSIONS = {
+			".com/", ".org/", ".edu/", ".net/", ".info/", ".biz/", ".gov/",
+			".com", ".org", ".edu", ".net", ".info", ".biz", ".gov" };
+
+		String mType;
+
+		// Expected RSSI at 1 m, null for frames without power level (TLM).
+		Integer mMeasuredPower;
+
+		// Estimated distance in meters, NaN if not known.
+		double mDistance = Double.NaN;
+
+		// iBeacon fields.
+		String mUUID;
+		int mMajor;
+		int mMinor;
+
+		// Eddystone UID fields (hex strings) and EID.
+		String mNamespace;
+		String mInstance;
+		String mEID;
+
+		// Eddystone URL field.
+		String mURL;
+
+		// Eddystone TLM fields.
+		int mTLMVersion;
+		int mBatteryVoltage;
+		double mTemperature;
+		long mAdvertisementCount;
+		long mUptime;
+
+		// Returns null if the scan record holds no known beacon frame.
+		// Looks for the beacon AD structures in the raw scan record,
+		// so that other advertisements are dropped without allocation.
+		static BeaconFrame decode(byte[] scanRecord)
+		{
+			int pos = 0;
+			while (pos + 1 < scanRecord.length)
+			{
+				int length = scanRecord[pos] & 0xff;
+				if (length == 0 || pos + 1 + length > scanRecord.length)
+				{
+					break;
+				}
+				int type = scanRecord[pos + 1] & 0xff;
+				int start = pos + 2;
+				int end = pos + 1 + length;
+				if (type == AdvertisementData.TYPE_MANUFACTURER_DATA
+					&& end - start >= 4
+					&& scanRecord[start] == 0x4c && scanRecord[start + 1] == 0x00
+					&& scanRecord[start + 2] == 0x02 && scanRecord[start + 3] == 0x15)
+				{
+					return decodeIBeacon(Arrays.copyOfRange(scanRecord, start, end));
+				}
+				if (type == AdvertisementData.TYPE_SERVICE_DATA_16
+					&& end - start >= 2
+					&& (scanRecord[start] & 0xff) == 0xaa && (scanRecord[start + 1] & 0xff) == 0xfe)
+				{
+					return decodeEddystone(Arrays.copyOfRange(scanRecord, start + 2, end));
+				}
+				pos = end;
+			}
+			return null;
+		}
+
+		// Manufacturer data layout: company id 0x004c (little endian),
+		// type 0x02, length 0x15, UUID[16], major[2], minor[2], power[1].
+		private static BeaconFrame decodeIBeacon(byte[] b)
+		{
+			if (null == b || b.length < 25
+				|| b[0] != 0x4c || b[1] != 0x00 || b[2] != 0x02 || b[3] != 0x15)
+			{
+				return null;
+			}
+			BeaconFrame beacon = new BeaconFrame();
+			beacon.mType = TYPE_IBEACON;
+			beacon.mUUID = uuidToString(b, 4);
+			beacon.mMajor = readUInt16BE(b, 20);
+			beacon.mMinor = readUInt16BE(b, 22);
+			beacon.mMeasuredPower = Integer.valueOf(b[24]);
+			return beacon;
+		}
+
+		private static BeaconFrame decodeEddystone(byte[] b)
+		{
+			if (null == b || b.length < 1)
+			{
+				return null;
+			}
+			BeaconFrame beacon = new BeaconFrame();
+			switch (b[0] & 0xff)
+			{
+				case 0x00:
+					if (b.length < 18)
+					{
+						return null;
+					}
+					beacon.mType = TYPE_EDDYSTONE_UID;
+					beacon.mMeasuredPower = Integer.valueOf(b[1] - EDDYSTONE_LOSS_AT_1M);
+					beacon.mNamespace = toHex(b, 2, 10);
+					beacon.mInstance = toHex(b, 12, 6);
+					return beacon;
+				case 0x10:
+					if (b.length < 3 || (b[2] & 0xff) >= URL_SCHEMES.length)
+					{
+						return null;
+					}
+					beacon.mType = TYPE_EDDYSTONE_URL;
+					beacon.mMeasuredPower = Integer.valueOf(b[1] - EDDYSTONE_LOSS_AT_1M);
+					beacon.mURL = decodeURL(b);
+					return beacon;
+				case 0x20:
+					if (b.length < 14)
+					{
+						return null;
+					}
+					beacon.mType = TYPE_EDDYSTONE_TLM;
+					beacon.mTLMVersion = b[1] & 0xff;
+					beacon.mBatteryVoltage = readUInt16BE(b, 2);
+					// Signed 8.8 fixed point.
+					beacon.mTemperature = ((short)readUInt16BE(b, 4)) / 256.0;
+					beacon.mAdvertisementCount = readUInt32BE(b, 6);
+					// Counted in units of 0.1 s.
+					beacon.mUptime = readUInt32BE(b, 10) * 100;
+					return beacon;
+				case 0x30:
+					if (b.length < 10)
+					{
+						return null;
+					}
+					beacon.mType = TYPE_EDDYSTONE_EID;
+					beacon.mMeasuredPower = Integer.valueOf(b[1] - EDDYSTONE_LOSS_AT_1M);
+					beacon.mEID = toHex(b, 2, 8);
+					return beacon;
+				default:
+					return null;
+			}
+		}
+
+		private static String decodeURL(byte[] b)
+		{
+			StringBuilder sb = new StringBuilder(URL_SCHEMES[b[2] & 0xff]);
+			for (int i = 3; i < b.length; ++i)
+			{
+				int c = b[i] & 0xff;
+				if (c < URL_EXPANSIONS.length)
+				{
+					sb.append(URL_EXPANSIONS[c]);
+				}
+				else
+				{
+					sb.append((char)c);
+				}
+			}
+			return sb.toString();
+		}
+
+		// Estimate distance in meters from the (smoothed) RSSI, using the
+		// log-distance fit commonly used for iBeacons.
+		void estimateDistance(double rssi)
+		{
+			if (null == mMeasuredPower || rssi >= 0)
+			{
+				return;
+			}
+			double ratio = rssi / mMeasuredPower.intValue();
+			mDistance = (ratio < 1.0) ?
+				Math.pow(ratio, 10) :
+				0.89976 * Math.pow(ratio, 7.7095) + 0.111;
+		}
+
+		JSONObject toJSON() throws JSONException
+		{
+			JSONObject o = new JSONObject();
+			o.put("type", mType);
+			if (null != mMeasuredPower)
+			{
+				o.put("measuredPower", mMeasuredPower.intValue());
+			}
+			if (!Double.isNaN(mDistance))
+			{
+				o.put("distance", mDistance);
+			}
+			if (TYPE_IBEACON.equals(mType))
+			{
+				o.put("uuid", mUUID);
+				o.put("major", mMajor);
+				o.put("minor", mMinor);
+			}
+			else if (TYPE_EDDYSTONE_UID.equals(mType))
+			{
+				o.put("namespace", mNamespace);
+				o.put("instance", mInstance);
+			}
+			else if (TYPE_EDDYSTONE_URL.equals(mType))
+			{
+				o.put("url", mURL);
+			}
+			else if (TYPE_EDDYSTONE_EID.equals(mType))
+			{
+				o.put("eid", mEID);
+			}
+			else if (TYPE_EDDYSTONE_TLM.equals(mType))
+			{
+				o.put("version", mTLMVersion);
+				o.put("batteryVoltage", mBatteryVoltage);
+				o.put("temperature", mTemperature);
+				o.put("advertisementCount", mAdvertisementCount);
+				o.put("uptime", mUptime);
+			}
+			return o;
+		}
+
+		private static int readUInt16BE(byte[] b, int offset)
+		{
+			return ((b[offset] & 0xff) << 8) | (b[offset + 1] & 0xff);
+		}
+
+		private static long readUInt32BE(byte[] b, int offset)
+		{
+			return ((long)readUInt16BE(b, offset) << 16) | readUInt16BE(b, offset + 2);
+		}
+
+		private static String toHex(byte[] b, int offset, int length)
+		{
+			StringBuilder sb = new StringBuilder(length * 2);
+			for (int i = 0; i < length; ++i)
+			{
+				sb.append(String.format("%02x", b[offset + i]));
+			}
+			return sb.toString();
+		}
+
+		// iBeacon UUIDs are big endian.
+		private static String uuidToString(byte[] b, int offset)
+		{
+			String hex = toHex(b, offset, 16);
+			return hex.substring(0, 8) + "-" + hex.substring(8, 12) + "-"
+				+ hex.substring(12, 16) + "-" + hex.substring(16, 20) + "-"
+				+ hex.substring(20);
+		}
+	}
+
+	// A beacon region given in the scan option beaconRegions. An iBeacon
+	// region has a uuid and optionally major and minor, an Eddystone region
+	// has a namespace and optionally an instance.
+	static class BeaconRegion
+	{
+		String mUUID;
+		int mMajor = -1;
+		int mMinor = -1;
+		String mNamespace;
+		String mInstance;
+
+		// Returns null if the array is null or empty.
+		static List<BeaconRegion> parseList(JSONArray array) throws JSONException
+		{
+			if (null == array || array.length() == 0)
+			{
+				return null;
+			}
+			List<BeaconRegion> regions = new ArrayList<BeaconRegion>();
+			for (int i = 0; i < array.length(); ++i)
+			{
+				JSONObject o = array.getJSONObject(i);
+				BeaconRegion region = new BeaconRegion();
+				if (!o.isNull("uuid"))
+				{
+					region.mUUID = o.getString("uuid").toLowerCase();
+				}
+				if (!o.isNull("namespace"))
+				{
+					region.mNamespace = o.getString("namespace").toLowerCase();
+				}
+				if (!o.isNull("instance"))
+				{
+					region.mInstance = o.getString("instance").toLowerCase();
+				}
+				region.mMajor = o.optInt("major", -1);
+				region.mMinor = o.optInt("minor", -1);
+				if ((null == region.mUUID) == (null == region.mNamespace))
+				{
+					throw new JSONException("region must have either uuid or namespace");
+				}
+				if (null != region.mUUID && region.mMinor >= 0 && region.mMajor < 0)
+				{
+					throw new JSONException("minor requires major");
+				}
+				if (null != region.mNamespace && (region.mMajor >= 0 || region.mMinor >= 0))
+				{
+					throw new JSONException("major and minor require uuid");
+				}
+				if (null != region.mInstance && null == region.mNamespace)
+				{
+					throw new JSONException("instance requires namespace");
+				}
+				regions.add(region);
+			}
+			return regions;
+		}
+
+		// Returns true if regions is null or any region matches. Beacon
+		// frames without identity (URL, TLM, EID) only match when
+		// regions is null.
+		static boolean matchesAny(List<BeaconRegion> regions, BeaconFrame beacon)
+		{
+			if (null == regions)
+			{
+				return true;
+			}
+			for (BeaconRegion region : regions)
+			{
+				if (region.matches(beacon))
+				{
+					return true;
+				}
+			}
+			return false;
+		}
+
+		boolean matches(BeaconFrame beacon)
+		{
+			if (null != mUUID)
+			{
+				return BeaconFrame.TYPE_IBEACON.equals(beacon.mType)
+					&& mUUID.equals(beacon.mUUID)
+					&& (mMajor < 0 || mMajor == beacon.mMajor)
+					&& (mMinor < 0 || mMinor == beacon.mMinor);
+			}
+			return BeaconFrame.TYPE_EDDYSTONE_UID.equals(beacon.mType)
+				&& mNamespace.equals(beacon.mNamespace)
+				&& (null == mInstance || mInstance.equals(beacon.mInstance));
+		}
+	}
+
+	// Advertisement data parsed from a scan record. The scan record is
+	// BLE/GAP Scan Response Data, see the Bluetooth Specification, v4.0,
+	// Volume 3, Part C, Section 11, for details.
+	// The JSON form produced by toJSON() is identical to the object created
+	// by parseAdvertisementData in ble.js, which is used when this parser
+	// is not enabled.
+	static class AdvertisementData
+	{
+		static final String BLUETOOTH_BASE_UUID = "-0000-1000-8000-00805f9b34fb";
+
+		// AD types handled by the parser.
+		static final int TYPE_FLAGS = 0x01;
+		static final int TYPE_SERVICE_UUIDS_16_PARTIAL = 0x02;
+		static final int TYPE_SERVICE_UUIDS_16_COMPLETE = 0x03;
+		static final int TYPE_SERVICE_UUIDS_32_PARTIAL = 0x04;
+		static final int TYPE_SERVICE_UUIDS_32_COMPLETE = 0x05;
+		static final int TYPE_SERVICE_UUIDS_128_PARTIAL = 0x06;
+		static final int TYPE_SERVICE_UUIDS_128_COMPLETE = 0x07;
+		static final int TYPE_LOCAL_NAME_SHORT = 0x08;
+		static final int TYPE_LOCAL_NAME_COMPLETE = 0x09;
+		static final int TYPE_TX_POWER_LEVEL = 0x0a;
+		static final int TYPE_SERVICE_DATA_16 = 0x16;
+		static final int TYPE_SERVICE_DATA_32 = 0x20;
+		static final int TYPE_SERVICE_DATA_128 = 0x21;
+		static final int TYPE_MANUFACTURER_DATA = 0xff;
+
+		private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+		// Fields are null (or -1 for mFlags) when not present in the scan record.
+		int mFlags = -1;
+		String mLocalName;
+		Integer mTxPowerLevel;
+		List<String> mServiceUUIDs;
+		LinkedHashMap<String, byte[]> mServiceData;
+		byte[] mManufacturerData;
+
+		// Parse a scan record. Malformed trailing structures are ignored.
+		static AdvertisementData parse(byte[] scanRecord)
+		{
+			AdvertisementData ad = new AdvertisementData();
+			if (null == scanRecord)
+			{
+				return ad;
+			}
+
+			// The scan record is a list of structures.
+			// Each structure has a length byte, a type byte, and (length-1) data bytes.
+			// The format of the data bytes depends on the type.
+			int pos = 0;
+			while (pos < scanRecord.length)
+			{
+				int length = scanRecord[pos++] & 0xff;
+				if (length == 0 || pos + length > scanRecord.length)
+				{
+					break;
+				}
+				int type = scanRecord[pos] & 0xff;
+				int start = pos + 1;
+				length -= 1;
+				pos = start + length;
+
+				switch (type)
+				{
+					case TYPE_FLAGS:
+						if (length >= 1)
+						{
+							ad.mFlags = scanRecord[start] & 0xff;
+						}
+						break;
+					case TYPE_SERVICE_UUIDS_16_PARTIAL:
+					case TYPE_SERVICE_UUIDS_16_COMPLETE:
+						for (int i = 0; i + 2 <= length; i += 2)
+						{
+							ad.addServiceUUID(uuid16ToString(scanRecord, start + i));
+						}
+						break;
+					case TYPE_SERVICE_UUIDS_32_PARTIAL:
+					case TYPE_SERVICE_UUIDS_32_COMPLETE:
+						for (int i = 0; i + 4 <= length; i += 4)
+						{
+							ad.addServiceUUID(uuid32ToString(scanRecord, start + i));
+						}
+						break;
+					case TYPE_SERVICE_UUIDS_128_PARTIAL:
+					case TYPE_SERVICE_UUIDS_128_COMPLETE:
+						for (int i = 0; i + 16 <= length; i += 16)
+						{
+							ad.addServiceUUID(uuid128ToString(scanRecord, start + i));
+						}
+						break;
+					case TYPE_LOCAL_NAME_SHORT:
+					case TYPE_LOCAL_NAME_COMPLETE:
+						ad.mLocalName = utf8ToString(scanRecord, start, length);
+						break;
+					case TYPE_TX_POWER_LEVEL:
+						if (length >= 1)
+						{
+							ad.mTxPowerLevel = Integer.valueOf(scanRecord[start]);
+						}
+						break;
+					case TYPE_SERVICE_DATA_16:
+						if (length >= 2)
+						{
+							ad.addServiceData(
+								uuid16ToString(scanRecord, start),
+								Arrays.copyOfRange(scanRecord, start + 2, start + length));
+						}
+						break;
+					case TYPE_SERVICE_DATA_32:
+						if (length >= 4)
+						{
+							ad.addServiceData(
+								uuid32ToString(scanRecord, start),
+								Arrays.copyOfRange(scanRecord, start + 4, start + length));
+						}
+						break;
+					case TYPE_SERVICE_DATA_128:
+						if (length >= 16)
+						{
+							ad.addServiceData(
+								uuid128ToString(scanRecord, start),
+								Arrays.copyOfRange(scanRecord, start + 16, start + length));
+						}
+						break;
+					case TYPE_MANUFACTURER_DATA:
+						ad.mManufacturerData = Arrays.copyOfRange(scanRecord, start, start + length);
+						break;
+					default:
+						// Skip other types.
+						break;
+				}
+			}
+
+			return ad;
+		}
+
+		JSONObject toJSON() throws JSONException
+		{
+			JSONObject o = new JSONObject();
+			if (mFlags >= 0)
+			{
+				o.put("flags", mFlags);
+			}
+			if (null != mLocalName)
+			{
+				o.put("kCBAdvDataLocalName", mLocalName);
+			}
+			if (null != mTxPowerLevel)
+			{
+				o.put("kCBAdvDataTxPowerLevel", mTxPowerLevel.intValue());
+			}
+			if (null != mManufacturerData)
+			{
+				o.put("kCBAdvDataManufacturerData",
+					Base64.encodeToString(mManufacturerData, Base64.NO_WRAP));
+			}
+			if (null != mServiceUUIDs)
+			{
+				o.put("kCBAdvDataServiceUUIDs", new JSONArray(mServiceUUIDs));
+			}
+			if (null != mServiceData)
+			{
+				JSONObject serviceData = new JSONObject();
+				for (Map.Entry<String, byte[]> entry : mServiceData.entrySet())
+				{
+					serviceData.put(
+						entry.getKey(),
+						Base64.encodeToString(entry.getValue(), Base64.NO_WRAP));
+				}
+				o.put("kCBAdvDataServiceData", serviceData);
+			}
+			return o;
+		}
+
+		private void addServiceUUID(String uuid)
+		{
+			if (null == mServiceUUIDs)
+			{
+				mServiceUUIDs = new ArrayList<String>();
+			}
+			mServiceUUIDs.add(uuid);
+		}
+
+		private void addServiceData(String uuid, byte[] data)
+		{
+			if (null == mServiceData)
+			{
+				mServiceData = new LinkedHashMap<String, byte[]>();
+			}
+			mServiceData.put(uuid, data);
+		}
+
+		private static String uuid16ToString(byte[] b, int offset)
+		{
+			StringBuilder sb = new StringBuilder(36);
+			sb.append("0000");
+			appendHex(sb, b[offset + 1]);
+			appendHex(sb, b[offset]);
+			sb.append(BLUETOOTH_BASE_UUID);
+			return sb.toString();
+		}
+
+		private static String uuid32ToString(byte[] b, int offset)
+		{
+			StringBuilder sb = new StringBuilder(36);
+			for (int i = 3; i >= 0; --i)
+			{
+				appendHex(sb, b[offset + i]);
+			}
+			sb.append(BLUETOOTH_BASE_UUID);
+			return sb.toString();
+		}
+
+		// Bytes are formatted in the order they appear in the scan record,
+		// which is what ble.js parseAdvertisementData does. Filters compare
+		// 128-bit UUIDs using uuidToRecordOrderString.
+		private static String uuid128ToString(byte[] b, int offset)
+		{
+			StringBuilder sb = new StringBuilder(36);
+			for (int i = 0; i < 16; ++i)
+			{
+				if (i == 4 || i == 6 || i == 8 || i == 10)
+				{
+					sb.append('-');
+				}
+				appendHex(sb, b[offset + i]);
+			}
+			return sb.toString();
+		}
+
+		// Returns the string that uuid128ToString produces for the given
+		// UUID as it appears in a scan record (little endian byte order).
+		static String uuidToRecordOrderString(String uuid)
+		{
+			UUID u = UUID.fromString(uuid);
+			byte[] b = new byte[16];
+			long lsb = u.getLeastSignificantBits();
+			long msb = u.getMostSignificantBits();
+			for (int i = 0; i < 8; ++i)
+			{
+				b[i] = (byte)(lsb >>> (8 * i));
+				b[8 + i] = (byte)(msb >>> (8 * i));
+			}
+			return uuid128ToString(b, 0);
+		}
+
+		private static void appendHex(StringBuilder sb, byte b)
+		{
+			sb.append(HEX_DIGITS[(b >> 4) & 0x0f]);
+			sb.append(HEX_DIGITS[b & 0x0f]);
+		}
+
+		private static String utf8ToString(byte[] b, int offset, int length)
+		{
+			try
+			{
+				return new String(b, offset, length, "UTF-8");
+			}
+			catch (UnsupportedEncodingException e)
+			{
+				return null;
+			}
+		}
+	}
+
+	// API implementation.
+	private void stopScan(final CordovaArgs args, final CallbackContext callbackContext)
+	{
+		// No pending scan results will be reported.
+		mScanCallbackContext = null;
+
+		final BluetoothAdapter adapter = BluetoothAdapter.getDefaultAdapter();
+
+		// Stop scan without checking if bluetooth is on.
+		stopScanImpl(adapter);
+
+		/*
+		// TODO: Since there is no callback given to stopScan, there can be other
+		// calls (typically startScan) that are called before the BLE enable dialog
+		// is closed, causing BLE enabling to be aborted. We therefore call stopLeScan
+		// directly, without checking if BLE is on. It would be better design to queue
+		// calls, and to also add callbacks for stopScan (and also to close).
+		// All operations that are not related to a device should be queued
+		// (the operations for a device are already queued, but close is
+		// missing callbacks).
+		checkPowerState(adapter, callbackContext, new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				stopScanImpl(adapter);
+			}
+		});
+		*/
+	}
+
+	// API implementation.
+	private void getScanStats(final CordovaArgs args, final CallbackContext callbackContext)
+		throws JSONException
+	{
+		JSONObject options = args.optJSONObject(0);
+		JSONObject stats = mScanStats.toJSON();
+		if (null != options && options.optBoolean("reset", false))
+		{
+			mScanStats.reset();
+		}
+		callbackContext.success(stats);
+	}
+
+	// API implementation.
+	private void getScanState(final CordovaArgs args, final CallbackContext callbackContext)
+		throws JSONException
+	{
+		ScanScheduler scheduler = mScanScheduler;
+		JSONObject state = (null != scheduler) ?
+			scheduler.getState() :
+			new JSONObject().put("state", ScanScheduler.STATE_IDLE);
+		state.put("startsInWindow", mScanStartLimiter.startsInWindow());
+		state.put("nextStartAllowedIn", mScanStartLimiter.delayUntilNextStart());
+		callbackContext.success(state);
+	}
+
+	// API implementation.
+	private void getScanCache(final CordovaArgs args, final CallbackContext callbackContext)
+		throws JSONException
+	{
+		ScanDeviceCache cache = mScanDeviceCache;
+		if (null == cache)
+		{
+			callbackContext.error("Device cache not enabled");
+			return;
+		}
+
+		JSONObject filter = args.optJSONObject(0);
+		ScanFilterSpec spec = (null != filter) ? ScanFilterSpec.parse(filter) : null;
+		long maxAge = (null != filter) ? filter.optLong("maxAge", 0) : 0;
+		callbackContext.success(cache.query(spec, maxAge));
+	}
+
+	// API implementation.
+	private void getBondedDevices(final CordovaArgs args, final CallbackContext callbackContext)
+	{
+		final BluetoothAdapter adapter = BluetoothAdapter.getDefaultAdapter();
+
+		checkPowerState(adapter, callbackContext, new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				// Result array.
+				JSONArray devices = new JSONArray();
+
+				Set<BluetoothDevice> bondedDevices = adapter.getBondedDevices();
+				for (BluetoothDevice bondedDevice : bondedDevices)
+				{
+					if (bondedDevice.getType() == BluetoothDevice.DEVICE_TYPE_LE)
+					{
+						try
+						{
+							JSONObject device = new JSONObject();
+							device.put("address", bondedDevice.getAddress());
+							device.put("name", null == bondedDevice.getName() ?
+								JSONObject.NULL : bondedDevice.getName());
+							devices.put(device);
+						}
+						catch (Exception e)
+						{
+							callbackContext.error("getBondedDevices error: " + e);
+							return;
+						}
+					}
+				}
+
+				callbackContext.success(devices);
+			}
+		});
+	}
+
+	// API implementation.
+	private void getBondState(final CordovaArgs args, final CallbackContext callbackContext)
+	{
+		final BluetoothAdapter adapter = BluetoothAdapter.getDefaultAdapter();
+
+		checkPowerState(adapter, callbackContext, new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				try
+				{
+					String address = args.getString(0);
+					// Not used on Android: String serviceUUID = args.getString(1);
+					BluetoothDevice device = adapter.getRemoteDevice(address);
+					int state = device.getBondState();
+					String result = "unknown";
+					if (state == BluetoothDevice.BOND_BONDED)
+					{
+						result = "bonded";
+					}
+					else if (state == BluetoothDevice.BOND_BONDING)
+					{
+						result = "bonding";
+					}
+					else if (state == BluetoothDevice.BOND_NONE)
+					{
+						result = "unbonded";
+					}
+
+					callbackContext.sendPluginResult(new PluginResult(PluginResult.Status.OK, result));
+				}
+				catch (Exception e)
+				{
+					callbackContext.error("getBondState error: " + e);
+				}
+			}
+		});
+	}
+
+	// API implementation.
+	private void bond(final CordovaArgs args, final CallbackContext callbackContext)
+	{
+		final BluetoothAdapter adapter = BluetoothAdapter.getDefaultAdapter();
+
+		checkPowerState(adapter, callbackContext, new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				try
+				{
+					Log.i("@@@@@@", "@@@ bond");
+
+					String address = args.getString(0);
+					mBondDeviceAddress = address;
+					BluetoothDevice device = adapter.getRemoteDevice(address);
+
+    				int bondState = device.getBondState();
+    				if (bondState == BluetoothDevice.BOND_BONDED)
+    				{
+						callbackContext.success("bonded");
+						return;
+					}
+
+					// Start bonding.
+    				if (!device.createBond())
+    				{
+						callbackContext.error("could not bond");
+						return;
+					}
+
+					// Save callback context.
+					mBondCallbackContext = callbackContext;
+				}
+				catch (Exception e)
+				{
+					callbackContext.error("bond error: " + e);
+				}
+			}
+		});
+	}
+
+	// API implementation.
+	private void unbond(final CordovaArgs args, final CallbackContext callbackContext)
+	{
+		final BluetoothAdapter adapter = BluetoothAdapter.getDefaultAdapter();
+
+		checkPowerState(adapter, callbackContext, new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				try
+				{
+					Log.i("@@@@@@", "@@@ unbond");
+
+					String address = args.getString(0);
+					mUnbondDeviceAddress = address;
+					BluetoothDevice device = adapter.getRemoteDevice(address);
+
+    				int bondState = device.getBondState();
+    				if (bondState == BluetoothDevice.BOND_NONE)
+    				{
+						callbackContext.success("unbonded");
+						return;
+					}
+
+					// Stop bonding.
+					java.lang.reflect.Method m = device.getClass().getMethod("removeBond");
+					Boolean result = (Boolean) m.invoke(device);
+    				if (!result.booleanValue())
+    				{
+						callbackContext.error("could not unbond");
+						return;
+					}
+
+					// Save callback context.
+					mUnbondCallbackContext = callbackContext;
+				}
+				catch (Exception e)
+				{
+					callbackContext.error("unbond error: " + e);
+				}
+			}
+		});
+	}
+
+	// API implementation.
+	private void connect(final CordovaArgs args, final CallbackContext callbackContext)
+	{
+		Log.i("@@@@@@", "@@@ connect");
+
+		final BluetoothAdapter adapter = BluetoothAdapter.getDefaultAdapter();
+		checkPowerState(adapter, callbackContext, new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				final int handle = mNextGattHandle.getAndIncrement();
+				try
+				{
+					// Each device connection has a GattHandler, which handles
+					// the events the can happen to the connection.
+
+					Log.i("@@@@@@", "@@@ creating gatt handler");
+
+					// The implementation of the GattHandler class is found at the end of this file.
+					GattHandler gh = new GattHandler(handle, callbackContext);
+
+					// Default timeout of GATT operations on this connection,
+					// and MTU to request when connected.
+					JSONObject options = args.optJSONObject(1);
+					if (null != options)
+					{
+						gh.mOperationTimeout = options.optLong(
+							"operationTimeout", GattHandler.DEFAULT_OPERATION_TIMEOUT);
+						gh.mRequestedMtu = options.optInt("mtu", 0);
+						gh.mRequestedPhy = options.optInt("phy", 0);
+						gh.mConnectionPriority = options.optInt("connectionPriority", -1);
+						gh.mBoostPriority = options.optBoolean("boostPriority", false);
+						gh.mConnectRetries = Math.max(0, Math.min(
+							options.optInt("connectRetries", 0),
+							ConnectionScheduler.MAX_RETRIES));
+						gh.mConnectRetryDelay = Math.max(0, Math.min(
+							options.optLong("connectRetryDelay", GattHandler.DEFAULT_CONNECT_RETRY_DELAY),
+							ConnectionScheduler.MAX_RETRY_DELAY));
+						gh.mReportConnectProgress = options.optBoolean("reportProgress", false);
+						gh.mPersistent = options.optBoolean("persistent", false);
+					}
+
+					// Note: The initial attempt uses autoConnect false, a
+					// direct connection that fails fast if the device is
+					// not in range. Persistent connections keep the
+					// handler after link loss, and reconnect with
+					// BluetoothGatt.connect(), which uses autoConnect,
+					// see GattHandler.reconnect().
+					boolean autoConnect = false;
+
+					Log.i("@@@@@@", "@@@ getRemoteDevice");
+					gh.mDevice = adapter.getRemoteDevice(args.getString(0));
+					gh.mAutoConnect = autoConnect;
+
+					// Note that gh.mGatt and this.mGatt are different object and have different types.
+					// --> Renamed this.mGatt to mConnectedDevices to avoid confusion.
+					mConnectedDevices.put(handle, gh);
+
+					// The connection scheduler calls connectGatt when
+					// the number of pending attempts allows it.
+					mConnectionScheduler.request(gh);
+				}
+				catch(Exception e)
+				{
+					GattHandler gh = mConnectedDevices.remove(handle);
+					if (null != gh)
+					{
+						mConnectionScheduler.cancel(gh);
+						gh.close("Connect failed");
+					}
+					Log.i("@@@@@@", "@@@ connect exception: " + e);
+					e.printStackTrace();
+					callbackContext.error(e.toString());
+				}
+			}
+		});
+	}
+
+	// API implementation.
+	private void close(final CordovaArgs args, final CallbackContext callbackContext)
+	{
+		try {
+			GattHandler gh = mConnectedDevices.remove(args.getInt(0));
+			if (null != gh) {
+				mConnectionScheduler.cancel(gh);
+				gh.close("Device closed");
+			}
+		} catch(JSONException e) {
+			e.printStackTrace();
+			callbackContext.error(e.toString());
+		}
+	}
+
+	// API implementation.
+	private void rssi(final CordovaArgs args, final CallbackContext callbackContext)
+	{
+		GattHandler gh = null;
+		try {
+			gh = gattHandler(args);
+			if (!gh.hasLink()) {
+				callbackContext.error("Device not connected");
+				return;
+			}
+			if (gh.mRssiContext != null) {
+				callbackContext.error("Previous call to rssi() not yet completed!");
+				return;
+			}
+			gh.mRssiContext = callbackContext;
+			final GattHandler handler = gh;
+			gh.runOperation(new Runnable() {
+				@Override
+				public void run() {
+					if (!handler.hasLink() || !handler.mGatt.readRemoteRssi()) {
+						handler.mRssiContext = null;
+						callbackContext.error("readRemoteRssi");
+					}
+				}
+			});
+		} catch(Exception e) {
+			e.printStackTrace();
+			if (gh != null) {
+				gh.mRssiContext = null;
+			}
+			callbackContext.error(e.toString());
+		}
+	}
+
+	// API implementation.
+	private void services(final CordovaArgs args, final CallbackContext callbackContext)
+	{
+		try {
+			final GattHandler gh = gattHandler(args);
+			gh.enqueue(new GattOperation(
+				GattOperationKind.DISCOVER_SERVICES,
+				-1,
+				null,
+				callbackContext,
+				gh.operationTimeout(args.optJSONObject(1))));
+		} catch(Exception e) {
+			e.printStackTrace();
+			callbackContext.error(e.toString());
+		}
+	}
+
+	// API implementation.
+	private void serviceTree(final CordovaArgs args, final CallbackContext callbackContext)
+		throws JSONException
+	{
+		final GattHandler gh = gattHandler(args);
+		JSONObject options = args.optJSONObject(1);
+		GattOperation op = new GattOperation(
+			GattOperationKind.SERVICE_TREE,
+			-1,
+			null,
+			callbackContext,
+			gh.operationTimeout(options));
+		op.mOptions = options;
+		gh.enqueue(op);
+	}
+
+	// API implementation.
+	private void characteristics(
+		final CordovaArgs args,
+		final CallbackContext callbackContext)
+		throws JSONException
+	{
+		final GattHandler gh = gattHandler(args);
+		JSONArray a = new JSONArray();
+		for (BluetoothGattCharacteristic c : gh.mServices.get(args.getInt(1)).getCharacteristics()) {
+			if (gh.mCharacteristics == null)
+				gh.mCharacteristics = new ConcurrentHashMap<Integer, BluetoothGattCharacteristic>();
+			Object res = gh.mCharacteristics.put(gh.mNextHandle, c);
+			assert(res == null);
+
+			JSONObject o = new JSONObject();
+			o.put("handle", gh.mNextHandle);
+			o.put("uuid", c.getUuid().toString());
+			o.put("permissions", c.getPermissions());
+			o.put("properties", c.getProperties());
+			o.put("writeType", c.getWriteType());
+
+			gh.mNextHandle++;
+			a.put(o);
+		}
+		callbackContext.success(a);
+	}
+
+	// API implementation.
+	private void descriptors(
+		final CordovaArgs args,
+		final CallbackContext callbackContext)
+		throws JSONException
+	{
+		final GattHandler gh = gattHandler(args);
+		JSONArray a = new JSONArray();
+		for (BluetoothGattDescriptor d : gh.mCharacteristics.get(args.getInt(1)).getDescriptors()) {
+			if (gh.mDescriptors == null)
+				gh.mDescriptors = new ConcurrentHashMap<Integer, BluetoothGattDescriptor>();
+			Object res = gh.mDescriptors.put(gh.mNextHandle, d);
+			assert(res == null);
+
+			JSONObject o = new JSONObject();
+			o.put("handle", gh.mNextHandle);
+			o.put("uuid", d.getUuid().toString());
+			o.put("permissions", d.getPermissions());
+
+			gh.mNextHandle++;
+			a.put(o);
+		}
+		callbackContext.success(a);
+	}
+
+	// API implementation.
+	private void readCharacteristic(
+		final CordovaArgs args,
+		final CallbackContext callbackContext)
+		throws JSONException
+	{
+		final GattHandler gh = gattHandler(args);
+		JSONObject options = args.optJSONObject(2);
+		gh.enqueue(new GattOperation(
+			GattOperationKind.READ_CHARACTERISTIC,
+			args.getInt(1),
+			null,
+			callbackContext,
+			gh.operationTimeout(options)),
+			options);
+	}
+
+	// API implementation.
+	private void readDescriptor(
+		final CordovaArgs args,
+		final CallbackContext callbackContext)
+		throws JSONException
+	{
+		final GattHandler gh = gattHandler(args);
+		JSONObject options = args.optJSONObject(2);
+		gh.enqueue(new GattOperation(
+			GattOperationKind.READ_DESCRIPTOR,
+			args.getInt(1),
+			null,
+			callbackContext,
+			gh.operationTimeout(options)),
+			options);
+	}
+
+	// API implementation.
+	private void writeCharacteristic(
+		final CordovaArgs args,
+		final CallbackContext callbackContext,
+		final int writeType)
+		throws JSONException
+	{
+		final GattHandler gh = gattHandler(args);
+		JSONObject options = args.optJSONObject(3);
+		GattOperation op = new GattOperation(
+			GattOperationKind.WRITE_CHARACTERISTIC,
+			args.getInt(1),
+			args.getArrayBuffer(2),
+			callbackContext,
+			gh.operationTimeout(options));
+		op.mWriteType = writeType;
+		gh.enqueue(op, options);
+	}
+
+	// API implementation.
+	private void writeDescriptor(
+		final CordovaArgs args,
+		final CallbackContext callbackContext)
+		throws JSONException
+	{
+		final GattHandler gh = gattHandler(args);
+		JSONObject options = args.optJSONObject(3);
+		gh.enqueue(new GattOperation(
+			GattOperationKind.WRITE_DESCRIPTOR,
+			args.getInt(1),
+			args.getArrayBuffer(2),
+			callbackContext,
+			gh.operationTimeout(options)),
+			options);
+	}
+
+	// API implementation.
+	private void requestMtu(
+		final CordovaArgs args,
+		final CallbackContext callbackContext)
+		throws JSONException
+	{
+		if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP)
+		{
+			callbackContext.error("requestMtu requires Android 5.0");
+			return;
+		}
+		final GattHandler gh = gattHandler(args);
+		GattOperation op = new GattOperation(
+			GattOperationKind.REQUEST_MTU,
+			-1,
+			null,
+			callbackContext,
+			gh.operationTimeout(args.optJSONObject(2)));
+		op.mArguments = new int[] { args.getInt(1) };
+		gh.enqueue(op);
+	}
+
+	// API implementation.
+	private void getMtu(
+		final CordovaArgs args,
+		final CallbackContext callbackContext)
+		throws JSONException
+	{
+		final GattHandler gh = gattHandler(args);
+		callbackContext.success(gh.mMtu);
+	}
+
+	// API implementation.
+	private void getConnectionStats(
+		final CordovaArgs args,
+		final CallbackContext callbackContext)
+		throws JSONException
+	{
+		final GattHandler gh = gattHandler(args);
+		callbackContext.success(gh.statsToJSON());
+	}
+
+	// API implementation.
+	private void requestConnectionPriority(
+		final CordovaArgs args,
+		final CallbackContext callbackContext)
+		throws JSONException
+	{
+		if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP)
+		{
+			callbackContext.error("requestConnectionPriority requires Android 5.0");
+			return;
+		}
+		final GattHandler gh = gattHandler(args);
+		if (!gh.hasLink())
+		{
+			callbackContext.error("Device not connected");
+			return;
+		}
+		final int priority = args.getInt(1);
+		synchronized (gh)
+		{
+			gh.mConnectionPriority = priority;
+
+			// A boosted connection gets the new priority when the boost ends.
+			if (gh.mBoosted)
+			{
+				callbackContext.success();
+				return;
+			}
+		}
+		gh.runOperation(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				if (gh.hasLink() && gh.mGatt.requestConnectionPriority(priority))
+				{
+					callbackContext.success();
+				}
+				else
+				{
+					callbackContext.error("requestConnectionPriority failed");
+				}
+			}
+		});
+	}
+
+	// API implementation.
+	private void setPreferredPhy(
+		final CordovaArgs args,
+		final CallbackContext callbackContext)
+		throws JSONException
+	{
+		if (Build.VERSION.SDK_INT < Build.VERSION_CODES.O)
+		{
+			callbackContext.error("setPreferredPhy requires Android 8.0");
+			return;
+		}
+		final GattHandler gh = gattHandler(args);
+		JSONObject options = args.optJSONObject(3);
+		GattOperation op = new GattOperation(
+			GattOperationKind.SET_PREFERRED_PHY,
+			-1,
+			null,
+			callbackContext,
+			gh.operationTimeout(options));
+		op.mArguments = new int[] {
+			args.getInt(1),
+			args.getInt(2),
+			(null != options) ?
+				options.optInt("phyOptions", BluetoothDevice.PHY_OPTION_NO_PREFERRED) :
+				BluetoothDevice.PHY_OPTION_NO_PREFERRED };
+		gh.enqueue(op);
+	}
+
+	// API implementation.
+	private void readPhy(
+		final CordovaArgs args,
+		final CallbackContext callbackContext)
+		throws JSONException
+	{
+		if (Build.VERSION.SDK_INT < Build.VERSION_CODES.O)
+		{
+			callbackContext.error("readPhy requires Android 8.0");
+			return;
+		}
+		final GattHandler gh = gattHandler(args);
+		gh.enqueue(new GattOperation(
+			GattOperationKind.READ_PHY,
+			-1,
+			null,
+			callbackContext,
+			gh.operationTimeout(args.optJSONObject(1))));
+	}
+
+	// API implementation.
+	private void writeReliable(
+		final CordovaArgs args,
+		final CallbackContext callbackContext)
+		throws JSONException
+	{
+		final GattHandler gh = gattHandler(args);
+		JSONArray writes = args.getJSONArray(1);
+		if (writes.length() == 0)
+		{
+			callbackContext.error("No values to write");
+			return;
+		}
+
+		int[] handles = new int[writes.length()];
+		byte[][] values = new byte[writes.length()][];
+		for (int i = 0; i < writes.length(); ++i)
+		{
+			JSONObject w = writes.getJSONObject(i);
+			handles[i] = w.getInt("handle");
+			values[i] = Base64.decode(w.getString("data"), Base64.DEFAULT);
+		}
+
+		JSONObject options = args.optJSONObject(2);
+		GattOperation op = new GattOperation(
+			GattOperationKind.RELIABLE_WRITE,
+			-1,
+			null,
+			callbackContext,
+			gh.operationTimeout(options));
+		op.mReliableWrite = new GattReliableWrite(handles, values);
+		gh.enqueue(op, options);
+	}
+
+	// API implementation.
+	private void writeCharacteristicStream(
+		final CordovaArgs args,
+		final CallbackContext callbackContext)
+		throws JSONException
+	{
+		final GattHandler gh = gattHandler(args);
+		JSONObject options = args.optJSONObject(3);
+		GattOperation op = new GattOperation(
+			GattOperationKind.WRITE_STREAM,
+			args.getInt(1),
+			args.getArrayBuffer(2),
+			callbackContext,
+			gh.operationTimeout(options));
+		op.mStream = new GattStream(options);
+		gh.enqueue(op, options);
+	}
+
+	// API implementation.
+	private void executeBatch(
+		final CordovaArgs args,
+		final CallbackContext callbackContext)
+		throws JSONException
+	{
+		final GattHandler gh = gattHandler(args);
+		JSONArray ops = args.getJSONArray(1);
+		JSONObject options = args.optJSONObject(2);
+		boolean stopOnError = (null != options) && options.optBoolean("stopOnError", false);
+
+		if (ops.length() == 0)
+		{
+			callbackContext.success(new JSONArray());
+			return;
+		}
+
+		// Create all operations before queueing any, so that
+		// an invalid operation fails the whole batch.
+		GattBatch batch = new GattBatch(callbackContext, ops.length(), stopOnError);
+		List<GattOperation> list = new ArrayList<GattOperation>(ops.length());
+		for (int i = 0; i < ops.length(); ++i)
+		{
+			JSONObject o = ops.getJSONObject(i);
+			String type = o.getString("type");
+			GattOperationKind kind;
+			int writeType = BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT;
+			if ("readCharacteristic".equals(type))
+				kind = GattOperationKind.READ_CHARACTERISTIC;
+			else if ("writeCharacteristic".equals(type))
+				kind = GattOperationKind.WRITE_CHARACTERISTIC;
+			else if ("writeCharacteristicWithoutResponse".equals(type)) {
+				kind = GattOperationKind.WRITE_CHARACTERISTIC;
+				writeType = BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE;
+			}
+			else if ("readDescriptor".equals(type))
+				kind = GattOperationKind.READ_DESCRIPTOR;
+			else if ("writeDescriptor".equals(type))
+				kind = GattOperationKind.WRITE_DESCRIPTOR;
+			else {
+				callbackContext.error("Invalid operation type: " + type);
+				return;
+			}
+
+			byte[] payload = null;
+			if (kind == GattOperationKind.WRITE_CHARACTERISTIC
+				|| kind == GattOperationKind.WRITE_DESCRIPTOR)
+			{
+				payload = Base64.decode(o.getString("data"), Base64.DEFAULT);
+			}
+
+			GattOperation op = new GattOperation(
+				kind,
+				o.getInt("handle"),
+				payload,
+				callbackContext,
+				gh.operationTimeout(o));
+			op.mWriteType = writeType;
+			op.mBatch = batch;
+			op.mBatchIndex = i;
+			op.mHighPriority = gh.isHighPriority(options);
+			list.add(op);
+		}
+
+		gh.enqueueAll(list);
+	}
+
+	// Notification options flag.
+	private final int NOTIFICATION_OPTIONS_DISABLE_AUTOMATIC_CONFIG = 1;
+
+	// API implementation.
+	private void enableNotification(
+		final CordovaArgs args,
+		final CallbackContext callbackContext)
+		throws JSONException
+	{
+		final GattHandler gh = gattHandler(args);
+		if (!gh.hasLink()) {
+			callbackContext.error("Device not connected");
+			return;
+		}
+
+		// Get characteristic.
+		final int characteristicHandle = args.getInt(1);
+		final BluetoothGattCharacteristic characteristic = (null != gh.mCharacteristics) ?
+			gh.mCharacteristics.get(characteristicHandle) : null;
+		if (null == characteristic) {
+			callbackContext.error("Invalid characteristic handle");
+			return;
+		}
+
+		// Save callback context for the characteristic.
+		// When turning notification on, the success callback will be
+		// called on every notification event, or for every batch of
+		// notifications if the batch option is given.
+		final JSONObject notificationOptions = args.optJSONObject(3);
+		final NotificationSubscription subscription = new NotificationSubscription(
+			callbackContext,
+			(null != notificationOptions) ? notificationOptions.optJSONObject("batch") : null,
+			(null != notificationOptions) ? notificationOptions.optJSONObject("buffer") : null);
+
+		// Write config descriptor if not disabled in options.
+		int options = args.getInt(2);
+		final boolean writeConfigDescriptor = (options == 0);
+
+		// Used to enable notification again after a reconnect.
+		subscription.mCharacteristicHandle = characteristicHandle;
+		subscription.mWriteConfigDescriptor = writeConfigDescriptor;
+
+		gh.runOperation(new Runnable() {
+			@Override
+			public void run() {
+				// Turn notification on.
+				boolean success = gh.hasLink()
+					&& gh.mGatt.setCharacteristicNotification(characteristic, true);
+				if (!success) {
+					callbackContext.error("Could not enable notification");
+					return;
+				}
+
+				NotificationSubscription previous = gh.mNotifications.put(characteristic, subscription);
+				if (null != previous)
+				{
+					previous.flush();
+				}
+
+				if (writeConfigDescriptor) {
+					turnConfigDescriptorOn(callbackContext, gh, characteristicHandle, notificationOptions);
+				}
+			}
+		});
+	}
+
+	// Helper method.
+	private void turnConfigDescriptorOn(
+		final CallbackContext callbackContext,
+		final GattHandler gattHandler,
+		final int characteristicHandle,
+		final JSONObject options)
+	{
+		gattHandler.enqueue(new GattOperation(
+			GattOperationKind.ENABLE_NOTIFICATION,
+			characteristicHandle,
+			null,
+			callbackContext,
+			gattHandler.mOperationTimeout),
+			options);
+	}
+
+	// Helper method.
+	private boolean enableConfigDescriptor(
+		final CallbackContext callbackContext,
+		final GattHandler gattHandler,
+		final BluetoothGatt gatt,
+		final BluetoothGattCharacteristic characteristic)
+	{
+		// Get config descriptor.
+		BluetoothGattDescriptor configDescriptor = characteristic.getDescriptor(
+			UUID.fromString("00002902-0000-1000-8000-00805f9b34fb"));
+		if (configDescriptor == null) {
+			callbackContext.error("Could not get config descriptor");
+			return false;
+		}
+
+		// Config descriptor value.
+		byte[] descriptorValue;
+
+		// Check if notification or indication should be used.
+		if (0 != (characteristic.getProperties() & BluetoothGattCharacteristic.PROPERTY_NOTIFY)) {
+			descriptorValue = BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE;
+		}
+		else if (0 != (characteristic.getProperties() & BluetoothGattCharacteristic.PROPERTY_INDICATE)) {
+			descriptorValue = BluetoothGattDescriptor.ENABLE_INDICATION_VALUE;
+		}
+		else {
+			callbackContext.error("Characteristic does not support notification or indication.");
+			return false;
+		}
+
+		// Set value of config descriptor.
+		configDescriptor.setValue(descriptorValue);
+
+		// Write descriptor.
+		boolean success = gatt.writeDescriptor(configDescriptor);
+		if (!success) {
+			callbackContext.error("Could not write config descriptor");
+			return false;
+		}
+
+		return true;
+	}
+
+	// API implementation.
+	private void disableNotification(
+		final CordovaArgs args,
+		final CallbackContext callbackContext)
+		throws JSONException
+	{
+		final GattHandler gh = gattHandler(args);
+		if (!gh.hasLink()) {
+			callbackContext.error("Device not connected");
+			return;
+		}
+
+		// Get characteristic.
+		final int characteristicHandle = args.getInt(1);
+		final BluetoothGattCharacteristic characteristic = (null != gh.mCharacteristics) ?
+			gh.mCharacteristics.get(characteristicHandle) : null;
+		if (null == characteristic) {
+			callbackContext.error("Invalid characteristic handle");
+			return;
+		}
+
+		// Write config descriptor if not disabled in options.
+		int options = args.getInt(2);
+		final boolean writeConfigDescriptor = (options == 0);
+		final JSONObject operationOptions = args.optJSONObject(3);
+
+		gh.runOperation(new Runnable() {
+			@Override
+			public void run() {
+				// Turn notification off.
+				boolean success = gh.hasLink()
+					&& gh.mGatt.setCharacteristicNotification(characteristic, false);
+				if (!success) {
+					callbackContext.error("Could not disable notification");
+					return;
+				}
+
+				// Remove callback context for the characteristic
+				// when turning off notification. Batched notifications
+				// that are not yet sent are flushed.
+				NotificationSubscription subscription = gh.mNotifications.remove(characteristic);
+				if (null != subscription)
+				{
+					subscription.flush();
+				}
+
+				if (writeConfigDescriptor) {
+					turnConfigDescriptorOff(callbackContext, gh, characteristicHandle, operationOptions);
+				} else {
+					// Call success callback when notification is turned off.
+					callbackContext.success();
+				}
+			}
+		});
+	}
+
+	// API implementation.
+	private void readNotifications(
+		final CordovaArgs args,
+		final CallbackContext callbackContext)
+		throws JSONException
+	{
+		final GattHandler gh = gattHandler(args);
+		BluetoothGattCharacteristic characteristic = gh.mCharacteristics.get(args.getInt(1));
+		NotificationSubscription subscription = (null != characteristic) ?
+			gh.mNotifications.get(characteristic) : null;
+		if (null == subscription || null == subscription.mRingValues)
+		{
+			callbackContext.error("Notifications are not buffered for this characteristic");
+			return;
+		}
+		callbackContext.success(subscription.read(args.optInt(2)));
+	}
+
+	// API implementation.
+	private void getNotificationStats(
+		final CordovaArgs args,
+		final CallbackContext callbackContext)
+		throws JSONException
+	{
+		final GattHandler gh = gattHandler(args);
+		BluetoothGattCharacteristic characteristic = gh.mCharacteristics.get(args.getInt(1));
+		NotificationSubscription subscription = (null != characteristic) ?
+			gh.mNotifications.get(characteristic) : null;
+		if (null == subscription)
+		{
+			callbackContext.error("Notification is not enabled for this characteristic");
+			return;
+		}
+		callbackContext.success(subscription.statsToJSON());
+	}
+
+	// Helper method.
+	private void turnConfigDescriptorOff(
+		final CallbackContext callbackContext,
+		final GattHandler gattHandler,
+		final int characteristicHandle,
+		final JSONObject options)
+	{
+		gattHandler.enqueue(new GattOperation(
+			GattOperationKind.DISABLE_NOTIFICATION,
+			characteristicHandle,
+			null,
+			callbackContext,
+			gattHandler.mOperationTimeout),
+			options);
+	}
+
+	// Helper method.
+	private boolean disableConfigDescriptor(
+		final CallbackContext callbackContext,
+		final GattHandler gattHandler,
+		final BluetoothGatt gatt,
+		final BluetoothGattCharacteristic characteristic)
+	{
+		// Get config descriptor.
+		BluetoothGattDescriptor configDescriptor = characteristic.getDescriptor(
+			UUID.fromString("00002902-0000-1000-8000-00805f9b34fb"));
+		if (configDescriptor == null) {
+			callbackContext.error("Could not get config descriptor");
+			return false;
+		}
+
+		// Set value of config descriptor.
+		byte[] descriptorValue = BluetoothGattDescriptor.DISABLE_NOTIFICATION_VALUE;
+		configDescriptor.setValue(descriptorValue);
+
+		// Write descriptor.
+		boolean success = gatt.writeDescriptor(configDescriptor);
+		if (!success) {
+			callbackContext.error("Could not write config descriptor");
+			return false;
+		}
+
+		return true;
+	}
+
+	// API implementation.
+	private void testCharConversion(
+		final CordovaArgs args,
+		final CallbackContext callbackContext)
+		throws JSONException
+	{
+		byte[] b = {(byte)args.getInt(0)};
+		callbackContext.success(b);
+	}
+
+	// Test hook for the scan record parsers, see tests/test.html.
+	private void testParseScanRecord(
+		final CordovaArgs args,
+		final CallbackContext callbackContext)
+		throws JSONException
+	{
+		byte[] scanRecord = Base64.decode(args.getString(0), Base64.DEFAULT);
+		JSONObject result = new JSONObject();
+		result.put("advertisementData", AdvertisementData.parse(scanRecord).toJSON());
+		BeaconFrame beacon = BeaconFrame.decode(scanRecord);
+		if (null != beacon)
+		{
+			result.put("beacon", beacon.toJSON());
+		}
+		callbackContext.success(result);
+	}
+
+	// Test hook for scan filters, see tests/test.html.
+	private void testScanFilter(
+		final CordovaArgs args,
+		final CallbackContext callbackContext)
+		throws JSONException
+	{
+		ScanFilterSpec filter = ScanFilterSpec.parse(args.getJSONObject(0));
+		byte[] scanRecord = Base64.decode(args.getString(1), Base64.DEFAULT);
+		BluetoothDevice device =
+			BluetoothAdapter.getDefaultAdapter().getRemoteDevice(args.getString(3));
+		JSONObject result = new JSONObject();
+		result.put("matches", filter.matches(
+			device, args.getInt(2), AdvertisementData.parse(scanRecord), mDeviceNames));
+		callbackContext.success(result);
+	}
+
+	// Test hook for the single result send path, see tests/test.html.
+	// Runs count results through a pool and BinaryScanResults.pack the
+	// way onScanResult does, and returns the number of pool entries
+	// allocated. The packed buffer must equal packing a list of one.
+	private void testScanAllocations(
+		final CordovaArgs args,
+		final CallbackContext callbackContext)
+		throws JSONException
+	{
+		int count = args.getInt(0);
+		byte[] scanRecord = Base64.decode(args.getString(1), Base64.DEFAULT);
+		BluetoothDevice device =
+			BluetoothAdapter.getDefaultAdapter().getRemoteDevice(args.getString(2));
+		ScanResultPool pool = new ScanResultPool();
+		DeviceNameCache names = new DeviceNameCache();
+		boolean matches = true;
+		long start = System.nanoTime();
+		for (int i = 0; i < count; ++i)
+		{
+			ScanResultEntry entry = pool.obtain(device, -60, scanRecord, i);
+			byte[] packed = BinaryScanResults.pack(entry, names);
+			if (0 == i)
+			{
+				matches = Arrays.equals(packed, BinaryScanResults.pack(
+					Collections.singletonList(entry), names));
+			}
+			pool.recycle(entry);
+		}
+		long nanos = System.nanoTime() - start;
+		JSONObject result = new JSONObject();
+		result.put("results", count);
+		result.put("entriesAllocated", pool.allocated());
+		result.put("matchesListPack", matches);
+		result.put("nanosPerResult", (count > 0) ? nanos / count : 0);
+		callbackContext.success(result);
+	}
+
+	// Test hook for the scan result formats, see tests/test.html. Sends
+	// the given results, repeated repeat times, packed in binary format
+	// or as the JSON array sent for batched results.
+	private void testPackScanResults(
+		final CordovaArgs args,
+		final CallbackContext callbackContext)
+		throws JSONException
+	{
+		JSONArray input = args.getJSONArray(0);
+		int repeat = Math.max(1, args.getInt(1));
+		boolean binary = args.getBoolean(2);
+		BluetoothAdapter adapter = BluetoothAdapter.getDefaultAdapter();
+		List<ScanResultEntry> results =
+			new ArrayList<ScanResultEntry>(input.length() * repeat);
+		for (int r = 0; r < repeat; ++r)
+		{
+			for (int i = 0; i < input.length(); ++i)
+			{
+				JSONObject device = input.getJSONObject(i);
+				ScanResultEntry entry = new ScanResultEntry(
+					adapter.getRemoteDevice(device.getString("address")),
+					device.getInt("rssi"),
+					Base64.decode(device.getString("scanRecord"), Base64.DEFAULT),
+					device.getLong("timestamp"));
+				entry.mPacketCount = device.optInt("packetCount", 1);
+				results.add(entry);
+			}
+		}
+
+		if (binary)
+		{
+			callbackContext.success(BinaryScanResults.pack(results, mDeviceNames));
+			return;
+		}
+		JSONArray devices = new JSONArray();
+		for (ScanResultEntry result : results)
+		{
+			devices.put(scanResultToJSON(result));
+		}
+		callbackContext.success(devices);
+	}
+
+	// Test hook for the operation queue of GattHandler, see tests/test.html.
+	// Several threads queue reads on a GattHandler without a device, while
+	// the connection state switches between CONNECTING and READY. Started
+	// reads are completed by onCharacteristicRead callbacks injected from
+	// several other threads, as the Binder threads of Android would. Each
+	// read must get exactly one result, and only one may run at a time.
+	private void testOperationQueue(
+		final CordovaArgs args,
+		final CallbackContext callbackContext)
+		throws JSONException
+	{
+		final int threads = Math.max(1, args.getInt(0));
+		final int count = Math.max(1, args.getInt(1));
+		cordova.getThreadPool().execute(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				try
+				{
+					callbackContext.success(runOperationQueueTest(threads, count));
+				}
+				catch (Exception e)
+				{
+					callbackContext.error(e.toString());
+				}
+			}
+		});
+	}
+
+	private JSONObject runOperationQueueTest(int threads, final int count)
+		throws Exception
+	{
+		final int total = threads * count;
+		final AtomicIntegerArray results = new AtomicIntegerArray(total);
+		final AtomicInteger errors = new AtomicInteger();
+		final CountDownLatch done = new CountDownLatch(total);
+		final TestGattHandler gh = new TestGattHandler(mThreadMode, threads);
+
+		// Queues count reads per thread, every fourth with high priority.
+		List<Thread> producers = new ArrayList<Thread>();
+		for (int t = 0; t < threads; ++t)
+		{
+			final int first = t * count;
+			producers.add(new Thread(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					for (int i = first; i < first + count; ++i)
+					{
+						final int id = i;
+						CallbackContext cc = new CallbackContext("test", webView)
+						{
+							@Override
+							public void sendPluginResult(PluginResult result)
+							{
+								if (result.getStatus() != PluginResult.Status.OK.ordinal())
+								{
+									errors.incrementAndGet();
+								}
+								if (0 == results.getAndIncrement(id))
+								{
+									done.countDown();
+								}
+							}
+						};
+						GattOperation op = gh.read(cc);
+						op.mHighPriority = (0 == id % 4);
+						gh.enqueue(op);
+					}
+				}
+			}));
+		}
+
+		gh.setState(ConnectionState.READY);
+		long start = System.nanoTime();
+		for (Thread producer : producers)
+		{
+			producer.start();
+		}
+
+		// Hold and release the queue, the way connecting does.
+		while (!done.await(1, TimeUnit.MILLISECONDS)
+			&& System.nanoTime() - start < TimeUnit.SECONDS.toNanos(30))
+		{
+			gh.setState(ConnectionState.CONNECTING);
+			gh.setState(ConnectionState.READY);
+			gh.process();
+		}
+		long nanos = System.nanoTime() - start;
+		for (Thread producer : producers)
+		{
+			producer.join();
+		}
+		gh.quit();
+
+		int completed = 0;
+		int duplicates = 0;
+		for (int i = 0; i < total; ++i)
+		{
+			int n = results.get(i);
+			if (n > 0) ++completed;
+			if (n > 1) duplicates += n - 1;
+		}
+		JSONObject result = new JSONObject();
+		result.put("enqueued", total);
+		result.put("completed", completed);
+		result.put("lost", total - completed);
+		result.put("duplicates", duplicates);
+		result.put("errors", errors.get());
+		result.put("overlaps", gh.mOverlaps.get());
+		result.put("queued", gh.mOperations.size() + gh.mHighPriorityOperations.size());
+		result.put("operationsPerSecond", (long)(total * 1e9 / Math.max(nanos, 1)));
+		return result;
+	}
+
+	// Test hook for the device cache, see tests/test.html. Creates a cache
+	// with the device cache options of startScan, and runs a fixed
+	// sequence of steps. A step is a scan result with the fields address,
+	// rssi, scanRecord and time, or a sweep of old devices with the field
+	// sweep, the time of the sweep. Returns the event and smoothed RSSI
+	// of each result, the addresses of the devices that disappeared in
+	// each sweep, and the cached addresses from least to most recently
+	// seen.
+	private void testScanDeviceCache(
+		final CordovaArgs args,
+		final CallbackContext callbackContext)
+		throws JSONException
+	{
+		JSONObject options = args.getJSONObject(0);
+		JSONArray steps = args.getJSONArray(1);
+		ScanDeviceCache cache = new ScanDeviceCache(
+			options.optInt("deviceCacheSize", ScanDeviceCache.DEFAULT_SIZE),
+			options.optLong("deviceCacheMaxAge", 0),
+			options.optDouble("rssiSmoothingFactor", ScanDeviceCache.DEFAULT_SMOOTHING_FACTOR),
+			options.optInt("rssiChangeThreshold", ScanDeviceCache.DEFAULT_RSSI_CHANGE_THRESHOLD));
+		cache.stop();
+
+		BluetoothAdapter adapter = BluetoothAdapter.getDefaultAdapter();
+		JSONArray results = new JSONArray();
+		for (int i = 0; i < steps.length(); ++i)
+		{
+			JSONObject step = steps.getJSONObject(i);
+			JSONObject result = new JSONObject();
+			if (step.has("sweep"))
+			{
+				JSONArray disappeared = cache.sweep(step.getLong("sweep"));
+				JSONArray addresses = new JSONArray();
+				for (int j = 0; j < disappeared.length(); ++j)
+				{
+					addresses.put(disappeared.getJSONObject(j).getString("address"));
+				}
+				result.put("disappeared", addresses);
+			}
+			else
+			{
+				ScanResultEntry entry = new ScanResultEntry(
+					adapter.getRemoteDevice(step.getString("address")),
+					step.getInt("rssi"),
+					Base64.decode(step.optString("scanRecord", ""), Base64.DEFAULT),
+					step.getLong("time"));
+				cache.update(entry);
+				result.put("event", (null != entry.mEvent) ? entry.mEvent : JSONObject.NULL);
+				result.put("smoothedRssi", entry.mSmoothedRssi);
+			}
+			results.put(result);
+		}
+
+		JSONArray devices = new JSONArray();
+		synchronized (cache)
+		{
+			for (String address : cache.mDevices.keySet())
+			{
+				devices.put(address);
+			}
+		}
+		JSONObject result = new JSONObject();
+		result.put("steps", results);
+		result.put("devices", devices);
+		callbackContext.success(result);
+	}
+
+	// Test hook for the thread modes, see tests/test.html. Runs reads on a
+	// connection of the given thread mode while the UI thread is kept
+	// busy, and returns the dispatch latency of the reads. Only the ui
+	// thread mode should be slowed down by the busy UI thread.
+	private void testDispatchLatency(
+		final CordovaArgs args,
+		final CallbackContext callbackContext)
+		throws JSONException
+	{
+		final String threadMode = args.getString(0);
+		final long busyMillis = args.getLong(1);
+		final int count = Math.max(1, args.getInt(2));
+		cordova.getThreadPool().execute(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				try
+				{
+					callbackContext.success(
+						runDispatchLatencyTest(threadMode, busyMillis, count));
+				}
+				catch (Exception e)
+				{
+					callbackContext.error(e.toString());
+				}
+			}
+		});
+	}
+
+	private JSONObject runDispatchLatencyTest(
+		String threadMode,
+		final long busyMillis,
+		int count)
+		throws Exception
+	{
+		final CountDownLatch done = new CountDownLatch(count);
+		final TestGattHandler gh = new TestGattHandler(threadMode, 1);
+
+		// Keeps the UI thread busy for busyMillis at a time, and lets
+		// other messages of the UI thread run in between.
+		final Handler ui = new Handler(Looper.getMainLooper());
+		ui.post(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				long end = SystemClock.elapsedRealtime() + busyMillis;
+				while (SystemClock.elapsedRealtime() < end) {}
+				if (done.getCount() > 0)
+				{
+					ui.post(this);
+				}
+			}
+		});
+
+		CallbackContext cc = new CallbackContext("test", webView)
+		{
+			@Override
+			public void sendPluginResult(PluginResult result)
+			{
+				done.countDown();
+			}
+		};
+		gh.setState(ConnectionState.READY);
+		for (int i = 0; i < count; ++i)
+		{
+			gh.enqueue(gh.read(cc));
+		}
+		boolean completed = done.await(count * busyMillis + 10000, TimeUnit.MILLISECONDS);
+		while (done.getCount() > 0)
+		{
+			done.countDown();
+		}
+		gh.quit();
+
+		JSONObject result = gh.statsToJSON();
+		result.put("threadMode", threadMode);
+		result.put("busyMillis", busyMillis);
+		result.put("completed", completed);
+		return result;
+	}
+
+	// GattHandler without a device, for the test hooks. Started reads are
+	// completed by onCharacteristicRead callbacks injected from a thread
+	// pool, as the Binder threads of Android would.
+	private class TestGattHandler extends GattHandler
+	{
+		final ExecutorService mCallbacks;
+		final BluetoothGattCharacteristic mCharacteristic = new BluetoothGattCharacteristic(
+			UUID.randomUUID(), BluetoothGattCharacteristic.PROPERTY_READ, 0);
+
+		// Operations running, and operations started while another ran.
+		final AtomicInteger mRunning = new AtomicInteger();
+		final AtomicInteger mOverlaps = new AtomicInteger();
+
+		TestGattHandler(String threadMode, int callbackThreads)
+		{
+			super(-1, null, threadMode);
+			mCallbacks = Executors.newFixedThreadPool(callbackThreads);
+			mCharacteristic.setValue(new byte[] { 1 });
+			mCharacteristics = new ConcurrentHashMap<Integer, BluetoothGattCharacteristic>();
+			mCharacteristics.put(1, mCharacteristic);
+		}
+
+		GattOperation read(CallbackContext cc)
+		{
+			return new GattOperation(GattOperationKind.READ_CHARACTERISTIC, 1, null, cc, 0);
+		}
+
+		@Override
+		void startOperation(GattOperation op)
+		{
+			if (mRunning.incrementAndGet() > 1)
+			{
+				mOverlaps.incrementAndGet();
+			}
+			op.mTarget = mCharacteristic;
+			mCallbacks.execute(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					mRunning.decrementAndGet();
+					onCharacteristicRead(null, mCharacteristic, BluetoothGatt.GATT_SUCCESS);
+				}
+			});
+		}
+
+		@Override
+		void quit()
+		{
+			super.quit();
+			mCallbacks.shutdown();
+		}
+	}
+
+	// API implementation.
+	private void reset(final CordovaArgs args, final CallbackContext cc) throws JSONException
+	{
+		mResetCallbackContext = null;
+		BluetoothAdapter a = BluetoothAdapter.getDefaultAdapter();
+		if (mScanCallbackContext != null) {
+			stopScanImpl(a);
+			mScanCallbackContext = null;
+		}
+		int state = a.getState();
+		//STATE_OFF, STATE_TURNING_ON, STATE_ON, STATE_TURNING_OFF.
+		if (state == BluetoothAdapter.STATE_TURNING_ON) {
+			// reset in progress; wait for STATE_ON.
+			mResetCallbackContext = cc;
+			return;
+		}
+		if (state == BluetoothAdapter.STATE_TURNING_OFF) {
+			// reset in progress; wait for STATE_OFF.
+			mResetCallbackContext = cc;
+			return;
+		}
+		if (state == BluetoothAdapter.STATE_OFF) {
+			boolean res = a.enable();
+			if (res) {
+				mResetCallbackContext = cc;
+			} else {
+				cc.error("enable");
+			}
+			return;
+		}
+		if (state == BluetoothAdapter.STATE_ON) {
+			boolean res = a.disable();
+			if (res) {
+				mResetCallbackContext = cc;
+			} else {
+				cc.error("disable");
+			}
+			return;
+		}
+		cc.error("Unknown state: "+state);
+	}
+
+	// Receives notification about Bluetooth power on and off. Used by reset().
+	class BluetoothStateReceiver extends BroadcastReceiver
+	{
+		public void onReceive(Context context, Intent intent)
+		{
+			BluetoothAdapter a = BluetoothAdapter.getDefaultAdapter();
+			int state = a.getState();
+			System.out.println("BluetoothState: "+a);
+			if (mResetCallbackContext != null) {
+				if (state == BluetoothAdapter.STATE_OFF) {
+					boolean res = a.enable();
+					if (!res) {
+						mResetCallbackContext.error("enable");
+						mResetCallbackContext = null;
+					}
+				}
+				if (state == BluetoothAdapter.STATE_ON) {
+					mResetCallbackContext.success();
+					mResetCallbackContext = null;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Used for both bond and unbond. We assume these are called one at a time.
+	 */
+	class BondStateReceiver extends BroadcastReceiver
+	{
+		public void onReceive(Context context, Intent intent)
+		{
+			if (intent.getAction().equals(BluetoothDevice.ACTION_BOND_STATE_CHANGED))
+			{
+				BluetoothDevice device = intent.getParcelableExtra(BluetoothDevice.EXTRA_DEVICE);
+				int state = intent.getIntExtra(BluetoothDevice.EXTRA_BOND_STATE, -1);
+				int previousState = intent.getIntExtra(BluetoothDevice.EXTRA_PREVIOUS_BOND_STATE, -1);
+
+				// Check that the event is for the device address given in bond/unbond.
+				String deviceAddress = device.getAddress();
+
+				Log.i("@@@@@@", "@@@ Bond state changed: " + state + " previous: " + previousState
+					+ " address: " + deviceAddress + " mBondCallbackContext: " + mBondCallbackContext
+					+ " mUnbondCallbackContext: " + mUnbondCallbackContext);
+
+				// Handle bond callback.
+				if (null != mBondCallbackContext && deviceAddress.equals(mBondDeviceAddress))
+				{
+					Log.i("@@@@@@", "@@@ bond device address: " + mBondDeviceAddress);
+
+					if (state == BluetoothDevice.BOND_BONDED)
+					{
+						mBondCallbackContext.success("bonded");
+						mBondCallbackContext = null;
+					}
+					else if (state == BluetoothDevice.BOND_BONDING)
+					{
+						keepCallback(mBondCallbackContext, "bonding");
+					}
+					else if (state == BluetoothDevice.BOND_NONE)
+					{
+						mBondCallbackContext.success("unbonded");
+						mBondCallbackContext = null;
+					}
+				}
+
+				// Handle unbond callback.
+				if (null != mUnbondCallbackContext && deviceAddress.equals(mUnbondDeviceAddress))
+				{
+					Log.i("@@@@@@", "@@@ unbond device address: " + mUnbondDeviceAddress);
+
+					if (state == BluetoothDevice.BOND_BONDED)
+					{
+						mUnbondCallbackContext.success("bonded");
+						mUnbondCallbackContext = null;
+					}
+					else if (state == BluetoothDevice.BOND_BONDING)
+					{
+						keepCallback(mUnbondCallbackContext, "bonding");
+					}
+					else if (state == BluetoothDevice.BOND_NONE)
+					{
+						mUnbondCallbackContext.success("unbonded");
+						mUnbondCallbackContext = null;
+					}
+				}
+			}
+		}
+	}
+
+	/* Running more than one operation of certain types on remote Gatt devices
+	* seem to cause it to stop responding.
+	* The known types are 'read' and 'write'.
+	* I've added 'services' to be on the safe side.
+	* 'rssi' and 'notification' should be safe.
+	*/
+
+	// This class handles callbacks pertaining to device connections.
+	// Also maintains the per-device operation queue.
+	// Kinds of operations in the GATT operation queue. The name is
+	// used in error messages.
+	enum GattOperationKind
+	{
+		DISCOVER_SERVICES("discoverServices"),
+		REDISCOVER_SERVICES("rediscoverServices"),
+		SERVICE_TREE("serviceTree"),
+		READ_CHARACTERISTIC("readCharacteristic"),
+		WRITE_CHARACTERISTIC("writeCharacteristic"),
+		READ_DESCRIPTOR("readDescriptor"),
+		WRITE_DESCRIPTOR("writeDescriptor"),
+		ENABLE_NOTIFICATION("enableNotification"),
+		DISABLE_NOTIFICATION("disableNotification"),
+		WRITE_STREAM("writeCharacteristicStream"),
+		REQUEST_MTU("requestMtu"),
+		SET_PREFERRED_PHY("setPreferredPhy"),
+		READ_PHY("readPhy"),
+		RELIABLE_WRITE("writeReliable");
+
+		final String mName;
+
+		GattOperationKind(String name)
+		{
+			mName = name;
+		}
+	}
+
+	// An operation in the queue of a GattHandler. Operations run one at a
+	// time, the GattHandler callbacks complete them.
+	static class GattOperation
+	{
+		final GattOperationKind mKind;
+
+		// Handle of the characteristic or descriptor, -1 if none.
+		final int mTargetHandle;
+
+		// Data to write, null for other operations. Replaced by a newer
+		// value when last-write-wins writes are coalesced.
+		byte[] mPayload;
+
+		final CallbackContext mCallbackContext;
+
+		// Elapsed realtime when the operation was queued.
+		final long mEnqueueTime;
+
+		// Timeout in milliseconds from start, 0 means no timeout.
+		final long mTimeout;
+
+		// Elapsed realtime when the operation times out, set when started.
+		long mDeadline;
+
+		// Elapsed realtime when the operation was started.
+		long mStartTime;
+
+		// The Android object the operation works on, set when started.
+		// Used to match callbacks with the operation.
+		Object mTarget;
+
+		// Write type of characteristic writes.
+		int mWriteType = BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT;
+
+		// Set for operations of an executeBatch call, which report
+		// their results to the batch instead of the callback context.
+		GattBatch mBatch;
+		int mBatchIndex;
+
+		// Set for writeCharacteristicStream operations.
+		GattStream mStream;
+
+		// Set for writeReliable operations.
+		GattReliableWrite mReliableWrite;
+
+		// High priority operations are run before normal ones.
+		boolean mHighPriority = false;
+
+		// Integer arguments of the operation, such as the requested MTU.
+		int[] mArguments;
+
+		// Options of serviceTree operations, may be null.
+		JSONObject mOptions;
+
+		// Set if the caller allows the operation to be coalesced with
+		// equivalent queued operations, see GattHandler.coalesce().
+		boolean mCoalescible = false;
+
+		// Operations coalesced into this one, which get the same result.
+		// Only modified while the operation is queued.
+		List<GattOperation> mCoalesced;
+
+		void coalesce(GattOperation op)
+		{
+			if (null == mCoalesced)
+			{
+				mCoalesced = new ArrayList<GattOperation>(2);
+			}
+			mCoalesced.add(op);
+		}
+
+		GattOperation(
+			GattOperationKind kind,
+			int targetHandle,
+			byte[] payload,
+			CallbackContext callbackContext,
+			long timeout)
+		{
+			mKind = kind;
+			mTargetHandle = targetHandle;
+			mPayload = payload;
+			mCallbackContext = callbackContext;
+			mTimeout = timeout;
+			mEnqueueTime = SystemClock.elapsedRealtime();
+		}
+
+		// Operations queued by the plugin itself, such as the automatic
+		// MTU request after connect, have no callback context.
+
+		void success()
+		{
+			if (null != mBatch)
+				mBatch.setResult(mBatchIndex, GattBatch.STATUS_OK, null);
+			else if (null != mCallbackContext)
+				mCallbackContext.success();
+			if (null != mCoalesced)
+				for (GattOperation op : mCoalesced) op.success();
+		}
+
+		void success(byte[] value)
+		{
+			if (null != mBatch)
+				mBatch.setResult(mBatchIndex, GattBatch.STATUS_OK, value);
+			else if (null != mCallbackContext)
+				mCallbackContext.success(value);
+			if (null != mCoalesced)
+				for (GattOperation op : mCoalesced) op.success(value);
+		}
+
+		void success(int value)
+		{
+			if (null != mCallbackContext)
+				mCallbackContext.success(value);
+		}
+
+		void success(JSONArray value)
+		{
+			if (null != mCallbackContext)
+				mCallbackContext.success(value);
+		}
+
+		void success(JSONObject value)
+		{
+			if (null != mCallbackContext)
+				mCallbackContext.success(value);
+		}
+
+		void error(String message)
+		{
+			if (null != mBatch)
+				mBatch.setResult(mBatchIndex, GattBatch.STATUS_ERROR, message);
+			else if (null != mCallbackContext)
+				mCallbackContext.error(message);
+			if (null != mCoalesced)
+				for (GattOperation op : mCoalesced) op.error(message);
+		}
+
+		void error(int status)
+		{
+			if (null != mBatch)
+				mBatch.setResult(mBatchIndex, GattBatch.STATUS_ERROR, Integer.valueOf(status));
+			else if (null != mCallbackContext)
+				mCallbackContext.error(status);
+			if (null != mCoalesced)
+				for (GattOperation op : mCoalesced) op.error(status);
+		}
+	}
+
+	// State of a writeCharacteristicStream operation. The payload of the
+	// operation is written in chunks, one chunk at a time. The next chunk
+	// is written when onCharacteristicWrite reports that the stack has
+	// accepted the previous one, which paces writes also without response.
+	static class GattStream
+	{
+		// Back-off when writeCharacteristic returns false because the
+		// stack is busy. The delay doubles for each consecutive attempt.
+		static final long BUSY_RETRY_DELAY = 5;
+		static final long BUSY_RETRY_MAX_DELAY = 500;
+		static final int BUSY_RETRY_MAX_ATTEMPTS = 10;
+
+		// Chunk size in bytes, 0 means the MTU payload size.
+		int mChunkSize;
+
+		// If true all chunks are written with response.
+		boolean mWithResponse;
+
+		// If greater than zero, every N:th chunk and the last chunk
+		// are written with response.
+		int mCheckpointInterval;
+
+		// Minimum time between progress events in milliseconds.
+		long mProgressInterval;
+
+		int mOffset = 0;
+		int mChunkCount = 0;
+		int mPendingLength = 0;
+		int mBusyAttempts = 0;
+		int mBusyRetries = 0;
+		int mYieldCount = 0;
+		long mStartTime;
+		long mLastProgressTime;
+
+		GattStream(JSONObject options)
+		{
+			if (null != options)
+			{
+				mChunkSize = options.optInt("chunkSize", 0);
+				mWithResponse = options.optBoolean("withResponse", false);
+				mCheckpointInterval = options.optInt("checkpointInterval", 0);
+				mProgressInterval = options.optLong("progressInterval", 250);
+			}
+			else
+			{
+				mProgressInterval = 250;
+			}
+		}
+
+		// True if the next chunk should be written with response.
+		boolean isCheckpoint(int totalLength)
+		{
+			if (mWithResponse)
+			{
+				return true;
+			}
+			if (mCheckpointInterval <= 0)
+			{
+				return false;
+			}
+			return (mChunkCount + 1) % mCheckpointInterval == 0
+				|| mOffset + mPendingLength >= totalLength;
+		}
+
+		long busyRetryDelay()
+		{
+			return Math.min(BUSY_RETRY_DELAY << (mBusyAttempts - 1), BUSY_RETRY_MAX_DELAY);
+		}
+
+		JSONObject toJSON(String event, int totalLength) throws JSONException
+		{
+			long duration = SystemClock.elapsedRealtime() - mStartTime;
+			JSONObject o = new JSONObject();
+			o.put("event", event);
+			o.put("bytesSent", mOffset);
+			o.put("totalBytes", totalLength);
+			o.put("yields", mYieldCount);
+			o.put("chunks", mChunkCount);
+			o.put("busyRetries", mBusyRetries);
+			o.put("duration", duration);
+			o.put("throughput", (duration > 0) ? mOffset * 1000.0 / duration : 0);
+			return o;
+		}
+	}
+
+	// State of a writeReliable operation. The values are written one at
+	// a time after beginReliableWrite, which makes the remote device queue
+	// them as prepared writes, and are then committed together with
+	// executeReliableWrite. If any write fails the transaction is aborted,
+	// and the remote device discards all values.
+	static class GattReliableWrite
+	{
+		final int[] mHandles;
+		final byte[][] mValues;
+
+		// Index of the value being written.
+		int mIndex = 0;
+
+		GattReliableWrite(int[] handles, byte[][] values)
+		{
+			mHandles = handles;
+			mValues = values;
+		}
+
+		boolean isExecuting()
+		{
+			return mIndex >= mHandles.length;
+		}
+	}
+
+	// Collects the results of the operations of an executeBatch call,
+	// and sends them to JavaScript as one array when all are done.
+	static class GattBatch
+	{
+		static final String STATUS_OK = "ok";
+		static final String STATUS_ERROR = "error";
+		static final String STATUS_SKIPPED = "skipped";
+
+		final CallbackContext mCallbackContext;
+		final JSONArray mResults = new JSONArray();
+		final boolean mStopOnError;
+		int mRemaining;
+
+		// Set when an operation failed and mStopOnError is set.
+		// Remaining operations are then skipped.
+		boolean mAborted = false;
+
+		GattBatch(CallbackContext callbackContext, int size, boolean stopOnError)
+		{
+			mCallbackContext = callbackContext;
+			mRemaining = size;
+			mStopOnError = stopOnError;
+		}
+
+		synchronized boolean isAborted()
+		{
+			return mAborted;
+		}
+
+		// The value is the data read (byte[]), or the error (String
+		// or Integer status), or null.
+		synchronized void setResult(int index, String status, Object value)
+		{
+			try
+			{
+				JSONObject result = new JSONObject();
+				result.put("status", status);
+				if (value instanceof byte[])
+				{
+					result.put("data", Base64.encodeToString((byte[])value, Base64.NO_WRAP));
+				}
+				else if (null != value)
+				{
+					result.put("error", value);
+				}
+				mResults.put(index, result);
+			}
+			catch (JSONException e)
+			{
+				e.printStackTrace();
+			}
+
+			if (STATUS_ERROR.equals(status) && mStopOnError)
+			{
+				mAborted = true;
+			}
+			if (--mRemaining == 0)
+			{
+				mCallbackContext.success(mResults);
+			}
+		}
+	}
+
+	// Subscription to the notifications of a characteristic. Each
+	// notification is sent to JavaScript, or, in batching mode, the
+	// notifications are packed into one buffer per flush, which keeps
+	// the number of bridge messages down at high notification rates.
+	// In buffered mode, notifications are kept in a bounded ring buffer
+	// that JavaScript reads with readNotifications, and JavaScript is only
+	// signalled when data becomes available or the buffer is full.
+	//
+	// Packed format, little endian: float64 time of the first packet in
+	// ms since 1970, uint16 packet count, then for each packet uint32 time
+	// in ms since the first packet, uint16 length and the data.
+	private class NotificationSubscription
+	{
+		static final int HEADER_SIZE = 10;
+		static final int PACKET_HEADER_SIZE = 6;
+
+		// Largest attribute value.
+		static final int MAX_VALUE_SIZE = 512;
+
+		// Largest packet count, the count field is a uint16.
+		static final int MAX_PACKETS = 0xFFFF;
+
+		// Overflow policies of the ring buffer. When full, OVERFLOW_BLOCK
+		// rejects new notifications like OVERFLOW_DROP_NEWEST, and signals
+		// JavaScript to read. The Binder thread is never blocked, since
+		// that would stall the Bluetooth stack.
+		static final int OVERFLOW_DROP_OLDEST = 0;
+		static final int OVERFLOW_DROP_NEWEST = 1;
+		static final int OVERFLOW_BLOCK = 2;
+
+		final CallbackContext mCallbackContext;
+
+		// Characteristic handle, and if the config descriptor is written,
+		// used to enable notification again after a reconnect.
+		int mCharacteristicHandle;
+		boolean mWriteConfigDescriptor;
+
+		// Ring buffer of buffered mode, null if not buffering.
+		byte[][] mRingValues;
+		long[] mRingTimes;
+		int mRingHead = 0;
+		int mRingCount = 0;
+		int mOverflow = OVERFLOW_DROP_OLDEST;
+
+		// Set when JavaScript has been signalled and has not yet read.
+		boolean mAvailableSignalled = false;
+		boolean mFullSignalled = false;
+
+		// Counters.
+		long mReceived = 0;
+		long mDelivered = 0;
+		long mDropped = 0;
+
+		// Batching mode settings, mBatch is false if not batching.
+		final boolean mBatch;
+		int mMaxPackets = 20;
+		long mMaxDelay = 100;
+		int mMaxBytes = 4096;
+
+		// Packets waiting to be flushed.
+		ByteBuffer mBuffer;
+		int mCount = 0;
+		long mFirstTime;
+
+		// Flushes a batch that has not filled up within mMaxDelay.
+		final Handler mFlushHandler = new Handler(Looper.getMainLooper());
+		final Runnable mFlushRunnable = new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				flush();
+			}
+		};
+
+		NotificationSubscription(
+			CallbackContext callbackContext,
+			JSONObject batch,
+			JSONObject buffer)
+		{
+			mCallbackContext = callbackContext;
+			if (null != buffer)
+			{
+				int capacity = Math.min(MAX_PACKETS,
+					Math.max(1, buffer.optInt("capacity", 256)));
+				mRingValues = new byte[capacity][];
+				mRingTimes = new long[capacity];
+				String overflow = buffer.optString("overflow", "dropOldest");
+				if ("dropNewest".equals(overflow))
+					mOverflow = OVERFLOW_DROP_NEWEST;
+				else if ("block".equals(overflow))
+					mOverflow = OVERFLOW_BLOCK;
+
+				// Buffered mode replaces batching.
+				batch = null;
+			}
+			mBatch = (null != batch);
+			if (mBatch)
+			{
+				mMaxPackets = Math.min(MAX_PACKETS,
+					Math.max(1, batch.optInt("maxPackets", mMaxPackets)));
+				mMaxDelay = batch.optLong("maxDelay", mMaxDelay);
+				mMaxBytes = Math.max(1, batch.optInt("maxBytes", mMaxBytes));
+
+				// Room for a full batch plus one packet of maximum size.
+				mBuffer = ByteBuffer.allocate(
+					HEADER_SIZE + mMaxBytes + PACKET_HEADER_SIZE + MAX_VALUE_SIZE);
+				mBuffer.order(ByteOrder.LITTLE_ENDIAN);
+			}
+		}
+
+		// Called on the Binder thread for each notification.
+		synchronized void received(byte[] value)
+		{
+			++mReceived;
+			if (null != mRingValues)
+			{
+				buffer(value);
+				return;
+			}
+			if (!mBatch)
+			{
+				++mDelivered;
+				keepCallback(mCallbackContext, value);
+				return;
+			}
+
+			long now = System.currentTimeMillis();
+			if (0 == mCount)
+			{
+				mFirstTime = now;
+				mBuffer.clear();
+				mBuffer.position(HEADER_SIZE);
+				if (mMaxDelay > 0)
+				{
+					mFlushHandler.postDelayed(mFlushRunnable, mMaxDelay);
+				}
+			}
+			int length = Math.min(value.length, MAX_VALUE_SIZE);
+			mBuffer.putInt((int)(now - mFirstTime));
+			mBuffer.putShort((short)length);
+			mBuffer.put(value, 0, length);
+			++mCount;
+
+			if (mCount >= mMaxPackets || mBuffer.position() - HEADER_SIZE >= mMaxBytes)
+			{
+				flush();
+			}
+		}
+
+		// Send the pending packets, if any.
+		synchronized void flush()
+		{
+			mFlushHandler.removeCallbacks(mFlushRunnable);
+			if (0 == mCount) return;
+
+			mBuffer.putDouble(0, (double)mFirstTime);
+			mBuffer.putShort(8, (short)mCount);
+			byte[] packed = Arrays.copyOf(mBuffer.array(), mBuffer.position());
+			mDelivered += mCount;
+			mCount = 0;
+			keepCallback(mCallbackContext, packed);
+		}
+
+		// Add a notification to the ring buffer.
+		private void buffer(byte[] value)
+		{
+			int capacity = mRingValues.length;
+			if (mRingCount == capacity)
+			{
+				++mDropped;
+				if (OVERFLOW_DROP_OLDEST == mOverflow)
+				{
+					mRingHead = (mRingHead + 1) % capacity;
+					--mRingCount;
+				}
+				else
+				{
+					if (OVERFLOW_BLOCK == mOverflow && !mFullSignalled)
+					{
+						mFullSignalled = true;
+						signal("full");
+					}
+					return;
+				}
+			}
+			int index = (mRingHead + mRingCount) % capacity;
+			mRingValues[index] = value;
+			mRingTimes[index] = System.currentTimeMillis();
+			++mRingCount;
+
+			if (!mAvailableSignalled)
+			{
+				mAvailableSignalled = true;
+				signal("available");
+			}
+		}
+
+		private void signal(String event)
+		{
+			try
+			{
+				JSONObject obj = statsToJSON();
+				obj.put("event", event);
+				keepCallback(mCallbackContext, obj);
+			}
+			catch (JSONException e)
+			{
+				e.printStackTrace();
+			}
+		}
+
+		// Remove up to max notifications from the ring buffer, packed
+		// in the batch format. All buffered notifications are read if
+		// max is 0.
+		synchronized byte[] read(int max)
+		{
+			int count = mRingCount;
+			if (max > 0 && max < count) count = max;
+			if (count > MAX_PACKETS) count = MAX_PACKETS;
+
+			int size = HEADER_SIZE;
+			int capacity = (null != mRingValues) ? mRingValues.length : 0;
+			for (int i = 0; i < count; ++i)
+			{
+				byte[] value = mRingValues[(mRingHead + i) % capacity];
+				size += PACKET_HEADER_SIZE + Math.min(value.length, MAX_VALUE_SIZE);
+			}
+
+			ByteBuffer packed = ByteBuffer.allocate(size);
+			packed.order(ByteOrder.LITTLE_ENDIAN);
+			long firstTime = (count > 0) ?
+				mRingTimes[mRingHead] :
+				System.currentTimeMillis();
+			packed.putDouble((double)firstTime);
+			packed.putShort((short)count);
+			for (int i = 0; i < count; ++i)
+			{
+				int index = (mRingHead + i) % capacity;
+				byte[] value = mRingValues[index];
+				int length = Math.min(value.length, MAX_VALUE_SIZE);
+				packed.putInt((int)(mRingTimes[index] - firstTime));
+				packed.putShort((short)length);
+				packed.put(value, 0, length);
+				mRingValues[index] = null;
+			}
+			if (capacity > 0)
+			{
+				mRingHead = (mRingHead + count) % capacity;
+			}
+			mRingCount -= count;
+			mDelivered += count;
+
+			// Signal again when new data arrives or the buffer fills up.
+			mAvailableSignalled = (mRingCount > 0);
+			mFullSignalled = false;
+
+			return packed.array();
+		}
+
+		synchronized JSONObject statsToJSON() throws JSONException
+		{
+			JSONObject obj = new JSONObject();
+			obj.put("received", mReceived);
+			obj.put("delivered", mDelivered);
+			obj.put("dropped", mDropped);
+			obj.put("buffered", mRingCount + mCount);
+			obj.put("capacity", (null != mRingValues) ? mRingValues.length : 0);
+			return obj;
+		}
+	}
+
+	// Compact attribute trees of devices, by address, in a file in app
+	// storage. Android has no API to use a GATT database without
+	// discoverServices(), so the cache does not replace discovery. It
+	// tells serviceTree callers if the tree of a device is the same as
+	// the last time (a hit), was not seen before (a miss), or changed,
+	// for example after a firmware update. Apps may pass a firmware
+	// fingerprint, entries with another fingerprint are misses. On
+	// Android 12 and later, onServiceChanged invalidates the entry of
+	// the device. Earlier versions do not report Service Changed to
+	// apps, there a change is found when the tree does not match.
+	private class AttributeCache
+	{
+		static final String FILE_NAME = "ble-attribute-cache.json";
+
+		static final String HIT = "hit";
+		static final String MISS = "miss";
+		static final String CHANGED = "changed";
+
+		// Entries by device address, loaded from the file when first used.
+		JSONObject mEntries;
+
+		int mHits;
+		int mMisses;
+		int mChanged;
+		int mInvalidations;
+
+		// Total service discovery time in milliseconds of all results.
+		// Discovery runs for hits too, so this is not a saving.
+		long mDiscoveryTime;
+
+		// Cordova calls that readServiceData would have made for the
+		// same services, beyond the one serviceTree call. This is what
+		// serviceTree saves; time per call depends on the WebView.
+		long mCallsSaved;
+
+		// Version of mEntries, incremented by each save. Writes of
+		// older versions than the written one are skipped, since
+		// thread pool tasks may run out of order.
+		long mVersion;
+		long mWrittenVersion;
+		final Object mWriteLock = new Object();
+
+		// Compare the tree of a device with its entry, and store it
+		// if not a hit. Returns HIT, MISS or CHANGED.
+		synchronized String check(
+			String address,
+			String fingerprint,
+			JSONArray tree,
+			long discoveryTime,
+			int callsSaved)
+		{
+			mCallsSaved += callsSaved;
+			JSONObject entries = entries();
+			JSONObject entry = entries.optJSONObject(address);
+			String result;
+			if (null == entry || !fingerprint.equals(entry.optString("fingerprint", "")))
+			{
+				result = MISS;
+			}
+			else if (tree.toString().equals(entry.optString("tree")))
+			{
+				result = HIT;
+			}
+			else
+			{
+				result = CHANGED;
+			}
+
+			mDiscoveryTime += discoveryTime;
+			if (HIT.equals(result))
+			{
+				++mHits;
+				return result;
+			}
+
+			if (MISS.equals(result)) ++mMisses; else ++mChanged;
+			try
+			{
+				entry = new JSONObject();
+				entry.put("fingerprint", fingerprint);
+				entry.put("tree", tree.toString());
+				entries.put(address, entry);
+				save();
+			}
+			catch (JSONException e)
+			{
+				e.printStackTrace();
+			}
+			return result;
+		}
+
+		synchronized void invalidate(String address)
+		{
+			if (null != entries().remove(address))
+			{
+				++mInvalidations;
+				save();
+			}
+		}
+
+		synchronized void clear()
+		{
+			mEntries = new JSONObject();
+			save();
+		}
+
+		synchronized JSONObject statsToJSON() throws JSONException
+		{
+			JSONObject obj = new JSONObject();
+			int lookups = mHits + mMisses + mChanged;
+			obj.put("entries", entries().length());
+			obj.put("hits", mHits);
+			obj.put("misses", mMisses);
+			obj.put("changed", mChanged);
+			obj.put("invalidations", mInvalidations);
+			obj.put("hitRate", (lookups > 0) ? (double) mHits / lookups : 0);
+			obj.put("averageDiscoveryTime",
+				(lookups > 0) ? (double) mDiscoveryTime / lookups : 0);
+			obj.put("callsSaved", mCallsSaved);
+			return obj;
+		}
+
+		private File file()
+		{
+			return new File(mContext.getFilesDir(), FILE_NAME);
+		}
+
+		private JSONObject entries()
+		{
+			if (null != mEntries)
+			{
+				return mEntries;
+			}
+			mEntries = new JSONObject();
+			File file = file();
+			if (!file.exists())
+			{
+				return mEntries;
+			}
+			FileInputStream in = null;
+			try
+			{
+				in = new FileInputStream(file);
+				byte[] data = new byte[(int) file.length()];
+				int length = 0;
+				while (length < data.length)
+				{
+					int n = in.read(data, length, data.length - length);
+					if (n < 0) break;
+					length += n;
+				}
+				mEntries = new JSONObject(new String(data, 0, length, "UTF-8"));
+			}
+			catch (Exception e)
+			{
+				// A damaged file is the same as no file.
+				Log.i("@@@@@@", "@@@ could not read attribute cache: " + e);
+			}
+			finally
+			{
+				if (null != in) try { in.close(); } catch (IOException e) {}
+			}
+			return mEntries;
+		}
+
+		// Write the entries on a thread pool thread, the caller
+		// is often a GATT callback. The data is written to a temporary
+		// file that replaces the cache file, so that a crash while
+		// writing does not leave a damaged file.
+		private void save()
+		{
+			final String data = mEntries.toString();
+			final long version = ++mVersion;
+			cordova.getThreadPool().execute(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					synchronized (mWriteLock)
+					{
+						if (version < mWrittenVersion) return;
+						File file = file();
+						File temp = new File(file.getPath() + ".tmp");
+						FileOutputStream out = null;
+						try
+						{
+							out = new FileOutputStream(temp);
+							out.write(data.getBytes("UTF-8"));
+							out.getFD().sync();
+							out.close();
+							out = null;
+							if (!temp.renameTo(file))
+							{
+								throw new IOException("rename failed");
+							}
+							mWrittenVersion = version;
+						}
+						catch (IOException e)
+						{
+							Log.i("@@@@@@", "@@@ could not write attribute cache: " + e);
+						}
+						finally
+						{
+							if (null != out) try { out.close(); } catch (IOException e) {}
+						}
+					}
+				}
+			});
+		}
+	}
+
+	// Starts connection attempts, at most mMaxAttempts at a time, since
+	// many Bluetooth stacks fail with status 133 when several attempts
+	// are pending. The limit is set with the config.xml preference
+	// BLEMaxConcurrentConnects. An attempt that fails with a transient
+	// status is retried with exponential back-off, if the connect option
+	// connectRetries allows it. The BluetoothGatt is closed before a retry,
+	// which frees its client slot in the stack.
+	private class ConnectionScheduler
+	{
+		static final long MAX_RETRY_DELAY = 8000;
+
+		// Limit of the connectRetries option.
+		static final int MAX_RETRIES = 20;
+
+		// Limit of the back-off exponent, so the shift cannot overflow.
+		static final int MAX_RETRY_SHIFT = 16;
+
+		int mMaxAttempts = 1;
+
+		// Number of attempts in progress.
+		int mActive = 0;
+
+		// Connections waiting for an attempt, in order.
+		final LinkedList<GattHandler> mPending = new LinkedList<GattHandler>();
+
+		// Runs retries after their back-off.
+		final Handler mHandler = new Handler(Looper.getMainLooper());
+
+		// Queue a connection attempt.
+		void request(GattHandler gh)
+		{
+			int position = 0;
+			synchronized (this)
+			{
+				mPending.add(gh);
+				if (mActive >= mMaxAttempts)
+				{
+					position = mPending.size();
+				}
+			}
+			if (position > 0)
+			{
+				gh.sendConnectEvent("queued", position, 0, 0);
+			}
+			next();
+		}
+
+		// Start attempts while below the limit.
+		void next()
+		{
+			while (true)
+			{
+				final GattHandler gh;
+				synchronized (this)
+				{
+					if (mActive >= mMaxAttempts || mPending.isEmpty()) return;
+					gh = mPending.poll();
+					++mActive;
+					gh.mAttempting = true;
+					++gh.mConnectAttempt;
+				}
+				runAction(new Runnable()
+				{
+					@Override
+					public void run()
+					{
+						gh.connectGatt();
+					}
+				});
+			}
+		}
+
+		// Statuses worth a retry: GATT_CONN_TIMEOUT, LMP response timeout,
+		// GATT_CONN_FAIL_ESTABLISH and the generic GATT_ERROR (133).
+		boolean isTransient(int status)
+		{
+			return status == 8 || status == 34 || status == 62 || status == 133;
+		}
+
+		// Called by onConnectionStateChange. Returns true if the attempt
+		// failed and will be retried, in which case the state change is
+		// not reported.
+		boolean attemptEnded(final GattHandler gh, BluetoothGatt gatt, int status)
+		{
+			boolean retry;
+			long delay = 0;
+			synchronized (this)
+			{
+				if (!gh.mAttempting) return false;
+				gh.mAttempting = false;
+				--mActive;
+				retry = status != BluetoothGatt.GATT_SUCCESS
+					&& isTransient(status)
+					&& gh.mConnectAttempt <= gh.mConnectRetries
+					&& gh.isConnected();
+				if (retry)
+				{
+					delay = Math.min(
+						gh.mConnectRetryDelay << Math.min(gh.mConnectAttempt - 1, MAX_RETRY_SHIFT),
+						MAX_RETRY_DELAY);
+				}
+			}
+
+			if (retry)
+			{
+				Log.i("@@@@@@", "@@@ connect retry: " + gh.mHandle + " status: " + status);
+				gatt.close();
+				gh.mGatt = null;
+				gh.sendConnectEvent("retry", 0, status, delay);
+				mHandler.postDelayed(new Runnable()
+				{
+					@Override
+					public void run()
+					{
+						synchronized (ConnectionScheduler.this)
+						{
+							if (!gh.isConnected()) return;
+							mPending.addFirst(gh);
+						}
+						next();
+					}
+				}, delay);
+			}
+			next();
+			return retry;
+		}
+
+		// Remove a connection that is closed.
+		void cancel(GattHandler gh)
+		{
+			synchronized (this)
+			{
+				mPending.remove(gh);
+				if (gh.mAttempting)
+				{
+					gh.mAttempting = false;
+					--mActive;
+				}
+			}
+			next();
+		}
+	}
+
+	// States of a connection, see GattHandler.setState().
+	enum ConnectionState
+	{
+		CONNECTING,
+		CONNECTED,
+		DISCOVERING,
+		READY,
+		DISCONNECTING,
+		DISCONNECTED,
+		CLOSED
+	}
+
+	private class GattHandler extends BluetoothGattCallback
+	{
+		// Local copy of the key to BLE.mGatt. Fed by BLE.mNextGattHandle.
+		final int mHandle;
+
+		// Default timeout of operations in milliseconds, 0 means no timeout.
+		static final long DEFAULT_OPERATION_TIMEOUT = 10000;
+
+		// The queues of operations. High priority operations are run
+		// first, and a stream yields to them between chunks.
+		LinkedList<GattOperation> mOperations = new LinkedList<GattOperation>();
+		LinkedList<GattOperation> mHighPriorityOperations = new LinkedList<GattOperation>();
+
+		// The operation in progress, null if none.
+		GattOperation mCurrentOp;
+
+		// State of the connection. Operations are held while connecting,
+		// and fail at once when disconnected or closed.
+		ConnectionState mState = ConnectionState.CONNECTING;
+
+		// Connection attempts, see ConnectionScheduler.
+		static final long DEFAULT_CONNECT_RETRY_DELAY = 500;
+		BluetoothDevice mDevice;
+		boolean mAutoConnect = false;
+		int mConnectRetries = 0;
+		long mConnectRetryDelay = DEFAULT_CONNECT_RETRY_DELAY;
+		int mConnectAttempt = 0;
+		boolean mAttempting = false;
+		boolean mReportConnectProgress = false;
+
+		// A persistent connection reconnects after link loss, and keeps
+		// its handles, queued operations and notifications.
+		boolean mPersistent = false;
+		boolean mWasConnected = false;
+
+		// Counters reported by getConnectionStats.
+		long mOperationsStarted = 0;
+		long mOperationsTimedOut = 0;
+		long mReadsCoalesced = 0;
+		long mWritesCoalesced = 0;
+
+		// Timeout of operations on this connection, set by connect().
+		long mOperationTimeout = DEFAULT_OPERATION_TIMEOUT;
+
+		// ATT MTU of the connection. 23 is the BLE default, of which
+		// 3 bytes are used by the write header.
+		static final int DEFAULT_MTU = 23;
+		int mMtu = DEFAULT_MTU;
+
+		// MTU to request automatically when connected, 0 if none.
+		int mRequestedMtu = 0;
+
+		// PHYs of the connection, as reported by onPhyUpdate and onPhyRead.
+		int mTxPhy = BluetoothDevice.PHY_LE_1M;
+		int mRxPhy = BluetoothDevice.PHY_LE_1M;
+
+		// PHY mask to request automatically when connected, 0 if none.
+		int mRequestedPhy = 0;
+
+		// Connection priority used when not boosted, -1 if not
+		// requested at connect.
+		int mConnectionPriority = -1;
+
+		// If set, the connection priority is raised to high while a batch
+		// or a stream runs, and restored when the queue is empty.
+		boolean mBoostPriority = false;
+		boolean mBoosted = false;
+
+		// Runs the GATT calls and timers of this connection, on the thread
+		// given by the thread mode. mThread is only set in the connection
+		// thread mode.
+		final Handler mHandler;
+		HandlerThread mThread;
+
+		// Time between posting an operation and the start of the GATT
+		// call, which shows how busy the thread of mHandler is.
+		long mDispatchNanos;
+		long mDispatchTotalNanos = 0;
+		long mDispatchMaxNanos = 0;
+
+		// Fails the current operation if Android does not call back before
+		// its deadline, which happens after link loss or status 133.
+		final Runnable mWatchdogRunnable = new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				GattOperation op;
+				synchronized (GattHandler.this)
+				{
+					op = mCurrentOp;
+					if (null == op)
+					{
+						return;
+					}
+					long remaining = op.mDeadline - SystemClock.elapsedRealtime();
+					if (remaining > 0)
+					{
+						mHandler.postDelayed(this, remaining);
+						return;
+					}
+				}
+				synchronized (GattHandler.this)
+				{
+					++mOperationsTimedOut;
+				}
+				Log.i("@@@@@@", "@@@ GATT operation timed out: " + op.mKind.mName);
+				failOperation(op, "GATT operation timed out: " + op.mKind.mName);
+			}
+		};
+
+		// connect() and rssi() are handled separately from other operations.
+		CallbackContext mConnectContext;
+		CallbackContext mRssiContext;
+
+		// The Android API connection.
+		BluetoothGatt mGatt;
+
+		// Maps of integer to Gatt subobject.
+		// Concurrent, since operations look up their targets on the thread
+		// of mHandler while JavaScript calls add new handles.
+		ConcurrentHashMap<Integer, BluetoothGattService> mServices;
+		ConcurrentHashMap<Integer, BluetoothGattCharacteristic> mCharacteristics;
+		ConcurrentHashMap<Integer, BluetoothGattDescriptor> mDescriptors;
+
+		// Monotonically incrementing key to the subobject maps.
+		int mNextHandle = 1;
+
+		// Notification subscriptions. The BluetoothGattCharacteristic object, as found
+		// in the mCharacteristics map, is the key.
+		ConcurrentHashMap<BluetoothGattCharacteristic, NotificationSubscription> mNotifications =
+			new ConcurrentHashMap<BluetoothGattCharacteristic, NotificationSubscription>();
+
+		GattHandler(int h, CallbackContext cc)
+		{
+			this(h, cc, mThreadMode);
+		}
+
+		GattHandler(int h, CallbackContext cc, String threadMode)
+		{
+			mHandle = h;
+			mConnectContext = cc;
+			if (THREAD_MODE_CONNECTION.equals(threadMode))
+			{
+				mThread = new HandlerThread("BLE GATT " + h);
+				mThread.start();
+				mHandler = new Handler(mThread.getLooper());
+			}
+			else if (THREAD_MODE_SHARED.equals(threadMode))
+			{
+				mHandler = workerHandler();
+			}
+			else
+			{
+				mHandler = new Handler(Looper.getMainLooper());
+			}
+		}
+
+		// Start a connection attempt. Called by ConnectionScheduler.
+		void connectGatt()
+		{
+			if (!isConnected()) return;
+			sendConnectEvent("attempt", 0, 0, 0);
+			try
+			{
+				// On a worker thread, Android 8.0 and later also
+				// deliver the GATT callbacks on that thread.
+				Log.i("@@@@@@", "@@@ connectGatt");
+				if (mHandler.getLooper() != Looper.getMainLooper()
+					&& Build.VERSION.SDK_INT >= Build.VERSION_CODES.O)
+				{
+					mGatt = mDevice.connectGatt(
+						mContext,
+						mAutoConnect,
+						this,
+						BluetoothDevice.TRANSPORT_AUTO,
+						BluetoothDevice.PHY_LE_1M_MASK,
+						mHandler);
+				}
+				else
+				{
+					mGatt = mDevice.connectGatt(mContext, mAutoConnect, this);
+				}
+				if (null == mGatt)
+				{
+					throw new IllegalStateException("connectGatt failed");
+				}
+			}
+			catch (Exception e)
+			{
+				Log.i("@@@@@@", "@@@ connect exception: " + e);
+				e.printStackTrace();
+				mConnectedDevices.remove(mHandle);
+				mConnectionScheduler.cancel(this);
+				close("Connect failed");
+				mConnectContext.error(e.toString());
+			}
+		}
+
+		// Report the progress of connecting, if requested by the
+		// connect option reportProgress.
+		void sendConnectEvent(String event, int queuePosition, int status, long delay)
+		{
+			if (!mReportConnectProgress) return;
+			try
+			{
+				JSONObject info = new JSONObject();
+				info.put("deviceHandle", mHandle);
+				info.put("event", event);
+				info.put("attempt", mConnectAttempt);
+				if (queuePosition > 0) info.put("queuePosition", queuePosition);
+				if (status != 0) info.put("status", status);
+				if (delay > 0) info.put("delay", delay);
+				keepCallback(mConnectContext, info);
+			}
+			catch (JSONException e)
+			{
+				e.printStackTrace();
+			}
+		}
+
+		// Stop the timers of the connection, and the thread of the
+		// connection thread mode. The shared thread keeps running.
+		void quit()
+		{
+			mHandler.removeCallbacks(mWatchdogRunnable);
+			if (null != mThread)
+			{
+				mThread.quitSafely();
+			}
+		}
+
+		// Run an action on the thread of this connection.
+		void runOperation(Runnable action)
+		{
+			if (Looper.myLooper() == mHandler.getLooper())
+			{
+				action.run();
+			}
+			else
+			{
+				mHandler.post(action);
+			}
+		}
+
+		// Timeout of an operation, from the per call options if given.
+		long operationTimeout(JSONObject options)
+		{
+			return (null != options) ?
+				options.optLong("timeout", mOperationTimeout) :
+				mOperationTimeout;
+		}
+
+		// Add an operation to the queue and run it when its turn comes.
+		void enqueue(GattOperation op)
+		{
+			synchronized (this)
+			{
+				if (!isConnected())
+				{
+					op.error("Device not connected");
+					return;
+				}
+				(op.mHighPriority ? mHighPriorityOperations : mOperations).add(op);
+			}
+			process();
+		}
+
+		// False when disconnected or closed. Connecting counts as
+		// connected, since operations are held until connected.
+		synchronized boolean isConnected()
+		{
+			return mState != ConnectionState.DISCONNECTED
+				&& mState != ConnectionState.CLOSED;
+		}
+
+		// True when the link is up and mGatt can be used directly, as
+		// opposed to isConnected(), which includes queued attempts.
+		synchronized boolean hasLink()
+		{
+			return mState == ConnectionState.CONNECTED
+				|| mState == ConnectionState.DISCOVERING
+				|| mState == ConnectionState.READY;
+		}
+
+		// Change the state of the connection. CLOSED is final.
+		synchronized void setState(ConnectionState state)
+		{
+			if (mState == ConnectionState.CLOSED || mState == state) return;
+			Log.i("@@@@@@", "@@@ connection " + mHandle + ": " + mState + " -> " + state);
+			mState = state;
+		}
+
+		// Close the connection and fail its operations.
+		void close(String message)
+		{
+			setState(ConnectionState.DISCONNECTING);
+			if (null != mGatt)
+			{
+				mGatt.close();
+			}
+			setState(ConnectionState.CLOSED);
+			failAllOperations(message);
+			quit();
+		}
+
+		// Add an operation to the queue given by the per call options,
+		// the option priority "high" selects the high priority queue.
+		// Reads with the option coalesce and writes with the option
+		// lastWriteWins may be merged with a queued operation.
+		void enqueue(GattOperation op, JSONObject options)
+		{
+			op.mHighPriority = isHighPriority(options);
+			if (null != options)
+			{
+				op.mCoalescible = (op.mKind == GattOperationKind.WRITE_CHARACTERISTIC) ?
+					options.optBoolean("lastWriteWins", false) :
+					options.optBoolean("coalesce", false);
+			}
+			if (op.mCoalescible && coalesce(op))
+			{
+				return;
+			}
+			enqueue(op);
+		}
+
+		// Merge an operation into the last queued operation on the same
+		// characteristic or descriptor, if both allow it. A read shares
+		// the result of the queued read. A write replaces the value of the
+		// queued write, and both callers get the result of writing the
+		// newest value. Only the last queued operation on the target is
+		// considered, so operations on a target keep their order.
+		private synchronized boolean coalesce(GattOperation op)
+		{
+			if (op.mKind != GattOperationKind.READ_CHARACTERISTIC
+				&& op.mKind != GattOperationKind.READ_DESCRIPTOR
+				&& op.mKind != GattOperationKind.WRITE_CHARACTERISTIC)
+			{
+				return false;
+			}
+			LinkedList<GattOperation> queue =
+				op.mHighPriority ? mHighPriorityOperations : mOperations;
+			Iterator<GattOperation> it = queue.descendingIterator();
+			while (it.hasNext())
+			{
+				GattOperation queued = it.next();
+				if (queued.mTargetHandle != op.mTargetHandle)
+				{
+					continue;
+				}
+				if (queued.mKind != op.mKind
+					|| !queued.mCoalescible
+					|| null != queued.mBatch
+					|| queued.mWriteType != op.mWriteType)
+				{
+					return false;
+				}
+				if (op.mKind == GattOperationKind.WRITE_CHARACTERISTIC)
+				{
+					queued.mPayload = op.mPayload;
+					++mWritesCoalesced;
+				}
+				else
+				{
+					++mReadsCoalesced;
+				}
+				queued.coalesce(op);
+				return true;
+			}
+			return false;
+		}
+
+		boolean isHighPriority(JSONObject options)
+		{
+			return (null != options) && "high".equals(options.optString("priority"));
+		}
+
+		// Add operations to the queue as one unit, no other operations
+		// are queued in between. The first operation selects the queue.
+		void enqueueAll(List<GattOperation> ops)
+		{
+			synchronized (this)
+			{
+				if (!isConnected())
+				{
+					for (GattOperation op : ops)
+					{
+						op.error("Device not connected");
+					}
+					return;
+				}
+				(ops.get(0).mHighPriority ? mHighPriorityOperations : mOperations).addAll(ops);
+			}
+			process();
+		}
+
+		// Run the next operation, if any.
+		void process()
+		{
+			final GattOperation op;
+			synchronized (this)
+			{
+				if (mCurrentOp != null || mState == ConnectionState.CONNECTING) return;
+				op = mHighPriorityOperations.isEmpty() ?
+					mOperations.poll() :
+					mHighPriorityOperations.poll();
+				if (op == null)
+				{
+					boostPriority(false);
+					return;
+				}
+				if (null != op.mBatch || null != op.mStream)
+				{
+					boostPriority(true);
+				}
+				mCurrentOp = op;
+				++mOperationsStarted;
+				op.mStartTime = SystemClock.elapsedRealtime();
+				op.mDeadline = (op.mTimeout > 0) ?
+					SystemClock.elapsedRealtime() + op.mTimeout :
+					Long.MAX_VALUE;
+				if (op.mTimeout > 0)
+				{
+					mHandler.postDelayed(mWatchdogRunnable, op.mTimeout);
+				}
+				mDispatchNanos = System.nanoTime();
+			}
+			runOperation(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					if (dispatched(op))
+					{
+						startOperation(op);
+					}
+				}
+			});
+		}
+
+		// Record the dispatch latency of an operation when its turn comes
+		// on the thread of mHandler. Returns false if the operation has
+		// timed out or been cancelled before it was started.
+		private synchronized boolean dispatched(GattOperation op)
+		{
+			if (op != mCurrentOp) return false;
+
+			long dispatch = System.nanoTime() - mDispatchNanos;
+			mDispatchTotalNanos += dispatch;
+			mDispatchMaxNanos = Math.max(mDispatchMaxNanos, dispatch);
+			return true;
+		}
+
+		// Raise the connection priority for bulk transfers, or restore it.
+		// Only done if the connect option boostPriority is set.
+		void boostPriority(boolean boost)
+		{
+			if (!mBoostPriority || boost == mBoosted || null == mGatt
+				|| Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP)
+			{
+				return;
+			}
+			mBoosted = boost;
+			final BluetoothGatt gatt = mGatt;
+			final int priority = boost ?
+				BluetoothGatt.CONNECTION_PRIORITY_HIGH :
+				(mConnectionPriority >= 0 ?
+					mConnectionPriority :
+					BluetoothGatt.CONNECTION_PRIORITY_BALANCED);
+			runOperation(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					gatt.requestConnectionPriority(priority);
+				}
+			});
+		}
+
+		// Start the Android GATT call of an operation. Runs on the
+		// connection's handler thread, see runOperation. Overridden by
+		// TestGattHandler.
+		void startOperation(GattOperation op)
+		{
+			// Skip the rest of a batch after an error, if requested.
+			if (null != op.mBatch && op.mBatch.isAborted())
+			{
+				completeOperation(null, op.mKind);
+				op.mBatch.setResult(op.mBatchIndex, GattBatch.STATUS_SKIPPED, null);
+				process();
+				return;
+			}
+
+			try
+			{
+				boolean started;
+				switch (op.mKind)
+				{
+					case DISCOVER_SERVICES:
+					case REDISCOVER_SERVICES:
+					case SERVICE_TREE:
+						setState(ConnectionState.DISCOVERING);
+						started = mGatt.discoverServices();
+						break;
+					case READ_CHARACTERISTIC:
+					{
+						BluetoothGattCharacteristic c = mCharacteristics.get(op.mTargetHandle);
+						op.mTarget = c;
+						started = mGatt.readCharacteristic(c);
+						break;
+					}
+					case WRITE_CHARACTERISTIC:
+					{
+						BluetoothGattCharacteristic c = mCharacteristics.get(op.mTargetHandle);
+						op.mTarget = c;
+						c.setWriteType(op.mWriteType);
+						c.setValue(op.mPayload);
+						started = mGatt.writeCharacteristic(c);
+						break;
+					}
+					case READ_DESCRIPTOR:
+					{
+						BluetoothGattDescriptor d = mDescriptors.get(op.mTargetHandle);
+						op.mTarget = d;
+						started = mGatt.readDescriptor(d);
+						break;
+					}
+					case WRITE_DESCRIPTOR:
+					{
+						BluetoothGattDescriptor d = mDescriptors.get(op.mTargetHandle);
+						op.mTarget = d;
+						d.setValue(op.mPayload);
+						started = mGatt.writeDescriptor(d);
+						break;
+					}
+					case ENABLE_NOTIFICATION:
+					case DISABLE_NOTIFICATION:
+					{
+						// The config descriptor helpers report their own errors.
+						BluetoothGattCharacteristic c = mCharacteristics.get(op.mTargetHandle);
+						op.mTarget = c.getDescriptor(
+							UUID.fromString("00002902-0000-1000-8000-00805f9b34fb"));
+						boolean enable = (op.mKind == GattOperationKind.ENABLE_NOTIFICATION);
+						if (enable ?
+							!enableConfigDescriptor(op.mCallbackContext, this, mGatt, c) :
+							!disableConfigDescriptor(op.mCallbackContext, this, mGatt, c))
+						{
+							completeOperation(op.mTarget, op.mKind);
+							process();
+							return;
+						}
+						// Call success callback for notification turned off.
+						if (!enable)
+						{
+							op.success();
+						}
+						started = true;
+						break;
+					}
+					case REQUEST_MTU:
+						started = mGatt.requestMtu(op.mArguments[0]);
+						break;
+					case SET_PREFERRED_PHY:
+						// Has no return value, completed by onPhyUpdate.
+						mGatt.setPreferredPhy(op.mArguments[0], op.mArguments[1], op.mArguments[2]);
+						started = true;
+						break;
+					case READ_PHY:
+						mGatt.readPhy();
+						started = true;
+						break;
+					case RELIABLE_WRITE:
+						started = mGatt.beginReliableWrite();
+						if (started)
+						{
+							writeReliableNext(op);
+						}
+						break;
+					case WRITE_STREAM:
+					{
+						BluetoothGattCharacteristic c = mCharacteristics.get(op.mTargetHandle);
+						op.mTarget = c;
+						GattStream stream = op.mStream;
+
+						// A stream that yielded to high priority
+						// operations continues where it was.
+						if (stream.mChunkCount > 0)
+						{
+							writeStreamChunk(op);
+							started = true;
+							break;
+						}
+						if (stream.mChunkSize <= 0)
+						{
+							stream.mChunkSize = mMtu - 3;
+						}
+						stream.mStartTime = SystemClock.elapsedRealtime();
+						stream.mLastProgressTime = stream.mStartTime;
+						if (op.mPayload.length == 0)
+						{
+							completeOperation(c, GattOperationKind.WRITE_STREAM);
+							op.mCallbackContext.success(stream.toJSON("done", 0));
+							process();
+							return;
+						}
+						writeStreamChunk(op);
+						started = true;
+						break;
+					}
+					default:
+						started = false;
+						break;
+				}
+				if (!started)
+				{
+					failOperation(op, op.mKind.mName);
+				}
+			}
+			catch (Exception e)
+			{
+				e.printStackTrace();
+				failOperation(op, e.toString());
+			}
+		}
+
+		// Write the next chunk of a stream. Runs on the connection's
+		// handler thread, see runOperation.
+		private void writeStreamChunk(final GattOperation op)
+		{
+			synchronized (this)
+			{
+				if (op != mCurrentOp) return;
+			}
+
+			GattStream stream = op.mStream;
+			BluetoothGattCharacteristic c = (BluetoothGattCharacteristic)op.mTarget;
+			int length = Math.min(stream.mChunkSize, op.mPayload.length - stream.mOffset);
+			stream.mPendingLength = length;
+			c.setWriteType(stream.isCheckpoint(op.mPayload.length) ?
+				BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT :
+				BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE);
+			c.setValue(Arrays.copyOfRange(op.mPayload, stream.mOffset, stream.mOffset + length));
+
+			// The deadline applies to each chunk.
+			if (op.mTimeout > 0)
+			{
+				op.mDeadline = SystemClock.elapsedRealtime() + op.mTimeout;
+			}
+
+			if (mGatt.writeCharacteristic(c))
+			{
+				stream.mBusyAttempts = 0;
+				return;
+			}
+
+			// The stack is busy, try again later.
+			if (++stream.mBusyAttempts > GattStream.BUSY_RETRY_MAX_ATTEMPTS)
+			{
+				failOperation(op, "writeCharacteristic busy");
+				return;
+			}
+			++stream.mBusyRetries;
+			mHandler.postDelayed(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					writeStreamChunk(op);
+				}
+			},
+			stream.busyRetryDelay());
+		}
+
+		// Called when a chunk of a stream has been written.
+		private void streamChunkWritten(final GattOperation op, int status)
+		{
+			if (status != BluetoothGatt.GATT_SUCCESS)
+			{
+				failOperation(op, "writeCharacteristicStream failed with status " + status);
+				return;
+			}
+
+			GattStream stream = op.mStream;
+			stream.mOffset += stream.mPendingLength;
+			stream.mPendingLength = 0;
+			++stream.mChunkCount;
+
+			try
+			{
+				if (stream.mOffset >= op.mPayload.length)
+				{
+					if (null != completeOperation(op.mTarget, GattOperationKind.WRITE_STREAM))
+					{
+						op.mCallbackContext.success(stream.toJSON("done", op.mPayload.length));
+						process();
+					}
+					return;
+				}
+
+				long now = SystemClock.elapsedRealtime();
+				if (now - stream.mLastProgressTime >= stream.mProgressInterval)
+				{
+					stream.mLastProgressTime = now;
+					keepCallback(op.mCallbackContext, stream.toJSON("progress", op.mPayload.length));
+				}
+			}
+			catch (JSONException e)
+			{
+				e.printStackTrace();
+			}
+
+			// Let high priority operations run between chunks. The
+			// stream is put first in its queue and resumes after them.
+			boolean yielded = false;
+			synchronized (this)
+			{
+				if (op == mCurrentOp && !op.mHighPriority && !mHighPriorityOperations.isEmpty())
+				{
+					mCurrentOp = null;
+					mHandler.removeCallbacks(mWatchdogRunnable);
+					mOperations.addFirst(op);
+					++stream.mYieldCount;
+					yielded = true;
+				}
+			}
+			if (yielded)
+			{
+				process();
+				return;
+			}
+
+			runOperation(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					writeStreamChunk(op);
+				}
+			});
+		}
+
+		// Write the next value of a reliable write, or execute the
+		// transaction when all values have been written.
+		private void writeReliableNext(final GattOperation op)
+		{
+			GattReliableWrite transaction = op.mReliableWrite;
+			synchronized (this)
+			{
+				if (op != mCurrentOp) return;
+				if (!transaction.isExecuting())
+				{
+					op.mTarget = mCharacteristics.get(transaction.mHandles[transaction.mIndex]);
+				}
+				else
+				{
+					op.mTarget = null;
+				}
+			}
+
+			boolean started;
+			if (!transaction.isExecuting())
+			{
+				BluetoothGattCharacteristic c = (BluetoothGattCharacteristic)op.mTarget;
+				if (null == c)
+				{
+					failOperation(op, "Invalid characteristic handle");
+					return;
+				}
+				c.setWriteType(BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT);
+				c.setValue(transaction.mValues[transaction.mIndex]);
+				started = mGatt.writeCharacteristic(c);
+			}
+			else
+			{
+				started = mGatt.executeReliableWrite();
+			}
+			if (!started)
+			{
+				failOperation(op, transaction.isExecuting() ?
+					"executeReliableWrite" : "writeCharacteristic");
+			}
+		}
+
+		// Returns the current operation if it is of the given kind and
+		// has the given target, without removing it.
+		synchronized GattOperation currentOperation(Object target, GattOperationKind kind)
+		{
+			GattOperation op = mCurrentOp;
+			return (null != op && op.mKind == kind && op.mTarget == target) ? op : null;
+		}
+
+		// Returns the current operation and removes it, if it is of one of
+		// the given kinds and has the given target (null matches any target).
+		// Returns null for callbacks that do not belong to the current
+		// operation, such as late callbacks of operations that timed out.
+		synchronized GattOperation completeOperation(Object target, GattOperationKind... kinds)
+		{
+			GattOperation op = mCurrentOp;
+			if (null == op || (null != target && op.mTarget != target))
+			{
+				return null;
+			}
+			for (GattOperationKind kind : kinds)
+			{
+				if (op.mKind == kind)
+				{
+					mCurrentOp = null;
+					mHandler.removeCallbacks(mWatchdogRunnable);
+					return op;
+				}
+			}
+			return null;
+		}
+
+		// Fail an operation, if it is still in progress, and run the next one.
+		void failOperation(GattOperation op, String message)
+		{
+			synchronized (this)
+			{
+				if (op != mCurrentOp) return;
+				mCurrentOp = null;
+				mHandler.removeCallbacks(mWatchdogRunnable);
+			}
+			if (op.mKind == GattOperationKind.RELIABLE_WRITE && null != mGatt)
+			{
+				mGatt.abortReliableWrite();
+			}
+			op.error(message);
+			process();
+		}
+
+		// Fail the current and all queued operations. Used when the
+		// connection is lost or closed, since no callbacks will come.
+		void failAllOperations(String message)
+		{
+			List<GattOperation> failed = new ArrayList<GattOperation>();
+			synchronized (this)
+			{
+				if (null != mCurrentOp)
+				{
+					failed.add(mCurrentOp);
+					mCurrentOp = null;
+				}
+				failed.addAll(mHighPriorityOperations);
+				failed.addAll(mOperations);
+				mHighPriorityOperations.clear();
+				mOperations.clear();
+				mHandler.removeCallbacks(mWatchdogRunnable);
+			}
+			for (GattOperation op : failed)
+			{
+				op.error(message);
+			}
+		}
+
+		@Override
+		public void onConnectionStateChange(BluetoothGatt gatt, int status, int newState)
+		{
+			Log.i("@@@@@@", "@@@ onConnectionStateChange status: " + status + " newState: " + newState);
+
+			// A failed attempt that is retried is not reported.
+			if (mConnectionScheduler.attemptEnded(this, gatt, status))
+			{
+				return;
+			}
+
+			if ((status != BluetoothGatt.GATT_SUCCESS
+				|| newState == BluetoothProfile.STATE_DISCONNECTED)
+				&& mPersistent && mWasConnected && isConnected())
+			{
+				reconnect(gatt, status);
+				return;
+			}
+
+			if (status != BluetoothGatt.GATT_SUCCESS
+				|| newState == BluetoothProfile.STATE_DISCONNECTED)
+				setState(ConnectionState.DISCONNECTED);
+			else if (newState == BluetoothProfile.STATE_CONNECTED)
+				setState(ConnectionState.CONNECTED);
+			else if (newState == BluetoothProfile.STATE_DISCONNECTING)
+				setState(ConnectionState.DISCONNECTING);
+
+			if (status == BluetoothGatt.GATT_SUCCESS)
+			{
+				try
+				{
+					// Request the MTU before any other operation is run.
+					// The MTU is reset when the connection is lost.
+					// The same is done for the PHY, after the MTU.
+					boolean reconnected = false;
+					if (newState == BluetoothProfile.STATE_CONNECTED)
+					{
+						reconnected = mWasConnected;
+						mWasConnected = true;
+
+						// Services are discovered again after a reconnect,
+						// so that the handles refer to valid objects.
+						if (reconnected && null != mServices)
+						{
+							GattOperation op = new GattOperation(
+								GattOperationKind.REDISCOVER_SERVICES, -1, null, null, mOperationTimeout);
+							synchronized (this)
+							{
+								mOperations.addFirst(op);
+							}
+						}
+
+						mMtu = DEFAULT_MTU;
+						mTxPhy = BluetoothDevice.PHY_LE_1M;
+						mRxPhy = BluetoothDevice.PHY_LE_1M;
+						mBoosted = false;
+						if (mConnectionPriority >= 0
+							&& Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP)
+						{
+							gatt.requestConnectionPriority(mConnectionPriority);
+						}
+						if (mRequestedPhy > 0
+							&& Build.VERSION.SDK_INT >= Build.VERSION_CODES.O)
+						{
+							GattOperation op = new GattOperation(
+								GattOperationKind.SET_PREFERRED_PHY, -1, null, null, mOperationTimeout);
+							op.mArguments = new int[] {
+								mRequestedPhy, mRequestedPhy, BluetoothDevice.PHY_OPTION_NO_PREFERRED };
+							synchronized (this)
+							{
+								mOperations.addFirst(op);
+							}
+						}
+						if (mRequestedMtu > DEFAULT_MTU
+							&& Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP)
+						{
+							GattOperation op = new GattOperation(
+								GattOperationKind.REQUEST_MTU, -1, null, null, mOperationTimeout);
+							op.mArguments = new int[] { mRequestedMtu };
+							synchronized (this)
+							{
+								mOperations.addFirst(op);
+							}
+						}
+						process();
+					}
+
+					JSONObject result = new JSONObject();
+					result.put("deviceHandle", mHandle);
+					result.put("state", newState);
+					if (reconnected)
+					{
+						result.put("reconnected", true);
+					}
+					Log.i("@@@@@@", "@@@ connect success");
+					keepCallback(mConnectContext, result);
+				}
+				catch(JSONException e)
+				{
+					Log.i("@@@@@@", "@@@ connect error: " + e);
+					e.printStackTrace();
+					mConnectContext.error("Connect error: " + e);
+					//assert(false);
 				}
 			}
+			else
+			{
+				// Could this be where we get 133? Yes it is.
+				Log.i("@@@@@@", "@@@ connect error - status: " + status);
+				mConnectContext.error(status);
+			}
+
+			// Queued operations will never complete when disconnected.
+			if (status != BluetoothGatt.GATT_SUCCESS
+				|| newState == BluetoothProfile.STATE_DISCONNECTED)
+			{
+				failAllOperations("Device disconnected");
+			}
 		}
-	}
 
-	/**
-	 * Used for both bond and unbond. We assume these are called one at a time.
-	 */
-	class BondStateReceiver extends BroadcastReceiver
-	{
-		public void onReceive(Context context, Intent intent)
+		// Result of serviceTree: all services, with their characteristics
+		// and descriptors, get handles in one call. The compact tree of
+		// UUIDs and properties is checked against the attribute cache.
+		private void serviceTreeDiscovered(GattOperation op, BluetoothGatt g)
 		{
-			if (intent.getAction().equals(BluetoothDevice.ACTION_BOND_STATE_CHANGED))
+			long discoveryTime = SystemClock.elapsedRealtime() - op.mStartTime;
+			HashSet<String> uuids = null;
+			String fingerprint = "";
+			if (null != op.mOptions)
 			{
-				BluetoothDevice device = intent.getParcelableExtra(BluetoothDevice.EXTRA_DEVICE);
-				int state = intent.getIntExtra(BluetoothDevice.EXTRA_BOND_STATE, -1);
-				int previousState = intent.getIntExtra(BluetoothDevice.EXTRA_PREVIOUS_BOND_STATE, -1);
-
-				// Check that the event is for the device address given in bond/unbond.
-				String deviceAddress = device.getAddress();
-
-				Log.i("@@@@@@", "@@@ Bond state changed: " + state + " previous: " + previousState
-					+ " address: " + deviceAddress + " mBondCallbackContext: " + mBondCallbackContext
-					+ " mUnbondCallbackContext: " + mUnbondCallbackContext);
-
-				// Handle bond callback.
-				if (null != mBondCallbackContext && deviceAddress.equals(mBondDeviceAddress))
+				JSONArray a = op.mOptions.optJSONArray("serviceUUIDs");
+				if (null != a && a.length() > 0)
 				{
-					Log.i("@@@@@@", "@@@ bond device address: " + mBondDeviceAddress);
-
-					if (state == BluetoothDevice.BOND_BONDED)
-					{
-						mBondCallbackContext.success("bonded");
-						mBondCallbackContext = null;
-					}
-					else if (state == BluetoothDevice.BOND_BONDING)
+					uuids = new HashSet<String>();
+					for (int i = 0; i < a.length(); ++i)
 					{
-						keepCallback(mBondCallbackContext, "bonding");
-					}
-					else if (state == BluetoothDevice.BOND_NONE)
-					{
-						mBondCallbackContext.success("unbonded");
-						mBondCallbackContext = null;
+						uuids.add(a.optString(i).toLowerCase());
 					}
 				}
+				fingerprint = op.mOptions.optString("fingerprint", "");
+			}
 
-				// Handle unbond callback.
-				if (null != mUnbondCallbackContext && deviceAddress.equals(mUnbondDeviceAddress))
+			try
+			{
+				JSONArray services = new JSONArray();
+				JSONArray tree = new JSONArray();
+				for (BluetoothGattService s : g.getServices())
 				{
-					Log.i("@@@@@@", "@@@ unbond device address: " + mUnbondDeviceAddress);
-
-					if (state == BluetoothDevice.BOND_BONDED)
+					JSONArray compactService = new JSONArray();
+					compactService.put(s.getUuid().toString());
+					compactService.put(s.getType());
+					tree.put(compactService);
+					if (null != uuids && !uuids.contains(s.getUuid().toString()))
 					{
-						mUnbondCallbackContext.success("bonded");
-						mUnbondCallbackContext = null;
+						continue;
 					}
-					else if (state == BluetoothDevice.BOND_BONDING)
+
+					if (mServices == null)
+						mServices = new ConcurrentHashMap<Integer, BluetoothGattService>();
+					mServices.put(mNextHandle, s);
+					JSONObject service = new JSONObject();
+					service.put("handle", mNextHandle++);
+					service.put("uuid", s.getUuid().toString());
+					service.put("type", s.getType());
+
+					JSONArray characteristics = new JSONArray();
+					for (BluetoothGattCharacteristic c : s.getCharacteristics())
 					{
-						keepCallback(mUnbondCallbackContext, "bonding");
+						if (mCharacteristics == null)
+							mCharacteristics = new ConcurrentHashMap<Integer, BluetoothGattCharacteristic>();
+						mCharacteristics.put(mNextHandle, c);
+						JSONObject characteristic = new JSONObject();
+						characteristic.put("handle", mNextHandle++);
+						characteristic.put("uuid", c.getUuid().toString());
+						characteristic.put("permissions", c.getPermissions());
+						characteristic.put("properties", c.getProperties());
+						characteristic.put("writeType", c.getWriteType());
+
+						JSONArray descriptors = new JSONArray();
+						for (BluetoothGattDescriptor d : c.getDescriptors())
+						{
+							if (mDescriptors == null)
+								mDescriptors = new ConcurrentHashMap<Integer, BluetoothGattDescriptor>();
+							mDescriptors.put(mNextHandle, d);
+							JSONObject descriptor = new JSONObject();
+							descriptor.put("handle", mNextHandle++);
+							descriptor.put("uuid", d.getUuid().toString());
+							descriptor.put("permissions", d.getPermissions());
+							descriptors.put(descriptor);
+						}
+						characteristic.put("descriptors", descriptors);
+						characteristics.put(characteristic);
 					}
-					else if (state == BluetoothDevice.BOND_NONE)
+					service.put("characteristics", characteristics);
+					services.put(service);
+				}
+
+				// The compact tree covers all services, so that
+				// filtered calls use the same cache entry.
+				for (int i = 0; i < tree.length(); ++i)
+				{
+					JSONArray compactService = tree.getJSONArray(i);
+					BluetoothGattService s = g.getServices().get(i);
+					for (BluetoothGattCharacteristic c : s.getCharacteristics())
 					{
-						mUnbondCallbackContext.success("unbonded");
-						mUnbondCallbackContext = null;
+						JSONArray compactCharacteristic = new JSONArray();
+						compactCharacteristic.put(c.getUuid().toString());
+						compactCharacteristic.put(c.getProperties());
+						for (BluetoothGattDescriptor d : c.getDescriptors())
+						{
+							compactCharacteristic.put(d.getUuid().toString());
+						}
+						compactService.put(compactCharacteristic);
 					}
 				}
+
+				JSONObject result = new JSONObject();
+				result.put("services", services);
+				// readServiceData makes one call for the services, one
+				// per service and one per characteristic.
+				int callsSaved = 0;
+				for (int i = 0; i < services.length(); ++i)
+				{
+					callsSaved += 1 + services.getJSONObject(i)
+						.getJSONArray("characteristics").length();
+				}
+				result.put("cache", mAttributeCache.check(
+					g.getDevice().getAddress(), fingerprint, tree, discoveryTime, callsSaved));
+				result.put("discoveryTime", discoveryTime);
+				op.success(result);
+			}
+			catch (JSONException e)
+			{
+				e.printStackTrace();
+				op.error(e.toString());
 			}
 		}
-	}
 
-	/* Running more than one operation of certain types on remote Gatt devices
-	* seem to cause it to stop responding.
-	* The known types are 'read' and 'write'.
-	* I've added 'services' to be on the safe side.
-	* 'rssi' and 'notification' should be safe.
-	*/
+		// The device changed its attribute database, reported by the
+		// stack on Android 12 and later. The cache entry is invalid, and
+		// services are discovered again so that the handles refer to
+		// the new attributes. Not annotated with @Override, so that the
+		// plugin compiles with a compileSdk before 31.
+		public void onServiceChanged(BluetoothGatt g)
+		{
+			Log.i("@@@@@@", "@@@ service changed: " + mHandle);
+			mAttributeCache.invalidate(g.getDevice().getAddress());
+			if (null == mServices)
+			{
+				return;
+			}
+			GattOperation op = new GattOperation(
+				GattOperationKind.REDISCOVER_SERVICES, -1, null, null, mOperationTimeout);
+			op.mHighPriority = true;
+			synchronized (this)
+			{
+				mHighPriorityOperations.addLast(op);
+			}
+			process();
+		}
 
-	// This class handles callbacks pertaining to device connections.
-	// Also maintains the per-device operation queue.
-	private class GattHandler extends BluetoothGattCallback
-	{
-		// Local copy of the key to BLE.mGatt. Fed by BLE.mNextGattHandle.
-		final int mHandle;
+		// Link loss of a persistent connection. The operation in progress
+		// fails, other operations are held until the link is back.
+		// BluetoothGatt.connect() reconnects with autoConnect, which waits
+		// for the device to come back in range.
+		private void reconnect(final BluetoothGatt gatt, int status)
+		{
+			Log.i("@@@@@@", "@@@ link lost, reconnecting: " + mHandle + " status: " + status);
+			setState(ConnectionState.CONNECTING);
+			GattOperation op;
+			synchronized (this)
+			{
+				op = mCurrentOp;
+			}
+			if (null != op)
+			{
+				failOperation(op, "Device disconnected");
+			}
 
-		// The queue of operations.
-		LinkedList<Runnable> mOperations = new LinkedList<Runnable>();
+			try
+			{
+				JSONObject result = new JSONObject();
+				result.put("deviceHandle", mHandle);
+				result.put("state", BluetoothProfile.STATE_DISCONNECTED);
+				result.put("status", status);
+				result.put("reconnecting", true);
+				keepCallback(mConnectContext, result);
+			}
+			catch (JSONException e)
+			{
+				e.printStackTrace();
+			}
 
-		// connect() and rssi() are handled separately from other operations.
-		CallbackContext mConnectContext;
-		CallbackContext mRssiContext;
-		CallbackContext mCurrentOpContext;
+			runOperation(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					if (isConnected() && !gatt.connect())
+					{
+						Log.i("@@@@@@", "@@@ reconnect failed: " + mHandle);
+					}
+				}
+			});
+		}
 
-		// Flag used when writing notification config descriptor.
-		// In this case we don't want to send back the result to JavaScript.
-		boolean mDontReportWriteDescriptor = false;
+		// After a reconnect, point the existing handles at the new Android
+		// objects, matched by UUID and instance id. Handles of attributes
+		// that are gone are removed.
+		private void remapHandles(List<BluetoothGattService> services)
+		{
+			if (null != mServices)
+			{
+				for (Map.Entry<Integer, BluetoothGattService> e : mServices.entrySet())
+				{
+					BluetoothGattService s = findService(services, e.getValue());
+					if (null != s) e.setValue(s); else mServices.remove(e.getKey());
+				}
+			}
+			if (null != mCharacteristics)
+			{
+				for (Map.Entry<Integer, BluetoothGattCharacteristic> e : mCharacteristics.entrySet())
+				{
+					BluetoothGattCharacteristic c = findCharacteristic(services, e.getValue());
+					if (null != c) e.setValue(c); else mCharacteristics.remove(e.getKey());
+				}
+			}
+			if (null != mDescriptors)
+			{
+				for (Map.Entry<Integer, BluetoothGattDescriptor> e : mDescriptors.entrySet())
+				{
+					BluetoothGattCharacteristic c = findCharacteristic(
+						services, e.getValue().getCharacteristic());
+					BluetoothGattDescriptor d = (null != c) ?
+						c.getDescriptor(e.getValue().getUuid()) : null;
+					if (null != d) e.setValue(d); else mDescriptors.remove(e.getKey());
+				}
+			}
+			for (BluetoothGattCharacteristic old : new ArrayList<BluetoothGattCharacteristic>(mNotifications.keySet()))
+			{
+				NotificationSubscription subscription = mNotifications.remove(old);
+				BluetoothGattCharacteristic c = findCharacteristic(services, old);
+				if (null != c)
+				{
+					mNotifications.put(c, subscription);
+				}
+			}
+		}
 
-		// The Android API connection.
-		BluetoothGatt mGatt;
+		private BluetoothGattService findService(
+			List<BluetoothGattService> services,
+			BluetoothGattService old)
+		{
+			for (BluetoothGattService s : services)
+			{
+				if (s.getUuid().equals(old.getUuid()) && s.getInstanceId() == old.getInstanceId())
+				{
+					return s;
+				}
+			}
+			return null;
+		}
 
-		// Maps of integer to Gatt subobject.
-		HashMap<Integer, BluetoothGattService> mServices;
-		HashMap<Integer, BluetoothGattCharacteristic> mCharacteristics;
-		HashMap<Integer, BluetoothGattDescriptor> mDescriptors;
+		private BluetoothGattCharacteristic findCharacteristic(
+			List<BluetoothGattService> services,
+			BluetoothGattCharacteristic old)
+		{
+			BluetoothGattService s = findService(services, old.getService());
+			if (null == s) return null;
+			for (BluetoothGattCharacteristic c : s.getCharacteristics())
+			{
+				if (c.getUuid().equals(old.getUuid()) && c.getInstanceId() == old.getInstanceId())
+				{
+					return c;
+				}
+			}
+			return null;
+		}
 
-		// Monotonically incrementing key to the subobject maps.
-		int mNextHandle = 1;
+		// Enable the notifications of the connection again after a
+		// reconnect. Config descriptor writes are run before other
+		// queued operations, errors are sent to the notification callback.
+		private void rearmNotifications()
+		{
+			for (Map.Entry<BluetoothGattCharacteristic, NotificationSubscription> e : mNotifications.entrySet())
+			{
+				NotificationSubscription subscription = e.getValue();
+				if (!mGatt.setCharacteristicNotification(e.getKey(), true))
+				{
+					Log.i("@@@@@@", "@@@ could not enable notification after reconnect");
+					continue;
+				}
+				if (subscription.mWriteConfigDescriptor)
+				{
+					GattOperation op = new GattOperation(
+						GattOperationKind.ENABLE_NOTIFICATION,
+						subscription.mCharacteristicHandle,
+						null,
+						subscription.mCallbackContext,
+						mOperationTimeout);
+					synchronized (this)
+					{
+						mOperations.addFirst(op);
+					}
+				}
+			}
+		}
 
-		// Notification callbacks. The BluetoothGattCharacteristic object, as found
-		// in the mCharacteristics map, is the key.
-		HashMap<BluetoothGattCharacteristic, CallbackContext> mNotifications =
-			new HashMap<BluetoothGattCharacteristic, CallbackContext>();
+		@Override
+		public void onMtuChanged(BluetoothGatt g, int mtu, int status)
+		{
+			if (status == BluetoothGatt.GATT_SUCCESS) {
+				mMtu = mtu;
+			}
+			GattOperation op = completeOperation(null, GattOperationKind.REQUEST_MTU);
+			if (null == op) return;
+			if (status == BluetoothGatt.GATT_SUCCESS) {
+				op.success(mtu);
+			} else {
+				op.error(status);
+			}
+			process();
+		}
 
-		GattHandler(int h, CallbackContext cc)
+		@Override
+		public void onReliableWriteCompleted(BluetoothGatt g, int status)
 		{
-			mHandle = h;
-			mConnectContext = cc;
+			GattOperation op = completeOperation(null, GattOperationKind.RELIABLE_WRITE);
+			if (null == op) return;
+			if (status == BluetoothGatt.GATT_SUCCESS) {
+				op.success();
+			} else {
+				op.error(status);
+			}
+			process();
 		}
 
-		// Run the next operation, if any.
-		// TODO: Make another method processNext that sets mCurrentOpContext to
-		// null and calls process. That would clean up repeated code a bit.
-		// Also consider writing method that adds a runnable to the mOperations
-		// queue and calls process, this would also reduce some repeated code.
-		void process()
+		@Override
+		public void onPhyUpdate(BluetoothGatt g, int txPhy, int rxPhy, int status)
 		{
-			if (mCurrentOpContext != null) return;
-			Runnable runnable = mOperations.poll();
-			if (runnable == null) return;
-			runAction(runnable);
+			// Also called when the remote device changes the PHY.
+			phyReported(GattOperationKind.SET_PREFERRED_PHY, txPhy, rxPhy, status);
 		}
 
 		@Override
-		public void onConnectionStateChange(BluetoothGatt gatt, int status, int newState)
+		public void onPhyRead(BluetoothGatt g, int txPhy, int rxPhy, int status)
 		{
-			Log.i("@@@@@@", "@@@ onConnectionStateChange status: " + status + " newState: " + newState);
+			phyReported(GattOperationKind.READ_PHY, txPhy, rxPhy, status);
+		}
 
-			if (status == BluetoothGatt.GATT_SUCCESS)
-			{
-				try
-				{
-					JSONObject result = new JSONObject();
-					result.put("deviceHandle", mHandle);
-					result.put("state", newState);
-					Log.i("@@@@@@", "@@@ connect success");
-					keepCallback(mConnectContext, result);
-				}
-				catch(JSONException e)
-				{
-					Log.i("@@@@@@", "@@@ connect error: " + e);
-					e.printStackTrace();
-					mConnectContext.error("Connect error: " + e);
-					//assert(false);
-				}
+		private void phyReported(GattOperationKind kind, int txPhy, int rxPhy, int status)
+		{
+			if (status == BluetoothGatt.GATT_SUCCESS) {
+				mTxPhy = txPhy;
+				mRxPhy = rxPhy;
 			}
-			else
-			{
-				// Could this be where we get 133? Yes it is.
-				Log.i("@@@@@@", "@@@ connect error - status: " + status);
-				mConnectContext.error(status);
+			GattOperation op = completeOperation(null, kind);
+			if (null == op) return;
+			if (status == BluetoothGatt.GATT_SUCCESS) {
+				try {
+					op.success(phyToJSON());
+				} catch (JSONException e) {
+					op.error(e.toString());
+				}
+			} else {
+				op.error(status);
 			}
+			process();
+		}
+
+		synchronized JSONObject statsToJSON() throws JSONException
+		{
+			JSONObject obj = new JSONObject();
+			obj.put("state", mState.name().toLowerCase());
+			obj.put("queued", mOperations.size() + mHighPriorityOperations.size());
+			obj.put("operationsStarted", mOperationsStarted);
+			obj.put("operationsTimedOut", mOperationsTimedOut);
+			obj.put("readsCoalesced", mReadsCoalesced);
+			obj.put("writesCoalesced", mWritesCoalesced);
+			obj.put("mtu", mMtu);
+			obj.put("threadMode", mThreadMode);
+			obj.put("dispatchLatencyAverage", (mOperationsStarted > 0) ?
+				mDispatchTotalNanos / 1e6 / mOperationsStarted : 0);
+			obj.put("dispatchLatencyMax", mDispatchMaxNanos / 1e6);
+			return obj;
+		}
+
+		JSONObject phyToJSON() throws JSONException
+		{
+			JSONObject obj = new JSONObject();
+			obj.put("txPhy", mTxPhy);
+			obj.put("rxPhy", mRxPhy);
+			return obj;
 		}
 
 		@Override
@@ -1486,13 +7082,42 @@ public class BLE
 		@Override
 		public void onServicesDiscovered(BluetoothGatt g, int status)
 		{
+			if (status == BluetoothGatt.GATT_SUCCESS) {
+				setState(ConnectionState.READY);
+			} else {
+				setState(ConnectionState.CONNECTED);
+			}
+			GattOperation op = completeOperation(null,
+				GattOperationKind.DISCOVER_SERVICES,
+				GattOperationKind.REDISCOVER_SERVICES,
+				GattOperationKind.SERVICE_TREE);
+			if (null == op) return;
+			if (op.mKind == GattOperationKind.SERVICE_TREE) {
+				if (status == BluetoothGatt.GATT_SUCCESS) {
+					serviceTreeDiscovered(op, g);
+				} else {
+					op.error(status);
+				}
+				process();
+				return;
+			}
+			if (op.mKind == GattOperationKind.REDISCOVER_SERVICES) {
+				if (status == BluetoothGatt.GATT_SUCCESS) {
+					remapHandles(g.getServices());
+					rearmNotifications();
+				} else {
+					Log.i("@@@@@@", "@@@ service discovery after reconnect failed: " + status);
+				}
+				process();
+				return;
+			}
 			if (status == BluetoothGatt.GATT_SUCCESS) {
 				List<BluetoothGattService> services = g.getServices();
 				JSONArray a = new JSONArray();
 				for (BluetoothGattService s : services) {
 					// give the service a handle.
 					if (mServices == null)
-						mServices = new HashMap<Integer, BluetoothGattService>();
+						mServices = new ConcurrentHashMap<Integer, BluetoothGattService>();
 					Object res = mServices.put(mNextHandle, s);
 					assert(res == null);
 
@@ -1509,70 +7134,116 @@ public class BLE
 						assert(false);
 					}
 				}
-				mCurrentOpContext.success(a);
+				op.success(a);
 			} else {
-				mCurrentOpContext.error(status);
+				op.error(status);
 			}
-			mCurrentOpContext = null;
 			process();
 		}
 
 		@Override
 		public void onCharacteristicRead(BluetoothGatt g, BluetoothGattCharacteristic c, int status)
 		{
+			GattOperation op = completeOperation(c, GattOperationKind.READ_CHARACTERISTIC);
+			if (null == op) return;
 			if (status == BluetoothGatt.GATT_SUCCESS) {
-				mCurrentOpContext.success(c.getValue());
+				op.success(c.getValue());
 			} else {
-				mCurrentOpContext.error(status);
+				op.error(status);
 			}
-			mCurrentOpContext = null;
 			process();
 		}
 
 		@Override
 		public void onDescriptorRead(BluetoothGatt g, BluetoothGattDescriptor d, int status)
 		{
+			GattOperation op = completeOperation(d, GattOperationKind.READ_DESCRIPTOR);
+			if (null == op) return;
 			if (status == BluetoothGatt.GATT_SUCCESS) {
-				mCurrentOpContext.success(d.getValue());
+				op.success(d.getValue());
 			} else {
-				mCurrentOpContext.error(status);
+				op.error(status);
 			}
-			mCurrentOpContext = null;
 			process();
 		}
 
 		@Override
 		public void onCharacteristicWrite(BluetoothGatt g, BluetoothGattCharacteristic c, int status)
 		{
+			GattOperation stream = currentOperation(c, GattOperationKind.WRITE_STREAM);
+			if (null != stream)
+			{
+				streamChunkWritten(stream, status);
+				return;
+			}
+
+			final GattOperation reliable = currentOperation(c, GattOperationKind.RELIABLE_WRITE);
+			if (null != reliable)
+			{
+				if (status != BluetoothGatt.GATT_SUCCESS)
+				{
+					failOperation(reliable, "writeCharacteristic failed: " + status);
+					return;
+				}
+				// The characteristic holds the value echoed by the device
+				// for the prepared write. A mismatch means the value was
+				// corrupted, failOperation aborts the transaction.
+				GattReliableWrite transaction = reliable.mReliableWrite;
+				if (!Arrays.equals(c.getValue(), transaction.mValues[transaction.mIndex]))
+				{
+					failOperation(reliable, "reliable write verification failed");
+					return;
+				}
+				++transaction.mIndex;
+				runOperation(new Runnable()
+				{
+					@Override
+					public void run()
+					{
+						writeReliableNext(reliable);
+					}
+				});
+				return;
+			}
+
+			GattOperation op = completeOperation(c, GattOperationKind.WRITE_CHARACTERISTIC);
+			if (null == op) return;
 			if (status == BluetoothGatt.GATT_SUCCESS) {
-				mCurrentOpContext.success();
+				op.success();
 			} else {
-				mCurrentOpContext.error(status);
+				op.error(status);
 			}
-			mCurrentOpContext = null;
 			process();
 		}
 
 		@Override
 		public void onDescriptorWrite(BluetoothGatt g, BluetoothGattDescriptor d, int status)
 		{
-			if (!mDontReportWriteDescriptor) {
+			GattOperation op = completeOperation(d,
+				GattOperationKind.WRITE_DESCRIPTOR,
+				GattOperationKind.ENABLE_NOTIFICATION,
+				GattOperationKind.DISABLE_NOTIFICATION);
+			if (null == op) return;
+			// The result of writing the notification config
+			// descriptor is not sent back to JavaScript.
+			if (op.mKind == GattOperationKind.WRITE_DESCRIPTOR) {
 				if (status == BluetoothGatt.GATT_SUCCESS) {
-					mCurrentOpContext.success();
+					op.success();
 				} else {
-					mCurrentOpContext.error(status);
+					op.error(status);
 				}
 			}
-			mDontReportWriteDescriptor = false;
-			mCurrentOpContext = null;
 			process();
 		}
 
 		@Override
 		public void onCharacteristicChanged(BluetoothGatt g, BluetoothGattCharacteristic c)
 		{
-			CallbackContext cc = mNotifications.get(c);
-			keepCallback(cc, c.getValue());
+			NotificationSubscription subscription = mNotifications.get(c);
+			if (null != subscription)
+			{
+				subscription.received(c.getValue());
+			}
 		}
 	}
 